@@ -0,0 +1,147 @@
+package com.llocer.ev.tarification;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import com.llocer.common.Tuple2;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpp.msgs20.MeasurandEnum;
+import com.llocer.ev.ocpp.msgs20.OcppMeterValue;
+import com.llocer.ev.ocpp.msgs20.OcppSampledValue;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+/*
+ * Deterministic inputs for the microbenchmarks
+ */
+class BenchmarkData {
+	static final long STEP = 60_000L; // one row per minute
+	private static final OcpiPriceComponent.Type[] TYPES = OcpiPriceComponent.Type.values();
+
+	/*
+	 * charging session of n rows: times, energy, current and power
+	 */
+	static TariffMeasures timeline( int n, long seed ) {
+		Random rnd = new Random( seed );
+		TariffMeasures res = new TariffMeasures( n );
+
+		long charging = 0L;
+		double energy = 0.0;
+		for( int i = 0; i < n; i++ ) {
+			int row = res.add( i*STEP );
+			double power = 3000.0+rnd.nextInt( 19000 );
+			if( i > 0 ) {
+				charging += STEP;
+				energy += power*STEP/3_600_000.0;
+			}
+			res.setTime( Column.RESERVATION_TIME, row, 0L );
+			res.setTime( Column.PARKING_TIME, row, 0L );
+			res.setTime( Column.CHARGING_TIME, row, charging );
+			res.setValue( Column.ENERGY, row, energy );
+			res.setValue( Column.CURRENT, row, power/230.0 );
+			res.setValue( Column.POWER, row, power );
+		}
+
+		return res;
+	}
+
+	/*
+	 * energy samples between the rows of a timeline of n rows
+	 */
+	static TariffMeasures energyMeasures( int n, long seed ) {
+		Random rnd = new Random( seed );
+		TariffMeasures res = new TariffMeasures( n );
+
+		double energy = 0.0;
+		for( int i = 0; i < n; i++ ) {
+			energy += rnd.nextInt( 400 );
+			res.setValue( Column.ENERGY, res.add( i*STEP+STEP/2 ), energy );
+		}
+
+		return res;
+	}
+
+	/*
+	 * flags alternating ok every span/transitions
+	 */
+	static TariffFlags flags( int transitions, long span, long seed ) {
+		Random rnd = new Random( seed );
+		TariffFlags res = new TariffFlags();
+
+		long step = Math.max( span/Math.max( transitions, 1 ), 1L );
+		boolean ok = rnd.nextBoolean();
+		for( int i = 0; i < transitions; i++ ) {
+			res.add( i*step+rnd.nextInt( (int)Math.min( step, Integer.MAX_VALUE ) ), ok );
+			ok = !ok;
+		}
+
+		return res;
+	}
+
+	static TariffFlags copy( TariffFlags flags ) {
+		TariffFlags res = new TariffFlags( flags.size() );
+		for( int i = 0; i < flags.size(); i++ ) {
+			res.add( flags.t( i ), flags.ok( i ) );
+		}
+		return res;
+	}
+
+	static List<Tuple2<OcpiTariff,OcpiPriceComponent>> priceComponents( int n ) {
+		OcpiTariff tariff = new OcpiTariff();
+		tariff.setId( "BENCH" );
+
+		List<Tuple2<OcpiTariff,OcpiPriceComponent>> res = new ArrayList<Tuple2<OcpiTariff,OcpiPriceComponent>>();
+		for( int i = 0; i < n; i++ ) {
+			OcpiPriceComponent pc = new OcpiPriceComponent();
+			pc.setType( TYPES[i%TYPES.length] );
+			pc.setPrice( 0.1+i/100.0 );
+			res.add( new Tuple2<OcpiTariff,OcpiPriceComponent>( tariff, pc ) );
+		}
+
+		return res;
+	}
+
+	/*
+	 * n events, each one with a meter value of energy, current and power
+	 */
+	static List<OcppTransactionEventRequest> events( int n, long seed ) {
+		Random rnd = new Random( seed );
+		Instant start = Instant.parse( "2021-03-01T08:00:00Z" );
+
+		List<OcppTransactionEventRequest> res = new ArrayList<OcppTransactionEventRequest>();
+		double energy = 0.0;
+		for( int i = 0; i < n; i++ ) {
+			Instant t = start.plusMillis( i*STEP );
+			energy += rnd.nextInt( 400 );
+
+			List<OcppSampledValue> samples = new LinkedList<OcppSampledValue>();
+			samples.add( sample( MeasurandEnum.ENERGY_ACTIVE_IMPORT_REGISTER, energy ) );
+			samples.add( sample( MeasurandEnum.CURRENT_IMPORT, 16.0+rnd.nextInt( 16 ) ) );
+			samples.add( sample( MeasurandEnum.POWER_ACTIVE_IMPORT, 3000.0+rnd.nextInt( 19000 ) ) );
+
+			OcppMeterValue meter = new OcppMeterValue();
+			meter.setTimestamp( t );
+			meter.setSampledValue( samples );
+			List<OcppMeterValue> meters = new LinkedList<OcppMeterValue>();
+			meters.add( meter );
+
+			OcppTransactionEventRequest event = new OcppTransactionEventRequest();
+			event.setTimestamp( t );
+			event.setMeterValue( meters );
+			res.add( event );
+		}
+
+		return res;
+	}
+
+	private static OcppSampledValue sample( MeasurandEnum measurand, double value ) {
+		OcppSampledValue res = new OcppSampledValue();
+		res.setMeasurand( measurand );
+		res.setValue( value );
+		return res;
+	}
+}
@@ -0,0 +1,26 @@
+package com.llocer.ev.tarification;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * JMH main with the gc profiler always on, so that the allocation rate
+ * (gc.alloc.rate.norm) is reported next to the time per operation.
+ * Accepts the usual JMH command line options, e.g. a benchmark regexp
+ * or -p length=256
+ */
+public class BenchmarkRunner {
+	public static void main( String[] args ) throws RunnerException, CommandLineOptionException {
+		Options options = new OptionsBuilder()
+				.parent( new CommandLineOptions( args ) )
+				.addProfiler( GCProfiler.class )
+				.build();
+
+		new Runner( options ).run();
+	}
+}
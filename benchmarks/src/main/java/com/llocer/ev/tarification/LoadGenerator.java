@@ -0,0 +1,157 @@
+package com.llocer.ev.tarification;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.llocer.ev.ocpi.msgs22.OcpiSession;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+
+/*
+ * End to end throughput of OcpiTarification.makeCDR with synthetic sessions.
+ *
+ * java -cp target/benchmarks.jar com.llocer.ev.tarification.LoadGenerator
+ *     [-threads n] [-cdrs n] [-warmup n] [-sessions n] [-tariffs n] [-sampleInterval s] [-seed n]
+ *
+ * Reports CDRs per second, latency percentiles and allocated bytes per CDR.
+ */
+public class LoadGenerator {
+
+	private static class Worker extends Thread {
+		private final List<SyntheticSessions.Session> sessions;
+		private final List<List<OcpiTariff>> tariffs;
+		private final AtomicInteger counter;
+		private final int cdrs;
+
+		long[] latencies = new long[16];
+		int count = 0;
+		long allocated = 0L;
+
+		Worker( List<SyntheticSessions.Session> sessions, List<List<OcpiTariff>> tariffs, AtomicInteger counter, int cdrs ) {
+			this.sessions = sessions;
+			this.tariffs = tariffs;
+			this.counter = counter;
+			this.cdrs = cdrs;
+		}
+
+		@Override
+		public void run() {
+			long allocated0 = allocatedBytes();
+
+			int i;
+			while( (i = counter.getAndIncrement()) < cdrs ) {
+				SyntheticSessions.Session s = sessions.get( i%sessions.size() );
+
+				// the session totals are written by makeCDR
+				OcpiSession session = new OcpiSession();
+				session.setId( s.session.getId() );
+				session.setStartDatetime( s.session.getStartDatetime() );
+
+				long t0 = System.nanoTime();
+				OcpiTarification.makeCDR( tariffs.get( i%tariffs.size() ), s.events, session );
+				long t1 = System.nanoTime();
+
+				if( count == latencies.length ) latencies = Arrays.copyOf( latencies, 2*count );
+				latencies[count++] = t1-t0;
+			}
+
+			allocated = allocatedBytes()-allocated0;
+		}
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if( bean instanceof com.sun.management.ThreadMXBean ) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes( Thread.currentThread().getId() );
+		}
+		return 0L;
+	}
+
+	private static List<Worker> run( int threads, int cdrs, List<SyntheticSessions.Session> sessions, List<List<OcpiTariff>> tariffs ) throws InterruptedException {
+		AtomicInteger counter = new AtomicInteger();
+		List<Worker> res = new ArrayList<Worker>();
+		for( int i = 0; i < threads; i++ ) {
+			res.add( new Worker( sessions, tariffs, counter, cdrs ) );
+		}
+		for( Worker worker : res ) worker.start();
+		for( Worker worker : res ) worker.join();
+		return res;
+	}
+
+	private static double percentile( long[] sorted, double p ) {
+		int i = (int)Math.ceil( p/100.0*sorted.length )-1;
+		return sorted[ Math.max( 0, Math.min( i, sorted.length-1 ) ) ]/1000.0;
+	}
+
+	public static void main( String[] args ) throws InterruptedException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int cdrs = 100_000;
+		int warmup = 20_000;
+		int nSessions = 2_000;
+		int nTariffs = 200;
+		long sampleInterval = 60L;
+		long seed = 1L;
+
+		for( int i = 0; i+1 < args.length; i += 2 ) {
+			switch( args[i] ) {
+			case "-threads": threads = Integer.parseInt( args[i+1] ); break;
+			case "-cdrs": cdrs = Integer.parseInt( args[i+1] ); break;
+			case "-warmup": warmup = Integer.parseInt( args[i+1] ); break;
+			case "-sessions": nSessions = Integer.parseInt( args[i+1] ); break;
+			case "-tariffs": nTariffs = Integer.parseInt( args[i+1] ); break;
+			case "-sampleInterval": sampleInterval = Long.parseLong( args[i+1] ); break;
+			case "-seed": seed = Long.parseLong( args[i+1] ); break;
+			default: throw new IllegalArgumentException( "unknown option "+args[i] );
+			}
+		}
+
+		SyntheticSessions generator = new SyntheticSessions( seed, sampleInterval*1000L );
+		List<SyntheticSessions.Session> sessions = new ArrayList<SyntheticSessions.Session>();
+		long events = 0L;
+		for( int i = 0; i < nSessions; i++ ) {
+			SyntheticSessions.Session session = generator.session();
+			events += session.events.size();
+			sessions.add( session );
+		}
+
+		// one or two tariffs per session
+		List<OcpiTariff> catalog = generator.tariffs( nTariffs );
+		List<List<OcpiTariff>> tariffs = new ArrayList<List<OcpiTariff>>();
+		for( int i = 0; i < nTariffs; i++ ) {
+			List<OcpiTariff> sessionTariffs = new ArrayList<OcpiTariff>();
+			sessionTariffs.add( catalog.get( i ) );
+			if( i%3 == 0 ) sessionTariffs.add( catalog.get( (i+1)%nTariffs ) );
+			tariffs.add( sessionTariffs );
+		}
+
+		System.out.printf( "threads=%d cdrs=%d sessions=%d (%.1f events/session) tariffs=%d%n",
+				threads, cdrs, nSessions, (double)events/nSessions, nTariffs );
+
+		run( threads, warmup, sessions, tariffs );
+
+		long t0 = System.nanoTime();
+		List<Worker> workers = run( threads, cdrs, sessions, tariffs );
+		long elapsed = System.nanoTime()-t0;
+
+		long allocated = 0L;
+		int n = 0;
+		for( Worker worker : workers ) n += worker.count;
+		long[] latencies = new long[n];
+		n = 0;
+		for( Worker worker : workers ) {
+			System.arraycopy( worker.latencies, 0, latencies, n, worker.count );
+			n += worker.count;
+			allocated += worker.allocated;
+		}
+		if( n == 0 ) return;
+		Arrays.sort( latencies );
+
+		System.out.printf( "throughput: %.1f CDR/s%n", n/(elapsed/1e9) );
+		System.out.printf( "latency us: p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+				percentile( latencies, 50 ), percentile( latencies, 90 ), percentile( latencies, 99 ),
+				percentile( latencies, 99.9 ), latencies[n-1]/1000.0 );
+		System.out.printf( "allocated: %.0f bytes/CDR%n", (double)allocated/n );
+	}
+}
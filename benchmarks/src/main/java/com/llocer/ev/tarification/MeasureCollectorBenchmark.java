@@ -0,0 +1,105 @@
+package com.llocer.ev.tarification;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.llocer.ev.ocpp.msgs20.MeasurandEnum;
+import com.llocer.ev.ocpp.msgs20.OcppMeterValue;
+import com.llocer.ev.ocpp.msgs20.OcppSampledValue;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+
+/*
+ * add() reads the samples from the events, replay() feeds the same samples
+ * already extracted, as SessionLog does: their difference is the cost of
+ * walking the OCPP messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeasureCollectorBenchmark {
+
+	@Param({ "16", "256", "4096" })
+	int length;
+
+	private List<OcppTransactionEventRequest> events;
+	private long tariffStart;
+
+	// per event, its samples from samples[event] to samples[event+1]-1
+	private long[] eventT;
+	private int[] samples;
+	private long[] sampleT;
+	private MeasurandEnum[] measurands;
+	private double[] values;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		events = BenchmarkData.events( length, 1L );
+		tariffStart = events.get( 0 ).getTimestamp().toEpochMilli();
+
+		int n = 0;
+		for( OcppTransactionEventRequest event : events ) {
+			for( OcppMeterValue meter : event.getMeterValue() ) {
+				n += meter.getSampledValue().size();
+			}
+		}
+
+		eventT = new long[ events.size() ];
+		samples = new int[ events.size()+1 ];
+		sampleT = new long[n];
+		measurands = new MeasurandEnum[n];
+		values = new double[n];
+		int s = 0;
+		for( int e = 0; e < events.size(); e++ ) {
+			OcppTransactionEventRequest event = events.get( e );
+			eventT[e] = event.getTimestamp().toEpochMilli();
+			samples[e] = s;
+			for( OcppMeterValue meter : event.getMeterValue() ) {
+				for( OcppSampledValue sampledValue : meter.getSampledValue() ) {
+					sampleT[s] = meter.getTimestamp().toEpochMilli();
+					measurands[s] = sampledValue.getMeasurand();
+					values[s] = sampledValue.getValue();
+					s++;
+				}
+			}
+		}
+		samples[ events.size() ] = s;
+	}
+
+	@Benchmark
+	public int add() {
+		MeasureCollector collector = new MeasureCollector( tariffStart );
+		for( OcppTransactionEventRequest event : events ) {
+			collector.add( event );
+		}
+		return collector.size();
+	}
+
+	@Benchmark
+	public int replay() {
+		MeasureCollector collector = new MeasureCollector( tariffStart );
+		for( int e = 0; e < eventT.length; e++ ) {
+			collector.addEvent( eventT[e], null );
+			for( int s = samples[e]; s < samples[e+1]; s++ ) {
+				collector.addSample( sampleT[s], measurands[s], values[s] );
+			}
+			collector.merge();
+		}
+		return collector.size();
+	}
+}
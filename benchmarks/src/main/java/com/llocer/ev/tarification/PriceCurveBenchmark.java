@@ -0,0 +1,51 @@
+package com.llocer.ev.tarification;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PriceCurveBenchmark {
+	private static final Instant START = Instant.parse( "2021-03-01T00:00:00Z" );
+
+	@Param({ "1", "100" })
+	int tariffs;
+
+	private PriceCurve curve;
+	private Random rnd;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		List<OcpiTariff> catalog = new SyntheticSessions( 1L, 60_000L ).tariffs( tariffs );
+		curve = new PriceCurve( new TariffIndex( catalog ), ZoneId.of( "Europe/Madrid" ), START );
+		rnd = new Random( 1L );
+	}
+
+	@Benchmark
+	public PriceCurve.Quote quote() {
+		Instant start = START.plusSeconds( rnd.nextInt( 5*24*3600 ) );
+		return curve.quote( start, 5.0+rnd.nextInt( 60 ), 7.4, rnd.nextInt( 240 ) );
+	}
+}
@@ -0,0 +1,218 @@
+package com.llocer.ev.tarification;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiRestrictions;
+import com.llocer.ev.ocpi.msgs22.OcpiSession;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpi.msgs22.OcpiTariffElement;
+import com.llocer.ev.ocpp.msgs20.ChargingStateEnum;
+import com.llocer.ev.ocpp.msgs20.MeasurandEnum;
+import com.llocer.ev.ocpp.msgs20.OcppMeterValue;
+import com.llocer.ev.ocpp.msgs20.OcppSampledValue;
+import com.llocer.ev.ocpp.msgs20.OcppTransaction;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+
+/*
+ * Realistic synthetic sessions and tariff catalogs:
+ * - sessions: reservation, charging with a tapering power curve, some
+ *   SUSPENDED_EV gaps, parking until the EV leaves, sometimes days later
+ * - tariffs: time of day, day of week, kWh and duration restrictions
+ */
+class SyntheticSessions {
+
+	static class Session {
+		final OcpiSession session;
+		final List<OcppTransactionEventRequest> events;
+
+		Session( OcpiSession session, List<OcppTransactionEventRequest> events ) {
+			this.session = session;
+			this.events = events;
+		}
+	}
+
+	private static final long MINUTE = 60_000L;
+	private static final Instant EPOCH = Instant.parse( "2021-03-01T00:00:00Z" );
+
+	private final Random rnd;
+	private final long sampleInterval; // ms between meter values
+	private int sessionId = 0;
+	private int tariffId = 0;
+
+	SyntheticSessions( long seed, long sampleInterval ) {
+		this.rnd = new Random( seed );
+		this.sampleInterval = sampleInterval;
+	}
+
+	/*
+	 * tariff catalog
+	 */
+	List<OcpiTariff> tariffs( int n ) {
+		List<OcpiTariff> res = new ArrayList<OcpiTariff>();
+		for( int i = 0; i < n; i++ ) {
+			res.add( tariff() );
+		}
+		return res;
+	}
+
+	OcpiTariff tariff() {
+		OcpiTariff res = new OcpiTariff();
+		res.setCountryCode( "ES" );
+		res.setPartyId( "LLO" );
+		res.setId( "T"+(tariffId++) );
+		res.setCurrency( "EUR" );
+		res.setLastUpdated( EPOCH );
+
+		List<OcpiTariffElement> elements = new ArrayList<OcpiTariffElement>();
+
+		// peak hours on working days
+		OcpiRestrictions peak = new OcpiRestrictions();
+		peak.setStartTime( String.format( "%02d:00", 7+rnd.nextInt( 3 ) ) );
+		peak.setEndTime( String.format( "%02d:00", 20+rnd.nextInt( 3 ) ) );
+		peak.setDayOfWeek( Arrays.asList( DayOfWeek.MONDAY, DayOfWeek.TUESDAY, DayOfWeek.WEDNESDAY, DayOfWeek.THURSDAY, DayOfWeek.FRIDAY ) );
+		elements.add( element( peak,
+				priceComponent( OcpiPriceComponent.Type.ENERGY, 0.35+rnd.nextInt( 20 )/100.0, 1000 ),
+				priceComponent( OcpiPriceComponent.Type.TIME, 1.0+rnd.nextInt( 3 ), 60 ) ) );
+
+		// night, crosses midnight
+		OcpiRestrictions night = new OcpiRestrictions();
+		night.setStartTime( "23:00" );
+		night.setEndTime( "06:00" );
+		elements.add( element( night,
+				priceComponent( OcpiPriceComponent.Type.ENERGY, 0.15+rnd.nextInt( 10 )/100.0, null ) ) );
+
+		// first kWh
+		OcpiRestrictions firstKwh = new OcpiRestrictions();
+		firstKwh.setMaxKwh( 5.0+rnd.nextInt( 10 ) );
+		elements.add( element( firstKwh,
+				priceComponent( OcpiPriceComponent.Type.ENERGY, 0.25, null ) ) );
+
+		// parking penalty after some hours
+		OcpiRestrictions overstay = new OcpiRestrictions();
+		overstay.setMinDuration( 3600*(2+rnd.nextInt( 4 )) );
+		elements.add( element( overstay,
+				priceComponent( OcpiPriceComponent.Type.PARKING_TIME, 2.0+rnd.nextInt( 4 ), 300 ) ) );
+
+		// default
+		elements.add( element( null,
+				priceComponent( OcpiPriceComponent.Type.FLAT, 0.5, null ),
+				priceComponent( OcpiPriceComponent.Type.ENERGY, 0.30, null ),
+				priceComponent( OcpiPriceComponent.Type.PARKING_TIME, 1.0, 60 ) ) );
+
+		res.setElements( elements );
+		return res;
+	}
+
+	private static OcpiTariffElement element( OcpiRestrictions restrictions, OcpiPriceComponent... priceComponents ) {
+		OcpiTariffElement res = new OcpiTariffElement();
+		res.setRestrictions( restrictions );
+		res.setPriceComponents( new ArrayList<OcpiPriceComponent>( Arrays.asList( priceComponents ) ) );
+		return res;
+	}
+
+	private static OcpiPriceComponent priceComponent( OcpiPriceComponent.Type type, double price, Integer stepSize ) {
+		OcpiPriceComponent res = new OcpiPriceComponent();
+		res.setType( type );
+		res.setPrice( price );
+		res.setStepSize( stepSize );
+		res.setVat( 21.0 );
+		return res;
+	}
+
+	/*
+	 * session starting some time in a month
+	 */
+	Session session() {
+		long t = EPOCH.toEpochMilli()+(long)( rnd.nextDouble()*30*24*60 )*MINUTE;
+
+		OcpiSession session = new OcpiSession();
+		session.setCountryCode( "ES" );
+		session.setPartyId( "LLO" );
+		session.setId( "S"+(sessionId++) );
+		session.setCurrency( "EUR" );
+		session.setStartDatetime( Instant.ofEpochMilli( t ) );
+
+		List<OcppTransactionEventRequest> events = new ArrayList<OcppTransactionEventRequest>();
+
+		// reservation, not always
+		if( rnd.nextInt( 4 ) == 0 ) {
+			t += (5+rnd.nextInt( 25 ))*MINUTE;
+		}
+
+		// charging: constant power up to 80%, then tapering
+		double maxPower = ( rnd.nextBoolean() ? 7400.0 : 11000.0+rnd.nextInt( 3 )*11000.0 );
+		double capacity = 40000.0+rnd.nextInt( 60000 );
+		double soc = 0.1+rnd.nextDouble()*0.5;
+		double target = 0.8+rnd.nextDouble()*0.2;
+		double energy = 1_000_000.0+rnd.nextInt( 10_000_000 ); // register
+		events.add( event( t, ChargingStateEnum.CHARGING, energy, maxPower ) );
+
+		while( soc < target ) {
+			if( rnd.nextInt( 40 ) == 0 ) {
+				// the EV suspends the charge for a while
+				t += sampleInterval;
+				events.add( event( t, ChargingStateEnum.SUSPENDED_EV, energy, 0.0 ) );
+				t += (1+rnd.nextInt( 20 ))*MINUTE;
+				events.add( event( t, ChargingStateEnum.CHARGING, energy, 0.0 ) );
+				continue;
+			}
+
+			double power = ( soc < 0.8 ? maxPower : maxPower*Math.max( 0.1, (1.0-soc)/0.2 ) );
+			t += sampleInterval;
+			double delta = power*sampleInterval/3_600_000.0;
+			energy += delta;
+			soc += delta/capacity;
+			events.add( event( t, null, energy, power ) );
+		}
+
+		// parking, a few sessions for days
+		t += sampleInterval;
+		events.add( event( t, ChargingStateEnum.EV_CONNECTED, energy, 0.0 ) );
+
+		long parking = ( rnd.nextInt( 20 ) == 0 ? (24*60+rnd.nextInt( 3*24*60 ))*MINUTE : rnd.nextInt( 8*60 )*MINUTE );
+		long end = t+parking;
+		long parkingInterval = Math.max( sampleInterval, 15*MINUTE );
+		while( t+parkingInterval < end ) {
+			t += parkingInterval;
+			events.add( event( t, null, energy, 0.0 ) );
+		}
+		events.add( event( end, ChargingStateEnum.IDLE, energy, 0.0 ) );
+
+		return new Session( session, events );
+	}
+
+	private static OcppTransactionEventRequest event( long t, ChargingStateEnum state, double energy, double power ) {
+		List<OcppSampledValue> samples = new ArrayList<OcppSampledValue>();
+		samples.add( sample( MeasurandEnum.ENERGY_ACTIVE_IMPORT_REGISTER, energy ) );
+		samples.add( sample( MeasurandEnum.POWER_ACTIVE_IMPORT, power ) );
+		samples.add( sample( MeasurandEnum.CURRENT_IMPORT, power/230.0/3.0 ) );
+
+		OcppMeterValue meter = new OcppMeterValue();
+		meter.setTimestamp( Instant.ofEpochMilli( t ) );
+		meter.setSampledValue( samples );
+		List<OcppMeterValue> meters = new ArrayList<OcppMeterValue>();
+		meters.add( meter );
+
+		OcppTransaction transaction = new OcppTransaction();
+		transaction.setChargingState( state );
+
+		OcppTransactionEventRequest res = new OcppTransactionEventRequest();
+		res.setTimestamp( Instant.ofEpochMilli( t ) );
+		res.setTransactionInfo( transaction );
+		res.setMeterValue( meters );
+		return res;
+	}
+
+	private static OcppSampledValue sample( MeasurandEnum measurand, double value ) {
+		OcppSampledValue res = new OcppSampledValue();
+		res.setMeasurand( measurand );
+		res.setValue( value );
+		return res;
+	}
+}
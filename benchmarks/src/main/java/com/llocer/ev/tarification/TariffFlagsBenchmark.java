@@ -0,0 +1,73 @@
+package com.llocer.ev.tarification;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * and(), or() and not() work in place: they are measured on a copy made
+ * by the benchmark itself, copy() is the baseline to subtract, both in
+ * time and in gc.alloc.rate.norm
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TariffFlagsBenchmark {
+
+	@Param({ "2", "16", "128", "1024" })
+	int transitions;
+
+	private TariffFlags other;
+	private TariffFlags flags; // never modified
+
+	@Setup(Level.Trial)
+	public void setup() {
+		other = BenchmarkData.flags( transitions, transitions*BenchmarkData.STEP, 2L );
+		flags = BenchmarkData.flags( transitions, transitions*BenchmarkData.STEP, 1L );
+	}
+
+	@Benchmark
+	public TariffFlags copy() {
+		return BenchmarkData.copy( flags );
+	}
+
+	@Benchmark
+	public TariffFlags and() {
+		TariffFlags res = BenchmarkData.copy( flags );
+		res.and( other );
+		return res;
+	}
+
+	@Benchmark
+	public TariffFlags or() {
+		TariffFlags res = BenchmarkData.copy( flags );
+		res.or( other );
+		return res;
+	}
+
+	@Benchmark
+	public TariffFlags not() {
+		TariffFlags res = BenchmarkData.copy( flags );
+		res.not();
+		return res;
+	}
+
+	@Benchmark
+	public long totalDuration() {
+		return flags.totalDuration( transitions*BenchmarkData.STEP );
+	}
+}
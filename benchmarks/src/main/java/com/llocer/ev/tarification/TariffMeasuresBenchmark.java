@@ -0,0 +1,100 @@
+package com.llocer.ev.tarification;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.llocer.common.Tuple2;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+/*
+ * joinMeasure() and assign() work in place: they are measured on a copy
+ * made by the benchmark itself, copy() is the baseline to subtract, both
+ * in time and in gc.alloc.rate.norm. Only assign() depends on the number
+ * of transitions and components.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TariffMeasuresBenchmark {
+
+	@State(Scope.Thread)
+	public static class Timeline {
+		@Param({ "16", "256", "4096" })
+		int length;
+
+		TariffMeasures base; // never modified
+		TariffMeasures energy;
+		double energyThreshold;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			base = BenchmarkData.timeline( length, 1L );
+			energy = BenchmarkData.energyMeasures( length, 2L );
+			energyThreshold = base.getValue( Column.ENERGY, length-1 )/2;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Assignment {
+		@Param({ "2", "32", "512" })
+		int transitions;
+
+		@Param({ "1", "4", "16" })
+		int components;
+
+		TariffFlags flags;
+		List<Tuple2<OcpiTariff,OcpiPriceComponent>> priceComponents;
+
+		@Setup(Level.Trial)
+		public void setup( Timeline timeline ) {
+			flags = BenchmarkData.flags( transitions, timeline.length*BenchmarkData.STEP, 3L );
+			priceComponents = BenchmarkData.priceComponents( components );
+		}
+	}
+
+	@Benchmark
+	public TariffMeasures copy( Timeline timeline ) {
+		return timeline.base.dup();
+	}
+
+	@Benchmark
+	public TariffMeasures joinMeasure( Timeline timeline ) {
+		TariffMeasures res = timeline.base.dup();
+		res.joinMeasure( timeline.energy );
+		return res;
+	}
+
+	@Benchmark
+	public TariffMeasures assign( Timeline timeline, Assignment assignment ) {
+		TariffMeasures res = timeline.base.dup();
+		res.assign( assignment.priceComponents, assignment.flags ); // all the components of an element, as checkTariffs
+		return res;
+	}
+
+	@Benchmark
+	public TariffFlags thresholdEnergy( Timeline timeline ) {
+		return timeline.base.threshold( true, timeline.energyThreshold, Column.ENERGY );
+	}
+
+	@Benchmark
+	public TariffFlags thresholdPower( Timeline timeline ) {
+		return timeline.base.threshold( false, 11000.0, Column.POWER );
+	}
+}
@@ -0,0 +1,156 @@
+package com.llocer.ev.tarification;
+
+import java.time.ZoneId;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import com.llocer.ev.ocpi.msgs22.OcpiCdr;
+import com.llocer.ev.ocpi.msgs22.OcpiSession;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+
+/*
+ * CDRs of many finished sessions computed in parallel.
+ *
+ * At most maxInFlight jobs are submitted to the executor at a time, so the
+ * jobs may be read lazily from a large source. Results are delivered to the
+ * consumer in the calling thread, in completion order; a failed job is
+ * delivered with its exception and does not stop the others, an Error stops
+ * the run and is thrown by it.
+ * The jobs given the same list of tariffs, the same instance, share the
+ * TariffIndex compiled for it during a run.
+ */
+public class BatchTarification {
+
+	public static class Job {
+		public final List<OcpiTariff> tariffs; // null when index is given
+		public final TariffIndex index; // null when tariffs are given
+		public final List<OcppTransactionEventRequest> events;
+		public final OcpiSession session;
+		public final ZoneId zone; // null: that of the options
+
+		public Job( List<OcpiTariff> tariffs, List<OcppTransactionEventRequest> events, OcpiSession session ) {
+			this( tariffs, events, session, null );
+		}
+
+		public Job( List<OcpiTariff> tariffs, List<OcppTransactionEventRequest> events, OcpiSession session, ZoneId zone ) {
+			this.tariffs = tariffs;
+			this.index = null;
+			this.events = events;
+			this.session = session;
+			this.zone = zone;
+		}
+
+		/*
+		 * index: of a catalog shared by the jobs
+		 */
+		public Job( TariffIndex index, List<OcppTransactionEventRequest> events, OcpiSession session, ZoneId zone ) {
+			this.tariffs = null;
+			this.index = index;
+			this.events = events;
+			this.session = session;
+			this.zone = zone;
+		}
+	}
+
+	public static class Result {
+		public final Job job;
+		public final OcpiCdr cdr; // null on error
+		public final Throwable error; // null on success
+
+		Result( Job job, OcpiCdr cdr, Throwable error ) {
+			this.job = job;
+			this.cdr = cdr;
+			this.error = error;
+		}
+	}
+
+	private final Executor executor;
+	private final int maxInFlight;
+	private final TarificationOptions options;
+
+	/*
+	 * common ForkJoinPool, a few jobs in flight per worker
+	 */
+	public BatchTarification() {
+		this( ForkJoinPool.commonPool(), 4*ForkJoinPool.commonPool().getParallelism(), new TarificationOptions() );
+	}
+
+	public BatchTarification( Executor executor, int maxInFlight ) {
+		this( executor, maxInFlight, new TarificationOptions() );
+	}
+
+	public BatchTarification( Executor executor, int maxInFlight, TarificationOptions options ) {
+		if( maxInFlight <= 0 ) throw new IllegalArgumentException( "maxInFlight must be positive" );
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.options = options;
+	}
+
+	private static OcpiCdr makeCDR( TariffIndex index, Job job, TarificationOptions options ) {
+		if( job.zone != null ) options = options.withZone( job.zone );
+		IncrementalTarification tarification = new IncrementalTarification( index, job.session, options );
+		for( OcppTransactionEventRequest event : job.events ) {
+			tarification.add( event );
+		}
+
+		return tarification.getCdr();
+	}
+
+	/*
+	 * returns when all the jobs are delivered
+	 */
+	public void run( Iterator<Job> jobs, Consumer<Result> consumer ) throws InterruptedException {
+		BlockingQueue<Result> done = new LinkedBlockingQueue<Result>();
+		Map<List<OcpiTariff>,TariffIndex> indexes = new IdentityHashMap<List<OcpiTariff>,TariffIndex>();
+		int inFlight = 0;
+
+		while( true ) {
+			while( inFlight < maxInFlight && jobs.hasNext() ) {
+				Job job = jobs.next();
+				try {
+					TariffIndex index = job.index;
+					if( index == null ) index = indexes.computeIfAbsent( job.tariffs, tariffs -> new TariffIndex( tariffs, options.cache ) );
+
+					TariffIndex jobIndex = index;
+					executor.execute( () -> {
+						Result res;
+						try {
+							res = new Result( job, makeCDR( jobIndex, job, options ), null );
+						} catch( Exception e ) {
+							res = new Result( job, null, e );
+						} catch( Error e ) {
+							done.add( new Result( job, null, e ) ); // thrown by run()
+							throw e;
+						}
+						done.add( res );
+					});
+					inFlight++;
+
+				} catch( RuntimeException e ) {
+					// tariffs not compiled, or rejected by the executor
+					consumer.accept( new Result( job, null, e ) );
+				}
+			}
+
+			if( inFlight == 0 ) break;
+
+			Result res = done.take();
+			inFlight--;
+			if( res.error instanceof Error ) throw (Error)res.error;
+			consumer.accept( res );
+		}
+	}
+
+	public void run( Stream<Job> jobs, Consumer<Result> consumer ) throws InterruptedException {
+		run( jobs.iterator(), consumer );
+	}
+}
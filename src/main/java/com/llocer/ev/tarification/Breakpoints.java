@@ -0,0 +1,111 @@
+package com.llocer.ev.tarification;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.llocer.common.Tuple2;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+/*
+ * Where the elements of a catalog may change their validity or round
+ * differently: the columns with a step size, the threshold values of each
+ * column and the local times of day of the time, day and date restrictions.
+ * Immutable once built.
+ */
+final class Breakpoints {
+	private final int stepColumns; // TariffMeasures.Column masks
+	private final double[][] thresholds; // by Column ordinal, sorted
+	private final int[] boundaries; // local second of day, sorted
+
+	Breakpoints( TariffIndex tariffs ) {
+		int steps = 0;
+		List<List<Double>> columnThresholds = new ArrayList<List<Double>>();
+		for( int c = 0; c < TariffMeasures.COLUMNS.length; c++ ) columnThresholds.add( new ArrayList<Double>() );
+		TreeSet<Integer> secondsOfDay = new TreeSet<Integer>();
+		for( int e = 0; e < tariffs.size(); e++ ) {
+			CompiledTariff.Element element = tariffs.element( e );
+			for( Tuple2<OcpiTariff,OcpiPriceComponent> pc : element.priceComponents ) {
+				steps |= stepColumns( pc.f2 );
+			}
+			for( CompiledTariff.Threshold threshold : element.thresholds ) {
+				columnThresholds.get( threshold.column.ordinal() ).add( threshold.value );
+			}
+			if( element.startTime != null ) {
+				secondsOfDay.add( element.startTime.toSecondOfDay() );
+				secondsOfDay.add( element.endTime.toSecondOfDay() );
+			}
+			if( element.dayOfWeek != null || element.startDate != null || element.endDate != null ) {
+				secondsOfDay.add( 0 );
+			}
+		}
+
+		this.stepColumns = steps;
+		this.thresholds = new double[columnThresholds.size()][];
+		for( int c = 0; c < thresholds.length; c++ ) {
+			thresholds[c] = columnThresholds.get( c ).stream().mapToDouble( Double::doubleValue ).sorted().distinct().toArray();
+		}
+		this.boundaries = secondsOfDay.stream().mapToInt( Integer::intValue ).toArray();
+	}
+
+	private static int stepColumns( OcpiPriceComponent priceComponent ) {
+		if( priceComponent.getStepSize() == null ) return 0;
+
+		switch( priceComponent.getType() ) {
+		case ENERGY: return Column.ENERGY.mask;
+		case TIME: return Column.CHARGING_TIME.mask | Column.RESERVATION_TIME.mask;
+		case PARKING_TIME: return Column.PARKING_TIME.mask;
+		default: return 0;
+		}
+	}
+
+	/*
+	 * columns of the price components with a step_size, TariffMeasures.Column masks
+	 */
+	int stepColumns() {
+		return stepColumns;
+	}
+
+	/*
+	 * some threshold of c changes its validity between the values v0 and v1
+	 */
+	boolean crossesThreshold( Column c, double v0, double v1 ) {
+		double[] values = thresholds[c.ordinal()];
+		if( values.length == 0 || v0 == v1 ) return false;
+
+		// max: v < threshold, min: v >= threshold, both change in (low, high]
+		double low = Math.min( v0, v1 );
+		double high = Math.max( v0, v1 );
+		int i = Arrays.binarySearch( values, low );
+		i = ( i >= 0 ? i+1 : -i-1 ); // first > low
+		return i < values.length && values[i] <= high;
+	}
+
+	/*
+	 * some time, day or date restriction may change its validity in from+1..to,
+	 * epoch milliseconds
+	 */
+	boolean crossesBoundary( long from, long to, ZoneId zone ) {
+		if( boundaries.length == 0 || from >= to ) return false;
+		if( to-from >= 24*3600*1000L ) return true;
+
+		ZoneOffset offset = zone.getRules().getOffset( Instant.ofEpochMilli( from ) );
+		if( !offset.equals( zone.getRules().getOffset( Instant.ofEpochMilli( to ) ) ) ) return true; // DST
+
+		long localFrom = from+offset.getTotalSeconds()*1000L;
+		long localTo = to+offset.getTotalSeconds()*1000L;
+		long day = Math.floorDiv( localFrom, 24*3600*1000L )*24*3600*1000L;
+		for( int second : boundaries ) {
+			long b = day+second*1000L;
+			if( b <= localFrom ) b += 24*3600*1000L;
+			if( b <= localTo ) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,158 @@
+package com.llocer.ev.tarification;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Transitions in epoch milliseconds of a calendar restriction in a zone:
+ * a daily time window or a set of days of week. They are computed once per
+ * local year, with the offsets in force at each day (DST), and shared by all
+ * the sessions and threads. A time of day in a DST gap is the end of the gap.
+ */
+final class CalendarIndex {
+	private static final ConcurrentHashMap<String,CalendarIndex> INDEXES = new ConcurrentHashMap<String,CalendarIndex>();
+
+	private final ZoneId zone;
+	private final LocalTime startTime; // time window, null for days of week
+	private final LocalTime endTime;
+	private final boolean[] days; // by DayOfWeek.ordinal(), null for time windows
+
+	private final ConcurrentHashMap<Integer,long[]> years = new ConcurrentHashMap<Integer,long[]>(); // t<<1 | ok, sorted
+
+	private CalendarIndex( ZoneId zone, LocalTime startTime, LocalTime endTime, boolean[] days ) {
+		this.zone = zone;
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.days = days;
+	}
+
+	/*
+	 * valid from start until end, the day after if end is not after start
+	 */
+	static CalendarIndex timeOfDay( ZoneId zone, LocalTime start, LocalTime end ) {
+		return INDEXES.computeIfAbsent( zone.getId()+" "+start+"-"+end, k -> new CalendarIndex( zone, start, end, null ) );
+	}
+
+	static CalendarIndex daysOfWeek( ZoneId zone, Set<DayOfWeek> days ) {
+		boolean[] valid = new boolean[7];
+		StringBuilder key = new StringBuilder( zone.getId() ).append( ' ' );
+		for( DayOfWeek day : DayOfWeek.values() ) {
+			valid[ day.ordinal() ] = days.contains( day );
+			key.append( valid[ day.ordinal() ] ? '1' : '0' );
+		}
+		return INDEXES.computeIfAbsent( key.toString(), k -> new CalendarIndex( zone, null, null, valid ) );
+	}
+
+	private static long pack( ZonedDateTime t, boolean ok ) {
+		return ( t.toInstant().toEpochMilli() << 1 ) | ( ok ? 1L : 0L );
+	}
+
+	/*
+	 * first instant not before time of day: the end of a DST gap, the
+	 * earlier offset of an overlap
+	 */
+	private ZonedDateTime at( LocalDate day, LocalTime time ) {
+		LocalDateTime local = LocalDateTime.of( day, time );
+		ZoneOffsetTransition transition = zone.getRules().getTransition( local );
+		if( transition != null && transition.isGap() ) return transition.getInstant().atZone( zone );
+		return ZonedDateTime.of( local, zone );
+	}
+
+	/*
+	 * transitions of the local days of a year, those of a time window crossing
+	 * midnight of December 31 end in the following year
+	 */
+	private long[] build( int year ) {
+		LocalDate first = LocalDate.of( year, 1, 1 );
+		int n = first.lengthOfYear();
+		long[] res;
+
+		if( days != null ) {
+			res = new long[n];
+			for( int i = 0; i < n; i++ ) {
+				LocalDate day = first.plusDays( i );
+				res[i] = pack( day.atStartOfDay( zone ), days[ day.getDayOfWeek().ordinal() ] );
+			}
+
+		} else {
+			boolean overnight = !endTime.isAfter( startTime );
+			res = new long[2*n];
+			for( int i = 0; i < n; i++ ) {
+				LocalDate day = first.plusDays( i );
+				res[2*i] = pack( at( day, startTime ), true );
+				// on a DST overlap, the window ends at the later instant
+				res[2*i+1] = pack( at( overnight ? day.plusDays( 1 ) : day, endTime ).withLaterOffsetAtOverlap(), false );
+			}
+
+		}
+
+		Arrays.sort( res );
+		return res;
+	}
+
+	private long[] year( int year ) {
+		return years.computeIfAbsent( year, this::build );
+	}
+
+	/*
+	 * index of the last transition at or before t, -1 if none
+	 */
+	private static int lastAtOrBefore( long[] chunk, long t ) {
+		int i = Arrays.binarySearch( chunk, ( t << 1 ) | 1L );
+		return ( i >= 0 ? i : -i-2 );
+	}
+
+	/*
+	 * validity from..to-1 relative to origin: the state at from followed by
+	 * the changes until to
+	 */
+	TariffFlags flags( long from, long to, long origin ) {
+		TariffFlags res = new TariffFlags();
+
+		if( startTime != null && startTime.equals( endTime ) ) {
+			// empty window
+			res.add( from-origin, false );
+			return res;
+		}
+
+		int year = Instant.ofEpochMilli( from ).atZone( zone ).getYear();
+		long[] chunk = year( year );
+		int i = lastAtOrBefore( chunk, from );
+		if( i < 0 ) {
+			// state set by the previous year
+			year--;
+			chunk = year( year );
+			i = lastAtOrBefore( chunk, from );
+		}
+
+		boolean ok = ( i >= 0 && ( chunk[i] & 1L ) != 0L );
+		res.add( from-origin, ok );
+
+		i++;
+		while( true ) {
+			for( ; i < chunk.length; i++ ) {
+				long t = chunk[i] >> 1;
+				if( t >= to ) return res;
+
+				boolean tOk = ( chunk[i] & 1L ) != 0L;
+				if( tOk != ok ) {
+					res.add( t-origin, tOk );
+					ok = tOk;
+				}
+			}
+
+			year++;
+			chunk = year( year );
+			i = 0;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.llocer.ev.tarification;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.llocer.common.Tuple2;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiRestrictions;
+import com.llocer.ev.ocpi.msgs22.OcpiRestrictions.ReservationRestrictionType;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpi.msgs22.OcpiTariffElement;
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+/*
+ * OcpiTariff with its restrictions already parsed and scaled to the units
+ * of TariffMeasures. Immutable, shared by all the sessions through TariffCache.
+ */
+public final class CompiledTariff {
+
+	static final class Threshold {
+		final boolean max;
+		final double value;
+		final Column column;
+		final String label;
+
+		Threshold( boolean max, double value, Column column, String label ) {
+			this.max = max;
+			this.value = value;
+			this.column = column;
+			this.label = label;
+		}
+	}
+
+	/*
+	 * value equality fingerprint of a restriction, or of all the restrictions
+	 * of an element: equal keys give equal flags in the same session
+	 */
+	static final class Key {
+		private final Object[] values;
+		private final int hash;
+
+		Key( Object... values ) {
+			this.values = values;
+			this.hash = Arrays.hashCode( values );
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals( Object other ) {
+			if( this == other ) return true;
+			if( !(other instanceof Key) ) return false;
+			Key key = (Key)other;
+			return hash == key.hash && Arrays.equals( values, key.values );
+		}
+	}
+
+	static final class Element {
+		final List<Tuple2<OcpiTariff,OcpiPriceComponent>> priceComponents;
+
+		final boolean restricted; // false: no restrictions at all
+		final ReservationRestrictionType reservation;
+		final LocalTime startTime; // null: no time window
+		final LocalTime endTime;
+		final LocalDate startDate;
+		final LocalDate endDate;
+		final Threshold[] thresholds; // evaluation order
+		final Set<DayOfWeek> dayOfWeek; // null: any day
+
+		// fingerprints, null when there is no such restriction
+		final Key restrictionsKey; // all of them
+		final Key startDateKey;
+		final Key endDateKey;
+		final Key timeKey;
+		final Key dayOfWeekKey;
+
+		// calendar indexes by zone
+		private final ConcurrentHashMap<ZoneId,CalendarIndex> timeIndexes = new ConcurrentHashMap<ZoneId,CalendarIndex>();
+		private final ConcurrentHashMap<ZoneId,CalendarIndex> dayOfWeekIndexes = new ConcurrentHashMap<ZoneId,CalendarIndex>();
+
+		Element( OcpiTariff tariff, OcpiTariffElement element ) {
+			List<Tuple2<OcpiTariff,OcpiPriceComponent>> pcs = new ArrayList<Tuple2<OcpiTariff,OcpiPriceComponent>>();
+			for( OcpiPriceComponent priceComponent : element.getPriceComponents() ) {
+				pcs.add( new Tuple2<OcpiTariff,OcpiPriceComponent>( tariff, priceComponent ) );
+			}
+			this.priceComponents = pcs;
+
+			OcpiRestrictions restrictions = element.getRestrictions();
+			this.restricted = ( restrictions != null );
+			if( restrictions == null ) {
+				this.reservation = null;
+				this.startTime = null;
+				this.endTime = null;
+				this.startDate = null;
+				this.endDate = null;
+				this.thresholds = new Threshold[0];
+				this.dayOfWeek = null;
+				this.restrictionsKey = null;
+				this.startDateKey = null;
+				this.endDateKey = null;
+				this.timeKey = null;
+				this.dayOfWeekKey = null;
+				return;
+			}
+
+			this.reservation = restrictions.getReservation();
+
+			if(  restrictions.getStartTime() != null
+			  && restrictions.getEndTime() != null ) {
+				this.startTime = LocalTime.parse( restrictions.getStartTime() );
+				this.endTime = LocalTime.parse( restrictions.getEndTime() );
+			} else {
+				this.startTime = null;
+				this.endTime = null;
+			}
+
+			this.startDate = ( restrictions.getStartDate() == null ? null : LocalDate.parse( restrictions.getStartDate() ) );
+			this.endDate = ( restrictions.getEndDate() == null ? null : LocalDate.parse( restrictions.getEndDate() ) );
+
+			// energy in Wh, current in A, power in W, duration in ms
+			List<Threshold> ths = new ArrayList<Threshold>();
+			if( restrictions.getMinKwh() != null ) {
+				ths.add( new Threshold( false, restrictions.getMinKwh()*1000.0, Column.ENERGY, "kWh min" ) );
+			}
+			if( restrictions.getMaxKwh() != null ) {
+				ths.add( new Threshold( true, restrictions.getMaxKwh()*1000.0, Column.ENERGY, "kWh max" ) );
+			}
+			if( restrictions.getMinCurrent() != null ) {
+				ths.add( new Threshold( false, restrictions.getMinCurrent(), Column.CURRENT, "current min" ) );
+			}
+			if( restrictions.getMaxCurrent() != null ) {
+				ths.add( new Threshold( true, restrictions.getMaxCurrent(), Column.CURRENT, "current max" ) );
+			}
+			if( restrictions.getMinPower() != null ) {
+				ths.add( new Threshold( false, restrictions.getMinPower()*1000.0, Column.POWER, "power min" ) );
+			}
+			if( restrictions.getMaxPower() != null ) {
+				ths.add( new Threshold( true, restrictions.getMaxPower()*1000.0, Column.POWER, "power max" ) );
+			}
+			if( restrictions.getMinDuration() != null ) {
+				ths.add( new Threshold( false, restrictions.getMinDuration()*1000.0, Column.DURATION, "duration min" ) );
+			}
+			if( restrictions.getMaxDuration() != null ) {
+				ths.add( new Threshold( true, restrictions.getMaxDuration()*1000.0, Column.DURATION, "duration max" ) );
+			}
+			this.thresholds = ths.toArray( new Threshold[ths.size()] );
+
+			if( restrictions.getDayOfWeek() != null ) {
+				Set<DayOfWeek> days = EnumSet.noneOf( DayOfWeek.class );
+				days.addAll( restrictions.getDayOfWeek() );
+				this.dayOfWeek = days;
+			} else {
+				this.dayOfWeek = null;
+			}
+
+			this.startDateKey = ( startDate == null ? null : new Key( "start date", startDate ) );
+			this.endDateKey = ( endDate == null ? null : new Key( "end date", endDate ) );
+			this.timeKey = ( startTime == null ? null : new Key( "time", startTime, endTime ) );
+			this.dayOfWeekKey = ( dayOfWeek == null ? null : new Key( "day of week", dayOfWeek ) );
+
+			List<Object> all = new ArrayList<Object>();
+			all.add( reservation );
+			all.add( startDateKey );
+			all.add( endDateKey );
+			all.add( timeKey );
+			all.add( dayOfWeekKey );
+			for( Threshold threshold : thresholds ) {
+				all.add( threshold.max );
+				all.add( threshold.value );
+				all.add( threshold.column );
+			}
+			this.restrictionsKey = new Key( all.toArray() );
+		}
+
+		CalendarIndex timeIndex( ZoneId zone ) {
+			return timeIndexes.computeIfAbsent( zone, z -> CalendarIndex.timeOfDay( z, startTime, endTime ) );
+		}
+
+		CalendarIndex dayOfWeekIndex( ZoneId zone ) {
+			return dayOfWeekIndexes.computeIfAbsent( zone, z -> CalendarIndex.daysOfWeek( z, dayOfWeek ) );
+		}
+	}
+
+	final OcpiTariff tariff;
+	final Instant lastUpdated;
+	final Element[] elements;
+
+	public CompiledTariff( OcpiTariff tariff ) {
+		this.tariff = tariff;
+		this.lastUpdated = tariff.getLastUpdated();
+
+		List<OcpiTariffElement> elements = tariff.getElements();
+		this.elements = new Element[ elements.size() ];
+		int i = 0;
+		for( OcpiTariffElement element : elements ) {
+			this.elements[i++] = new Element( tariff, element );
+		}
+	}
+
+	public OcpiTariff getTariff() {
+		return tariff;
+	}
+}
@@ -0,0 +1,130 @@
+package com.llocer.ev.tarification;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.llocer.common.Tuple2;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent.Type;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+
+/*
+ * Interned sets of price components, at most one per type, of the rows of
+ * a timeline: each row keeps only the id of its set, and rows with the same
+ * tariffs and price components have the same id. Sets are immutable, adding
+ * a component gives the id of another set. Not thread safe, shared by the
+ * TariffMeasures derived from the same timeline.
+ */
+final class ComponentSets {
+	static final int EMPTY = 0;
+	private static final int TYPES = Type.values().length;
+
+	private final List<Tuple2<OcpiTariff,OcpiPriceComponent>[]> components = new ArrayList<Tuple2<OcpiTariff,OcpiPriceComponent>[]>(); // by id, by Type ordinal
+	private final List<Map<Type,Tuple2<OcpiTariff,OcpiPriceComponent>>> maps = new ArrayList<Map<Type,Tuple2<OcpiTariff,OcpiPriceComponent>>>(); // by id
+	private final List<IdentityHashMap<Tuple2<OcpiTariff,OcpiPriceComponent>,Integer>> next = new ArrayList<IdentityHashMap<Tuple2<OcpiTariff,OcpiPriceComponent>,Integer>>(); // by id, added component => id
+	private final Map<Key,Integer> ids = new HashMap<Key,Integer>();
+
+	/*
+	 * tariffs and price components compared by identity, as they come from
+	 * the same CompiledTariff
+	 */
+	private static final class Key {
+		private final Tuple2<OcpiTariff,OcpiPriceComponent>[] components;
+		private final int hash;
+
+		Key( Tuple2<OcpiTariff,OcpiPriceComponent>[] components ) {
+			this.components = components;
+			int h = 1;
+			for( Tuple2<OcpiTariff,OcpiPriceComponent> c : components ) {
+				h = 31*h+( c == null ? 0 : 31*System.identityHashCode( c.f1 )+System.identityHashCode( c.f2 ) );
+			}
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals( Object other ) {
+			if( this == other ) return true;
+			if( !(other instanceof Key) ) return false;
+			Key key = (Key)other;
+			if( hash != key.hash ) return false;
+
+			for( int i = 0; i < TYPES; i++ ) {
+				Tuple2<OcpiTariff,OcpiPriceComponent> a = components[i];
+				Tuple2<OcpiTariff,OcpiPriceComponent> b = key.components[i];
+				if( a == b ) continue;
+				if( a == null || b == null || a.f1 != b.f1 || a.f2 != b.f2 ) return false;
+			}
+			return true;
+		}
+	}
+
+	ComponentSets() {
+		intern( emptySet() ); // EMPTY
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Tuple2<OcpiTariff,OcpiPriceComponent>[] emptySet() {
+		return (Tuple2<OcpiTariff,OcpiPriceComponent>[])new Tuple2<?,?>[TYPES];
+	}
+
+	Tuple2<OcpiTariff,OcpiPriceComponent> get( int id, Type type ) {
+		return components.get( id )[type.ordinal()];
+	}
+
+	/*
+	 * unmodifiable, in Type order
+	 */
+	Map<Type,Tuple2<OcpiTariff,OcpiPriceComponent>> map( int id ) {
+		return maps.get( id );
+	}
+
+	/*
+	 * id of set id with tariffAndPriceComponent replacing the one of its type
+	 */
+	int with( int id, Tuple2<OcpiTariff,OcpiPriceComponent> tariffAndPriceComponent ) {
+		Integer res = next.get( id ).get( tariffAndPriceComponent );
+		if( res == null ) {
+			Tuple2<OcpiTariff,OcpiPriceComponent>[] set = components.get( id ).clone();
+			set[tariffAndPriceComponent.f2.getType().ordinal()] = tariffAndPriceComponent;
+			res = intern( set );
+			next.get( id ).put( tariffAndPriceComponent, res );
+		}
+		return res;
+	}
+
+	/*
+	 * id in this table of the set id of other
+	 */
+	int of( ComponentSets other, int id ) {
+		if( other == this || id == EMPTY ) return id;
+		return intern( other.components.get( id ).clone() );
+	}
+
+	private int intern( Tuple2<OcpiTariff,OcpiPriceComponent>[] set ) {
+		Key key = new Key( set );
+		Integer res = ids.get( key );
+		if( res != null ) return res;
+
+		EnumMap<Type,Tuple2<OcpiTariff,OcpiPriceComponent>> map = new EnumMap<Type,Tuple2<OcpiTariff,OcpiPriceComponent>>( Type.class );
+		for( Tuple2<OcpiTariff,OcpiPriceComponent> c : set ) {
+			if( c != null ) map.put( c.f2.getType(), c );
+		}
+
+		res = components.size();
+		components.add( set );
+		maps.add( Collections.unmodifiableMap( map ) );
+		next.add( new IdentityHashMap<Tuple2<OcpiTariff,OcpiPriceComponent>,Integer>() );
+		ids.put( key, res );
+		return res;
+	}
+}
@@ -0,0 +1,71 @@
+package com.llocer.ev.tarification;
+
+import java.time.ZoneId;
+
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+/*
+ * Decides which rows of the timeline MeasureCollector drops, see
+ * TarificationOptions.Downsampling.
+ *
+ * A row is redundant if its values are those that the merge would give
+ * without it: cumulative values on the line between its neighbours, the
+ * others unchanged. Dropping it, the totals and restriction crossings are
+ * the same but for the rounding of fewer, longer charging periods, except:
+ * - step sizes, applied per charging period
+ * - validity changes of an element whose component type is already set by
+ *   another one, that are applied at the next row (TariffMeasures.assign)
+ * - rows inserted at a validity change, interpolated between other rows
+ * EQUAL keeps the rows where these may happen with the tariffs of the index,
+ * at their Breakpoints:
+ * those where a column of a step size changes, and those with a validity
+ * change between their neighbours. The rows of each charging period are
+ * then the same, or the period is split at rows with the same components:
+ * with TarificationOptions.fixedPoint the volumes, integers, sum the same
+ * and so do the totals. The double totals may differ in the last digits.
+ */
+final class Downsampler {
+	private final long tariffStart;
+	private final int unchanged; // Column masks of the columns that must not change
+	private final Breakpoints breakpoints; // null: restrictions are not checked
+	private final ZoneId zone;
+
+	private Downsampler( long tariffStart, int unchanged, Breakpoints breakpoints, ZoneId zone ) {
+		this.tariffStart = tariffStart;
+		this.unchanged = unchanged;
+		this.breakpoints = breakpoints;
+		this.zone = zone;
+	}
+
+	/*
+	 * null if not downsampling
+	 */
+	static Downsampler of( TarificationOptions options, TariffIndex tariffs, long tariffStart ) {
+		switch( options.downsampling ) {
+		case COLLINEAR:
+			return new Downsampler( tariffStart, 0, null, options.zone );
+
+		case EQUAL:
+			Breakpoints breakpoints = new Breakpoints( tariffs );
+			return new Downsampler( tariffStart, breakpoints.stepColumns(), breakpoints, options.zone );
+
+		default:
+			return null;
+		}
+	}
+
+	/*
+	 * row i, between rows i0 and i1, can be dropped
+	 */
+	boolean isDropped( TariffMeasures timeline, int i0, int i, int i1 ) {
+		if( !timeline.isRedundant( i, i0, i1, unchanged ) ) return false;
+		if( breakpoints == null ) return true;
+
+		// a validity change in i0..i is applied at row i, at row i1 without it,
+		// and one in i..i1 inserts a row interpolated from i0 instead of i
+		for( Column c : TariffMeasures.COLUMNS ) {
+			if( breakpoints.crossesThreshold( c, timeline.getValue( c, i0 ), timeline.getValue( c, i1 ) ) ) return false;
+		}
+		return !breakpoints.crossesBoundary( tariffStart+timeline.t( i0 ), tariffStart+timeline.t( i1 ), zone );
+	}
+}
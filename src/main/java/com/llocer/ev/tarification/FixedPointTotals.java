@@ -0,0 +1,160 @@
+package com.llocer.ev.tarification;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.llocer.ev.ocpi.msgs22.OcpiCdr;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+
+/*
+ * Totals of a CDR as scaled integers: energy in mWh and times in
+ * milliseconds, summed per price component. The cost of each price
+ * component is computed from its whole volume by writeTo(), rounded half up
+ * to a micro unit of currency once, and the conversion to the double fields
+ * of OcpiCdr is done only then.
+ */
+final class FixedPointTotals {
+	static final long MICRO = 1_000_000L;
+	static final long MS_PER_HOUR = 3600_000L;
+
+	long energy;
+	long time;
+	long parkingTime;
+
+	private final Map<OcpiPriceComponent,long[]> volumes = new IdentityHashMap<OcpiPriceComponent,long[]>(); // { volume } by price component
+
+	static long micro( double value ) {
+		return Math.round( value*MICRO );
+	}
+
+	static long milli( double value ) {
+		return Math.round( value*1000.0 );
+	}
+
+	/*
+	 * a*b/divisor rounded half up, a*b must fit in a long
+	 */
+	static long scale( long a, long b, long divisor ) {
+		long p = Math.multiplyExact( a, b );
+		return Math.floorDiv( p+divisor/2, divisor );
+	}
+
+	/*
+	 * amount rounded up to a multiple of step
+	 */
+	static long ceilStep( long amount, long step ) {
+		return -Math.floorDiv( -amount, step )*step;
+	}
+
+	/*
+	 * VAT of cost, vat in percent
+	 */
+	static long vat( long cost, Double vat ) {
+		if( vat == null ) return 0L;
+		return scale( cost, Math.round( vat*100.0 ), 10_000L );
+	}
+
+	/*
+	 * cost in micro units of volume of priceComponent: mWh for ENERGY, ms for
+	 * TIME and PARKING_TIME, times accounted for FLAT
+	 */
+	static long cost( OcpiPriceComponent priceComponent, long volume ) {
+		long price = micro( priceComponent.getPrice() );
+		switch( priceComponent.getType() ) {
+		case ENERGY:
+			return scale( price, volume, MICRO );
+
+		case TIME:
+		case PARKING_TIME:
+			return scale( price, volume, MS_PER_HOUR );
+
+		default: // FLAT
+			return Math.multiplyExact( price, volume );
+		}
+	}
+
+	/*
+	 * volume of priceComponent, as cost(); energy and times are added to
+	 * their totals
+	 */
+	void add( OcpiPriceComponent priceComponent, long volume ) {
+		switch( priceComponent.getType() ) {
+		case ENERGY:
+			energy += volume;
+			break;
+
+		case TIME:
+			time += volume;
+			break;
+
+		case PARKING_TIME:
+			parkingTime += volume;
+			break;
+
+		default:
+			break;
+		}
+
+		long[] v = volumes.get( priceComponent );
+		if( v == null ) {
+			volumes.put( priceComponent, new long[] { volume } );
+		} else {
+			v[0] += volume;
+		}
+	}
+
+	FixedPointTotals copy() {
+		FixedPointTotals res = new FixedPointTotals();
+		res.energy = energy;
+		res.time = time;
+		res.parkingTime = parkingTime;
+		for( Entry<OcpiPriceComponent,long[]> e : volumes.entrySet() ) {
+			res.volumes.put( e.getKey(), e.getValue().clone() );
+		}
+		return res;
+	}
+
+	/*
+	 * energy in kWh, times in hours
+	 */
+	void writeTo( OcpiCdr cdr ) {
+		long cost = 0L; // VAT included
+		long fixedCost = 0L;
+		long energyCost = 0L;
+		long timeCost = 0L;
+		long parkingCost = 0L;
+
+		for( Entry<OcpiPriceComponent,long[]> e : volumes.entrySet() ) {
+			OcpiPriceComponent priceComponent = e.getKey();
+			long c = cost( priceComponent, e.getValue()[0] );
+			switch( priceComponent.getType() ) {
+			case ENERGY:
+				energyCost += c;
+				break;
+
+			case TIME:
+				timeCost += c;
+				break;
+
+			case PARKING_TIME:
+				parkingCost += c;
+				break;
+
+			default: // FLAT
+				fixedCost += c;
+				break;
+			}
+			cost += c+vat( c, priceComponent.getVat() );
+		}
+
+		cdr.setTotalCost( (double)cost/MICRO );
+		cdr.setTotalFixedCost( (double)fixedCost/MICRO );
+		cdr.setTotalEnergy( (double)energy/MICRO );
+		cdr.setTotalEnergyCost( (double)energyCost/MICRO );
+		cdr.setTotalTime( (double)time/MS_PER_HOUR );
+		cdr.setTotalTimeCost( (double)timeCost/MICRO );
+		cdr.setTotalParkingTime( (double)parkingTime/MS_PER_HOUR );
+		cdr.setTotalParkingCost( (double)parkingCost/MICRO );
+	}
+}
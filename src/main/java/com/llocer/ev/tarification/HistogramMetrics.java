@@ -0,0 +1,152 @@
+package com.llocer.ev.tarification;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * TarificationMetrics kept in memory as histograms with power of two buckets,
+ * phases in nanoseconds. Lock free; toString() is a text dump to be scraped.
+ */
+public class HistogramMetrics implements TarificationMetrics {
+
+	public static class Histogram {
+		private static final int BUCKETS = 64; // bucket i: values < 2^i
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator( Math::max, 0L );
+		private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+
+		void record( long value ) {
+			if( value < 0L ) value = 0L;
+			count.increment();
+			sum.add( value );
+			max.accumulate( value );
+			buckets.incrementAndGet( 64-Long.numberOfLeadingZeros( value ) );
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getSum() {
+			return sum.sum();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/*
+		 * upper bound of the bucket of the quantile q (0..1), 0 if empty
+		 */
+		public long quantile( double q ) {
+			long n = count.sum();
+			if( n == 0L ) return 0L;
+
+			long rank = (long)Math.ceil( q*n );
+			long seen = 0L;
+			for( int i = 0; i < BUCKETS; i++ ) {
+				seen += buckets.get( i );
+				if( seen >= rank ) return Math.min( ( i == 0 ? 0L : ( 1L << i )-1L ), max.get() );
+			}
+			return max.get();
+		}
+
+		void reset() {
+			count.reset();
+			sum.reset();
+			max.reset();
+			for( int i = 0; i < BUCKETS; i++ ) buckets.set( i, 0L );
+		}
+
+		@Override
+		public String toString() {
+			return String.format( "count=%d sum=%d p50=%d p90=%d p99=%d max=%d",
+					getCount(), getSum(), quantile( 0.5 ), quantile( 0.9 ), quantile( 0.99 ), getMax() );
+		}
+	}
+
+	private final EnumMap<Phase,Histogram> phases = new EnumMap<Phase,Histogram>( Phase.class );
+	private final Histogram timeline = new Histogram();
+	private final Histogram flagTransitions = new Histogram();
+	private final Histogram evaluated = new Histogram();
+	private final Histogram skipped = new Histogram();
+	private final Histogram chargingPeriods = new Histogram();
+
+	public HistogramMetrics() {
+		for( Phase phase : Phase.values() ) {
+			phases.put( phase, new Histogram() );
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return true;
+	}
+
+	@Override
+	public void phase( Phase phase, long nanos ) {
+		phases.get( phase ).record( nanos );
+	}
+
+	@Override
+	public void timeline( int rows ) {
+		timeline.record( rows );
+	}
+
+	@Override
+	public void flagTransitions( int transitions ) {
+		flagTransitions.record( transitions );
+	}
+
+	@Override
+	public void elements( int evaluated, int skipped ) {
+		this.evaluated.record( evaluated );
+		this.skipped.record( skipped );
+	}
+
+	@Override
+	public void chargingPeriods( int periods ) {
+		chargingPeriods.record( periods );
+	}
+
+	public Histogram getPhase( Phase phase ) {
+		return phases.get( phase );
+	}
+
+	/*
+	 * all the histograms by name
+	 */
+	public Map<String,Histogram> getHistograms() {
+		Map<String,Histogram> res = new LinkedHashMap<String,Histogram>();
+		for( Phase phase : Phase.values() ) {
+			res.put( "phase_"+phase.name().toLowerCase()+"_ns", phases.get( phase ) );
+		}
+		res.put( "timeline_rows", timeline );
+		res.put( "flag_transitions", flagTransitions );
+		res.put( "elements_evaluated", evaluated );
+		res.put( "elements_skipped", skipped );
+		res.put( "charging_periods", chargingPeriods );
+		return res;
+	}
+
+	public void reset() {
+		for( Histogram h : getHistograms().values() ) {
+			h.reset();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder();
+		for( Map.Entry<String,Histogram> e : getHistograms().entrySet() ) {
+			res.append( e.getKey() ).append( ' ' ).append( e.getValue() ).append( '\n' );
+		}
+		return res.toString();
+	}
+}
@@ -0,0 +1,353 @@
+package com.llocer.ev.tarification;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import com.llocer.common.Tuple2;
+import com.llocer.ev.ocpi.msgs22.OcpiCdr;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent.Type;
+import com.llocer.ev.ocpi.msgs22.OcpiSession;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+
+/*
+ * Tarification of a session fed one event at a time.
+ *
+ * The charging periods whose measures can not change any more are accounted
+ * only once, each request evaluates again just the last ones. Once all the
+ * events are added, getCdr() returns the same CDR than OcpiTarification.makeCDR.
+ * A restriction may still split a period after a later event, e.g. at a
+ * crossing of a power threshold of an element that applies from a later
+ * day or hour: such periods are evaluated again until they can not.
+ */
+public class IncrementalTarification {
+	private final TariffIndex tariffs;
+	private final OcpiSession session;
+	private final long tariffStart;
+	private final MeasureCollector collector;
+	private final TarificationOptions options;
+
+	// timestamps of the first and last events
+	private Instant startEvent = null;
+	private Instant lastEvent = null;
+	private int events = 0;
+
+	private long logPosition = 0L; // next record of add( SessionLog )
+
+	private long extractNanos = 0L; // TarificationMetrics.Phase.EXTRACT since the last evaluation
+
+	// accounted charging periods, those starting before committedRow
+	private final OcpiCdr committed = new OcpiCdr();
+	private final OcpiTarification.UsedFlats usedFlats = new OcpiTarification.UsedFlats( null );
+	private int committedRow = 0;
+	private Map<Type,Tuple2<OcpiTariff,OcpiPriceComponent>> committedComponents = null; // of the last accounted period, see OcpiTarification.lastComponents
+	private final FixedPointTotals committedTotals; // null if not TarificationOptions.fixedPoint
+
+	// null if not tracing
+	private final TarificationTrace committedTrace;
+	private TarificationTrace trace = null;
+
+	public IncrementalTarification( List<OcpiTariff> tariffs, OcpiSession session ) {
+		this( tariffs, session, new TarificationOptions() );
+	}
+
+	public IncrementalTarification( List<OcpiTariff> tariffs, OcpiSession session, TarificationOptions options ) {
+		this( new TariffIndex( tariffs, options.cache ), session, options );
+	}
+
+	/*
+	 * tariffs: index of a catalog shared by many sessions, only the elements
+	 * that may apply to this session are evaluated
+	 */
+	public IncrementalTarification( TariffIndex tariffs, OcpiSession session, TarificationOptions options ) {
+		this.options = options;
+		this.tariffs = tariffs;
+		this.committedTrace = ( options.trace ? new TarificationTrace() : null );
+		this.committedTotals = ( options.fixedPoint ? new FixedPointTotals() : null );
+		this.session = session;
+		this.tariffStart = session.getStartDatetime().toEpochMilli();
+		this.collector = new MeasureCollector( tariffStart, Downsampler.of( options, tariffs, tariffStart ) );
+		OcpiTarification.initCost( committed );
+	}
+
+	/*
+	 * events must be added in order
+	 */
+	public void add( OcppTransactionEventRequest event ) {
+		if( startEvent == null ) startEvent = event.getTimestamp();
+		lastEvent = event.getTimestamp();
+		events++;
+
+		if( !options.metrics.isEnabled() ) {
+			collector.add( event );
+		} else {
+			long t0 = System.nanoTime();
+			collector.add( event );
+			extractNanos += System.nanoTime()-t0;
+		}
+	}
+
+	/*
+	 * events appended to log since the previous call, the log must not be
+	 * mixed with events added one by one
+	 */
+	public void add( SessionLog log ) throws IOException {
+		long to = log.size();
+		if( to == logPosition ) return;
+
+		if( startEvent == null ) startEvent = Instant.ofEpochMilli( log.t( logPosition ) );
+		long t0 = ( options.metrics.isEnabled() ? System.nanoTime() : 0L );
+		events += log.replay( logPosition, to, collector );
+		if( options.metrics.isEnabled() ) extractNanos += System.nanoTime()-t0;
+		lastEvent = Instant.ofEpochMilli( log.lastEventT( logPosition, to ) );
+		logPosition = to;
+	}
+
+	private static void copyTotals( OcpiCdr from, OcpiCdr to ) {
+		to.setTotalCost( from.getTotalCost() );
+		to.setTotalFixedCost( from.getTotalFixedCost() );
+		to.setTotalEnergy( from.getTotalEnergy() );
+		to.setTotalEnergyCost( from.getTotalEnergyCost() );
+		to.setTotalTime( from.getTotalTime() );
+		to.setTotalTimeCost( from.getTotalTimeCost() );
+		to.setTotalParkingTime( from.getTotalParkingTime() );
+		to.setTotalParkingCost( from.getTotalParkingCost() );
+	}
+
+	/*
+	 * evaluates the rows not accounted yet: the stable ones are accounted,
+	 * the rest are added only to cdr
+	 * event: JFR event of the CDR, null if not a getCdr()
+	 */
+	private void evaluate( OcpiCdr cdr, boolean chargingPeriods, TarificationEvents.Cdr event ) {
+		OcpiTarification.initCost( cdr );
+		if( startEvent == null ) return;
+
+		TarificationMetrics metrics = options.metrics;
+		boolean timed = metrics.isEnabled();
+		if( timed ) {
+			metrics.phase( TarificationMetrics.Phase.EXTRACT, extractNanos );
+			extractNanos = 0L;
+		}
+
+		int first = Math.max( committedRow-1, 0 ); // previous row is needed by thresholds
+		long from = collector.t( committedRow );
+		long t0 = ( timed ? System.nanoTime() : 0L );
+		TarificationEvents.Phase phase = TarificationEvents.begin( "JOIN" );
+		TariffMeasures window = collector.measures( first );
+		TarificationEvents.end( phase, window.size() );
+		if( timed ) {
+			metrics.phase( TarificationMetrics.Phase.JOIN, System.nanoTime()-t0 );
+			metrics.timeline( window.size() );
+		}
+
+		// a charging period is stable when its values and those of the following row are
+		int stable = collector.stableRows()-2;
+
+		phase = TarificationEvents.begin( "CHECK_TARIFFS" );
+		OcpiTarification me = new OcpiTarification( tariffStart, options.zone, startEvent, lastEvent, window, from );
+		me.compactChargingPeriods = options.compactChargingPeriods;
+		me.lastComponents = committedComponents;
+		if( stable > committedRow ) me.stable = Math.min( collector.t( stable ), lastEvent.toEpochMilli()-tariffStart );
+		TarificationTrace windowTrace = ( options.trace ? new TarificationTrace() : null );
+		int elements = me.checkTariffs( tariffs, windowTrace, metrics );
+		TarificationEvents.end( phase, window.size() );
+
+		if( event != null ) {
+			event.measures = window.size();
+			event.elements = elements;
+		}
+
+		if( timed ) t0 = System.nanoTime();
+		phase = TarificationEvents.begin( "FILL_COST" );
+
+		// nor the rows inserted before it may change
+		int start = window.indexOf( from );
+		int end = start;
+		while( stable > committedRow && collector.t( stable ) > Math.min( me.stable, me.horizon ) ) stable--;
+		if( stable > committedRow ) {
+			end = window.indexOf( collector.t( stable ) );
+			me.fillCost( committed, committedTotals, usedFlats, start, end, committedTrace );
+			committedRow = stable;
+			committedComponents = me.lastComponents;
+		}
+
+		copyTotals( committed, cdr );
+		if( chargingPeriods ) {
+			cdr.getChargingPeriods().addAll( committed.getChargingPeriods() );
+		}
+		FixedPointTotals totals = ( committedTotals == null ? null : committedTotals.copy() );
+		int tail = cdr.getChargingPeriods().size();
+		me.fillCost( cdr, totals, new OcpiTarification.UsedFlats( usedFlats ), end, window.size(), windowTrace );
+		if( totals != null ) totals.writeTo( cdr );
+		TarificationEvents.end( phase, window.size()-start );
+
+		if( timed ) {
+			metrics.phase( TarificationMetrics.Phase.FILL_COST, System.nanoTime()-t0 );
+			metrics.chargingPeriods( committed.getChargingPeriods().size()+cdr.getChargingPeriods().size()-tail );
+		}
+
+		if( windowTrace != null ) trace = windowTrace.after( committedTrace );
+	}
+
+	private static OcpiCdr newCdr( OcpiSession session, Instant end ) {
+		OcpiCdr cdr = new OcpiCdr();
+
+		cdr.setCountryCode( session.getCountryCode() );
+		cdr.setPartyId( session.getPartyId() );
+		cdr.setStartDateTime( session.getStartDatetime() );
+		cdr.setEndDateTime( end );
+		cdr.setSessionId( session.getId() );
+		cdr.setCdrToken( session.getCdrToken() );
+		cdr.setAuthMethod( session.getAuthMethod() );
+		cdr.setAuthorizationReference( session.getAuthReference() );
+		cdr.setMeterId( session.getMeterId() );
+		cdr.setCurrency( session.getCurrency() );
+		cdr.setSignedData(null); // TODO
+		cdr.setLastUpdated( Instant.now() );
+
+		return cdr;
+	}
+
+	/*
+	 * CDR with all the events added until now. The accounted charging periods
+	 * are shared, not copied, but the list holding them is new: each call
+	 * costs O(charging periods). To poll a running session use getSession(),
+	 * O(charging periods not accounted yet).
+	 */
+	public OcpiCdr getCdr() {
+		TarificationEvents.Cdr event = new TarificationEvents.Cdr();
+		TarificationEvents.PathologicalSession pathological = new TarificationEvents.PathologicalSession();
+		long t0 = ( pathological.isEnabled() ? System.nanoTime() : 0L );
+		event.begin();
+
+		OcpiCdr cdr = newCdr( session, lastEvent );
+
+		evaluate( cdr, true, event );
+
+		session.setKwh( cdr.getTotalEnergy() );
+		session.setTotalCost( cdr.getTotalCost() );
+
+		event.sessionId = session.getId();
+		event.events = events;
+		TarificationEvents.commit( event, pathological, t0, options );
+
+		return cdr;
+	}
+
+	/*
+	 * session with the totals of the events added until now,
+	 * cheaper than getCdr(): accounted charging periods are not copied
+	 */
+	public OcpiSession getSession() {
+		OcpiCdr cdr = new OcpiCdr();
+		evaluate( cdr, false, null );
+
+		session.setKwh( cdr.getTotalEnergy() );
+		session.setTotalCost( cdr.getTotalCost() );
+
+		return session;
+	}
+
+	/*
+	 * bytes written by writeTimeline()
+	 */
+	public int timelineSize() {
+		checkNotDownsampled();
+		return TimelineCodec.size( collector.measures( 0 ) );
+	}
+
+	/*
+	 * a downsampled timeline keeps only the rows where the tariffs of this
+	 * tarification may change, other tariffs would be rated on the wrong ones
+	 */
+	private void checkNotDownsampled() {
+		if( options.downsampling != TarificationOptions.Downsampling.NONE ) {
+			throw new IllegalStateException( "downsampled timeline, can not be rated again: "+options.downsampling );
+		}
+	}
+
+	/*
+	 * merged measures of the events added until now, as if there were no
+	 * more events, before any tariff is assigned: rerate() prices them again
+	 * without the events. Written at the position of out.
+	 * Not available with TarificationOptions.downsampling.
+	 */
+	public void writeTimeline( ByteBuffer out ) {
+		if( startEvent == null ) throw new IllegalStateException( "no events" );
+		checkNotDownsampled();
+		TimelineCodec.write( out, new TimelineCodec.Timeline(
+				tariffStart, startEvent.toEpochMilli(), lastEvent.toEpochMilli(), collector.measures( 0 ) ) );
+	}
+
+	/*
+	 * CDR of a timeline written by writeTimeline() priced with tariffs,
+	 * read from the position of timeline; the same as getCdr() with the
+	 * same events. TarificationOptions.trace is not recorded, reading the
+	 * timeline is measured as TarificationMetrics.Phase.JOIN.
+	 */
+	public static OcpiCdr rerate( TariffIndex tariffs, ByteBuffer timeline, OcpiSession session, TarificationOptions options ) {
+		TarificationEvents.Cdr event = new TarificationEvents.Cdr();
+		TarificationEvents.PathologicalSession pathological = new TarificationEvents.PathologicalSession();
+		long start = ( pathological.isEnabled() ? System.nanoTime() : 0L );
+		event.begin();
+
+		TarificationMetrics metrics = options.metrics;
+		boolean timed = metrics.isEnabled();
+
+		long t0 = ( timed ? System.nanoTime() : 0L );
+		TarificationEvents.Phase phase = TarificationEvents.begin( "JOIN" );
+		TimelineCodec.Timeline t = TimelineCodec.read( timeline );
+		TariffMeasures measures = t.measures;
+		TarificationEvents.end( phase, measures.size() );
+		if( timed ) {
+			metrics.phase( TarificationMetrics.Phase.JOIN, System.nanoTime()-t0 );
+			metrics.timeline( measures.size() );
+		}
+
+		OcpiCdr cdr = newCdr( session, Instant.ofEpochMilli( t.lastEvent ) );
+		OcpiTarification.initCost( cdr );
+
+		if( measures.size() > 0 ) {
+			OcpiTarification me = new OcpiTarification( t.tariffStart, options.zone,
+					Instant.ofEpochMilli( t.startEvent ), Instant.ofEpochMilli( t.lastEvent ), measures, measures.t( 0 ) );
+			me.compactChargingPeriods = options.compactChargingPeriods;
+			phase = TarificationEvents.begin( "CHECK_TARIFFS" );
+			event.elements = me.checkTariffs( tariffs, null, metrics );
+			TarificationEvents.end( phase, measures.size() );
+
+			if( timed ) t0 = System.nanoTime();
+			phase = TarificationEvents.begin( "FILL_COST" );
+			FixedPointTotals totals = ( options.fixedPoint ? new FixedPointTotals() : null );
+			me.fillCost( cdr, totals, new OcpiTarification.UsedFlats( null ), 0, measures.size(), null );
+			if( totals != null ) totals.writeTo( cdr );
+			TarificationEvents.end( phase, measures.size() );
+			if( timed ) {
+				metrics.phase( TarificationMetrics.Phase.FILL_COST, System.nanoTime()-t0 );
+				metrics.chargingPeriods( cdr.getChargingPeriods().size() );
+			}
+		}
+
+		session.setKwh( cdr.getTotalEnergy() );
+		session.setTotalCost( cdr.getTotalCost() );
+
+		event.sessionId = session.getId();
+		event.measures = measures.size();
+		TarificationEvents.commit( event, pathological, start, options );
+
+		return cdr;
+	}
+
+	/*
+	 * explanation of the last getCdr() or getSession(): all the charging
+	 * periods, but the restrictions only from the first row not accounted yet.
+	 * null if TarificationOptions.trace was not set
+	 */
+	public TarificationTrace getTrace() {
+		return trace;
+	}
+}
@@ -0,0 +1,342 @@
+package com.llocer.ev.tarification;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.llocer.ev.ocpp.msgs20.ChargingStateEnum;
+import com.llocer.ev.ocpp.msgs20.MeasurandEnum;
+import com.llocer.ev.ocpp.msgs20.OcppMeterValue;
+import com.llocer.ev.ocpp.msgs20.OcppSampledValue;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+/*
+ * Collects in a single traversal of the events the charging times and
+ * every measurand, each one to its own stream of measures. The streams are
+ * merged in the timeline as the events arrive; cumulative values of the
+ * last rows are pending until a later measure of them is received.
+ *
+ * With a Downsampler, the redundant rows are dropped once the following
+ * row is stable.
+ */
+class MeasureCollector {
+	private final long tariffStart;
+
+	private final TariffMeasures events = new TariffMeasures(); // charging times
+	private final TariffMeasures energy = new TariffMeasures();
+	private final TariffMeasures current = new TariffMeasures();
+	private final TariffMeasures power = new TariffMeasures();
+
+	private final TariffMeasures[] streams = { energy, current, power, events }; // on equal t, later streams prevail
+	private final int[] next = new int[streams.length]; // first row of each stream not merged, 0 between merges
+
+	private final TariffMeasures timeline = new TariffMeasures();
+	private final int[] last = new int[TariffMeasures.COLUMNS.length]; // last timeline row with a measure of each column
+
+	private long reservationDuration = 0L;
+	private long chargingDuration = 0L;
+	private long parkingDuration = 0L;
+	private long previousT = 0L;
+	private Boolean charging = null; // null: reservation, false: parking, true: charging
+
+	private boolean firstEnergy = true;
+	private double energyStart = 0.0;
+
+	private final Downsampler downsampler; // null: all the rows are kept
+	private int decided = 1; // rows before it are never dropped
+
+	MeasureCollector( long tariffStart ) {
+		this( tariffStart, null );
+	}
+
+	MeasureCollector( long tariffStart, Downsampler downsampler ) {
+		this.tariffStart = tariffStart;
+		this.downsampler = downsampler;
+		Arrays.fill( last, -1 );
+	}
+
+	/*
+	 * events must be added in order, their meter values must not be
+	 * previous to the preceding event
+	 */
+	void add( OcppTransactionEventRequest event ) {
+		addEvent( event.getTimestamp().toEpochMilli(),
+				event.getTransactionInfo() == null ? null : event.getTransactionInfo().getChargingState() );
+
+		List<OcppMeterValue> meters = event.getMeterValue();
+		if( meters != null ) {
+			for( OcppMeterValue meter : meters ) {
+				List<OcppSampledValue> sampledValues = meter.getSampledValue();
+				if( sampledValues == null ) continue;
+
+				long t = meter.getTimestamp().toEpochMilli();
+				for( OcppSampledValue sampledValue : sampledValues ) {
+					if( !isCollected( sampledValue.getMeasurand() ) ) continue;
+					addSample( t, sampledValue.getMeasurand(), getValue( sampledValue ) );
+				}
+			}
+		}
+
+		merge();
+	}
+
+	/*
+	 * value of a sample in Wh, A or W
+	 */
+	static double getValue( OcppSampledValue sampleValue ) {
+		double res = sampleValue.getValue(); 
+		
+		if( sampleValue.getUnitOfMeasure() != null ) {
+			if( sampleValue.getUnitOfMeasure().getMultiplier() != null ) {
+				res *= Math.pow( 10, sampleValue.getUnitOfMeasure().getMultiplier() );
+			}
+
+			if( sampleValue.getUnitOfMeasure().getUnit() == null ) {
+				sampleValue.getUnitOfMeasure().setUnit( "Wh" ); // default
+			}
+			
+			switch( sampleValue.getUnitOfMeasure().getUnit() ) {
+			case "kWh":
+				res *= 1000;
+				break;
+			default:
+				break;
+			}
+		}
+
+		return res;
+	}
+
+	/*
+	 * measurands used by the tarification
+	 */
+	static boolean isCollected( MeasurandEnum measurand ) {
+		if( measurand == null ) return false;
+
+		switch( measurand ) {
+		case ENERGY_ACTIVE_IMPORT_REGISTER:
+		case CURRENT_IMPORT:
+		case POWER_ACTIVE_IMPORT:
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * an event is added as addEvent(), then addSample() for each one of its
+	 * sampled values and merge(); t in epoch milliseconds,
+	 * chargingState: null if not changed
+	 */
+	void addEvent( long t, ChargingStateEnum chargingState ) {
+		t -= tariffStart;
+
+		// charging state until now
+		if( charging == null ) {
+			// reservation
+			reservationDuration += t-previousT;
+
+		} else if ( charging ) {
+			// charging
+			chargingDuration += t-previousT;
+
+		} else { // charging == false
+			// parking
+			parkingDuration += t-previousT;
+
+		}
+
+		previousT = t;
+
+		int tm = events.add( t );
+		events.setTime( Column.RESERVATION_TIME, tm, reservationDuration );
+		events.setTime( Column.CHARGING_TIME, tm, chargingDuration );
+		events.setTime( Column.PARKING_TIME, tm, parkingDuration );
+
+		if( chargingState != null ) {
+			// charging state from now
+			switch( chargingState ) {
+			case CHARGING:
+			case SUSPENDED_EV:
+				charging = true;
+				break;
+
+			case EV_CONNECTED:
+			case IDLE:
+			case SUSPENDED_EVSE:
+				// parking
+				charging = false;
+				break;
+
+			}
+		}
+
+		if( Boolean.FALSE.equals( charging ) ) {
+			events.setValue( Column.CURRENT, tm, 0.0 );
+			events.setValue( Column.POWER, tm, 0.0 );
+		}
+	}
+
+	/*
+	 * value in Wh, A or W
+	 */
+	void addSample( long t, MeasurandEnum measurand, double value ) {
+		t -= tariffStart;
+
+		switch( measurand ) {
+		case ENERGY_ACTIVE_IMPORT_REGISTER: {
+			if( firstEnergy ) {
+				// first energy sample
+				energyStart = value;
+				firstEnergy = false;
+			}
+			energy.setValue( Column.ENERGY, energy.add( t ), value-energyStart );
+			break;
+		}
+
+		case CURRENT_IMPORT:
+			current.setValue( Column.CURRENT, current.add( t ), value );
+			break;
+
+		case POWER_ACTIVE_IMPORT:
+			power.setValue( Column.POWER, power.add( t ), value );
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	void merge() {
+		merge( previousT );
+		if( downsampler != null ) reduce();
+	}
+
+	/*
+	 * downsampling of the rows whose following row is stable: their values,
+	 * and those of the rows before them, will not change any more
+	 */
+	private void reduce() {
+		while( decided+1 < stableRows() ) {
+			if( downsampler.isDropped( timeline, decided-1, decided, decided+1 ) ) {
+				timeline.remove( decided );
+				for( int c = 0; c < last.length; c++ ) {
+					if( last[c] >= decided ) last[c]--;
+				}
+			} else {
+				decided++;
+			}
+		}
+	}
+
+	/*
+	 * k-way merge of the streams until horizon, one row per distinct t;
+	 * merged rows are removed from the streams, the timeline has their values
+	 */
+	private void merge( long horizon ) {
+		while( true ) {
+			long tmin = Long.MAX_VALUE;
+			for( int k = 0; k < streams.length; k++ ) {
+				if( next[k] < streams[k].size() && streams[k].t( next[k] ) < tmin ) {
+					tmin = streams[k].t( next[k] );
+				}
+			}
+			if( tmin > horizon ) break;
+
+			int n = timeline.add( tmin );
+			for( int k = 0; k < streams.length; k++ ) {
+				while( next[k] < streams[k].size() && streams[k].t( next[k] ) == tmin ) {
+					timeline.copyValues( streams[k], next[k]++, n );
+				}
+			}
+
+			for( Column c : TariffMeasures.COLUMNS ) {
+				if( c == Column.DURATION ) continue;
+
+				if( timeline.has( c, n ) ) {
+					if( c.cumulative && last[c.ordinal()] >= 0 ) {
+						// fill the gap since the previous measure
+						for( int i = last[c.ordinal()]+1; i < n; i++ ) {
+							timeline.interpolate( c, i, timeline, last[c.ordinal()], timeline, n );
+						}
+					}
+					last[c.ordinal()] = n;
+
+				} else if( !c.cumulative && n > 0 && timeline.has( c, n-1 ) ) {
+					// copy previous
+					timeline.copyValue( c, n, timeline, n-1 );
+
+				}
+			}
+		}
+
+		for( int k = 0; k < streams.length; k++ ) {
+			streams[k].remove( 0, next[k] );
+			next[k] = 0;
+		}
+	}
+
+	/*
+	 * rows merged until now
+	 */
+	int size() {
+		return timeline.size();
+	}
+
+	long t( int i ) {
+		return timeline.t( i );
+	}
+
+	/*
+	 * number of first rows whose values will not change with new events
+	 */
+	int stableRows() {
+		int res = timeline.size();
+		for( Column c : TariffMeasures.COLUMNS ) {
+			if( c.cumulative && last[c.ordinal()] >= 0 ) {
+				res = Math.min( res, last[c.ordinal()]+1 );
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * rows from..size-1 of the timeline, pending values as if there were no more events
+	 */
+	TariffMeasures measures( int from ) {
+		TariffMeasures res = timeline.copy( from );
+
+		for( Column c : TariffMeasures.COLUMNS ) {
+			if( !c.cumulative || c == Column.DURATION ) continue;
+
+			int l = last[c.ordinal()];
+			if( l < 0 || l == timeline.size()-1 ) continue;
+
+			// first measure after the horizon, if any
+			TariffMeasures nextStream = null;
+			int nextRow = -1;
+			for( int k = 0; k < streams.length; k++ ) {
+				for( int j = next[k]; j < streams[k].size(); j++ ) {
+					if( !streams[k].has( c, j ) ) continue;
+
+					if( nextStream == null || streams[k].t( j ) <= nextStream.t( nextRow ) ) {
+						nextStream = streams[k];
+						nextRow = j;
+					}
+					break;
+				}
+			}
+
+			for( int i = Math.max( l+1, from ); i < timeline.size(); i++ ) {
+				if( nextStream != null ) {
+					res.interpolate( c, i-from, timeline, l, nextStream, nextRow );
+				} else {
+					res.copyValue( c, i-from, timeline, l );
+				}
+			}
+		}
+
+		return res;
+	}
+}
@@ -1,18 +1,19 @@
 package com.llocer.ev.tarification;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.LocalDate;
-import java.time.LocalTime;
 import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.function.BiConsumer;
+import java.util.Objects;
 
-import com.llocer.common.Log;
 import com.llocer.common.Tuple2;
 import com.llocer.ev.ocpi.msgs22.OcpiCdr;
 import com.llocer.ev.ocpi.msgs22.OcpiChargingPeriod;
@@ -20,150 +21,159 @@ import com.llocer.ev.ocpi.msgs22.OcpiDimension;
 import com.llocer.ev.ocpi.msgs22.OcpiDimension.CdrDimensionType;
 import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
 import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent.Type;
-import com.llocer.ev.ocpi.msgs22.OcpiRestrictions;
 import com.llocer.ev.ocpi.msgs22.OcpiSession;
 import com.llocer.ev.ocpi.msgs22.OcpiTariff;
-import com.llocer.ev.ocpi.msgs22.OcpiTariffElement;
-import com.llocer.ev.ocpp.msgs20.MeasurandEnum;
 import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+import com.llocer.ev.tarification.TariffMeasures.Column;
 
 public class OcpiTarification {
 
-	private final List<OcppTransactionEventRequest> events;
 	private final long tariffStart;
+	private final ZoneId zone; // of calendar restrictions
 	
-	private OcppTransactionEventRequest startEvent = null;
-	private OcppTransactionEventRequest lastEvent = null;
+	private final Instant startEvent; // timestamps of the first and last events
+	private final Instant lastEvent;
+
+	private final TariffMeasures tariffPeriods; // all interval with energy measures
+	private final long from; // evaluated interval, previous rows are only used for thresholds
+
+	boolean compactChargingPeriods = false; // see TarificationOptions.compactChargingPeriods
+
+	/*
+	 * tariffs and price components of the row of the last charging period,
+	 * null if none: set by the caller when that period was accounted by another
+	 * evaluation, so that compactChargingPeriods merges across them
+	 */
+	Map<Type,Tuple2<OcpiTariff,OcpiPriceComponent>> lastComponents = null;
+
+	/*
+	 * set by the caller to the t before which the rows are final, to get in
+	 * horizon the t before which the flags, and so the rows assigned, are
+	 * also final: and() keeps the transitions of a flags only while the
+	 * other has more, so a later row may add or remove earlier ones.
+	 * Long.MIN_VALUE if not tracked.
+	 */
+	long stable = Long.MIN_VALUE;
+	long horizon = Long.MAX_VALUE;
+
+	/*
+	 * FLAT price components already accounted, each is charged only once.
+	 * Those of parent are not modified: a poll adds its tail to a new
+	 * UsedFlats over the committed one, without copying it.
+	 */
+	static final class UsedFlats {
+		private final UsedFlats parent;
+		private final Map<OcpiPriceComponent,Boolean> used = new IdentityHashMap<OcpiPriceComponent,Boolean>();
+
+		UsedFlats( UsedFlats parent ) {
+			this.parent = parent;
+		}
 
-	private TariffMeasures tariffPeriods = null; // all interval with energy measures
+		boolean contains( OcpiPriceComponent priceComponent ) {
+			return used.containsKey( priceComponent ) || ( parent != null && parent.contains( priceComponent ) );
+		}
 
-	public OcpiTarification( List<OcppTransactionEventRequest> events, OcpiSession session ) {
-		this.events = events;
-		this.tariffStart = session.getStartDatetime().toEpochMilli();
+		/*
+		 * returns false if it was already used
+		 */
+		boolean add( OcpiPriceComponent priceComponent ) {
+			if( contains( priceComponent ) ) return false;
+			used.put( priceComponent, Boolean.TRUE );
+			return true;
+		}
 	}
 
-	private void initChargingTimes() {
+	private static final class Restricted {
+		final TariffFlags flags; // null: not applicable
+		final int rows; // tariffPeriods.size() of the thresholds, -1 if none
+		final long horizon; // of the flags alone
 
-		long reservationDuration = 0L;
-		long chargingDuration = 0L;
-		long parkingDuration = 0L;
-		long previousT = 0L;
-		Boolean charging = null; // null: reservation, false: parking, true: charging
-
-		Iterator<OcppTransactionEventRequest> eventsIt = events.iterator();
-		while( eventsIt.hasNext() ) {
-			OcppTransactionEventRequest event =  eventsIt.next();
-			
-			long t = event.getTimestamp().toEpochMilli()-tariffStart;
-			
-			// charging state until now
-			if( charging == null ) {
-				// reservation
-				reservationDuration += t-previousT;
-				
-			} else if ( charging ) {
-				// charging
-				chargingDuration += t-previousT;
-				
-			} else { // charging == false
-				// parking
-				parkingDuration += t-previousT;
-				
-			}
-			
-			previousT = t;
-			
-			TariffMeasure tm = new TariffMeasure(t);
-			tm.totalReservationTime = reservationDuration;
-			tm.totalChargingTime = chargingDuration;
-			tm.totalParkingTime = parkingDuration;
-			
-			if( event.getTransactionInfo() != null && event.getTransactionInfo().getChargingState() != null ) {
-				// charging state from now
-				switch( event.getTransactionInfo().getChargingState() ) { 
-				case CHARGING:
-				case SUSPENDED_EV:
-					charging = true;
-					break;
-
-				case EV_CONNECTED:
-				case IDLE:
-				case SUSPENDED_EVSE:
-					// parking
-					charging = false;
-					break;
-
-				}
-			}
-			
-			if( !charging ) {
-				tm.current = 0.0;
-				tm.power = 0.0;
-			}
-			
-			tariffPeriods.add( tm );
+		Restricted( TariffFlags flags, int rows, long horizon ) {
+			this.flags = flags;
+			this.rows = rows;
+			this.horizon = horizon;
 		}
 	}
 
-	private TariffMeasures collectMeasures( MeasurandEnum measurand, boolean accumulative, BiConsumer<TariffMeasure, Double> setter ) {
-		TariffMeasures res = new TariffMeasures();
-
-		TariffMeasure tm = null;
-		double vStart = 0;
-		double v = 0.0;
-		Iterator<Tuple2<Instant, Double>> sampledValueIt = new SampledValueIterator( this.events, measurand );
-		while( sampledValueIt.hasNext() ) {
-			Tuple2<Instant,Double> sample = sampledValueIt.next();
-//			Log.debug( "Tariffication.initMeasures: sample=%s", sample );
-
-			long t = sample.f1.toEpochMilli()-tariffStart;
-			
-			if( tm == null && accumulative ) {
-				// first energy sample
-				vStart = sample.f2;
-			}
-			
-			v = sample.f2-vStart;
+	/*
+	 * flags of an element valid nowhere whose assign() would not change the
+	 * timeline, see isInert()
+	 */
+	private static final TariffFlags NONE = new TariffFlags( 1 );
+
+	/*
+	 * restrictions already evaluated, all of an element and each calendar
+	 * one, by CompiledTariff.Key: catalogs repeat them in many elements and
+	 * tariffs. The flags are shared read only.
+	 */
+	private final Map<CompiledTariff.Key,Restricted> restricted = new HashMap<CompiledTariff.Key,Restricted>();
+	private final Map<CompiledTariff.Key,TariffFlags> calendarFlags = new HashMap<CompiledTariff.Key,TariffFlags>();
+
+	OcpiTarification( long tariffStart, ZoneId zone, Instant startEvent, Instant lastEvent, TariffMeasures tariffPeriods, long from ) {
+		this.tariffStart = tariffStart;
+		this.zone = zone;
+		this.startEvent = startEvent;
+		this.lastEvent = lastEvent;
+		this.tariffPeriods = tariffPeriods;
+		this.from = from;
+	}
 
-			tm = new TariffMeasure( t );
-			setter.accept( tm, v );
-			res.add( tm );
+	/*
+	 * thresholds: flags of the thresholds of the element
+	 * returns null if not applicable, NONE if inert, the flags must not be modified
+	 */
+	TariffFlags checkRestrictions( CompiledTariff.Element element, ThresholdPlan thresholds, TarificationTrace trace ) {
+		if( !element.restricted || trace != null ) return evaluateRestrictions( element, thresholds, trace );
+
+		// assign() may insert rows, that may move the threshold crossings
+		int rows = ( element.thresholds.length == 0 ? -1 : tariffPeriods.size() );
+		Restricted res = restricted.get( element.restrictionsKey );
+		if( res == null || res.rows != rows || ( res.flags == NONE && !isInert( NONE, element ) ) ) {
+			long h = horizon;
+			horizon = Long.MAX_VALUE;
+			res = new Restricted( evaluateRestrictions( element, thresholds, null ), rows, horizon );
+			restricted.put( element.restrictionsKey, res );
+			horizon = h;
 		}
-
-		return res;
+		horizon = Math.min( horizon, res.horizon );
+		return res.flags;
 	}
-	
-	private TariffFlags checkRestrictions( OcpiRestrictions restrictions ) {
+
+	private TariffFlags evaluateRestrictions( CompiledTariff.Element element, ThresholdPlan thresholds, TarificationTrace trace ) {
 //		TariffFlags res = TariffFlags.allInterval( this.session.getEndDatetime().toEpochMilli()-tariffStart );
-		TariffFlags res = TariffFlags.allInterval( this.lastEvent.getTimestamp().toEpochMilli()-tariffStart );
+		long tariffEnd = this.lastEvent.toEpochMilli();
+		TariffFlags res = TariffFlags.allInterval( tariffEnd-tariffStart );
+		boolean open = true; // later events only move its end
 
-		if( restrictions == null ) return res; 
+		if( !element.restricted ) return res; 
 		
-		if( restrictions.getReservation() == null ) {
+		if( element.reservation == null ) {
 			if( this.startEvent == null ) return null; // no parking nor charging time
 			
-			long tReservationEnd = this.startEvent.getTimestamp().toEpochMilli()-this.tariffStart;
+			long tReservationEnd = this.startEvent.toEpochMilli()-this.tariffStart;
 			if( tReservationEnd != 0L ) {
 				// there are some reservation time, exclude it
 				TariffFlags valid = new TariffFlags();
 				valid.add( 0L, false );
 				valid.add( tReservationEnd, true );
-				res.and( valid );
+				if( trace != null ) trace.restriction( "no reservation", valid );
+				open = and( res, open, valid, true );
 			}
 
 		} else {
-			switch( restrictions.getReservation() ) {
+			switch( element.reservation ) {
 			case RESERVATION:
 				if( this.startEvent == null ) return null; // reservation expired, not applicable
 
-				long tReservationEnd = this.startEvent.getTimestamp().toEpochMilli()-this.tariffStart;
+				long tReservationEnd = this.startEvent.toEpochMilli()-this.tariffStart;
 				if( tReservationEnd == 0L ) return null; // no reservation time
 
 				// restrict to reservation time
 				TariffFlags valid = new TariffFlags();
 				valid.add( 0L, true );
 				valid.add( tReservationEnd, false );
-				res.and( valid );
+				if( trace != null ) trace.restriction( "reservation", valid );
+				open = and( res, open, valid, true );
 				break;
 				
 			case RESERVATION_EXPIRES:
@@ -173,247 +183,251 @@ public class OcpiTarification {
 			}
 		}
 
-		if(  restrictions.getStartTime() != null 
-		  && restrictions.getEndTime() != null ) {
-			ZonedDateTime transactionStart = startEvent.getTimestamp().
-								atZone(ZoneId.systemDefault());
-			ZonedDateTime transactionEnd = lastEvent.getTimestamp().
-								atZone(ZoneId.systemDefault());
-			Log.debug("transaction start=%s end=%s", transactionStart, transactionEnd );
-			
-			ZonedDateTime start = transactionStart.with( LocalTime.parse( restrictions.getStartTime() ) );
-			ZonedDateTime end = transactionStart.with( LocalTime.parse( restrictions.getEndTime() ) );
-			if( start.isAfter( end ) ) end.plusDays(1);
-			Log.debug("start=%s end=%s", start, end );
-
-			TariffFlags valid = new TariffFlags();
-			valid.add( 0, transactionStart.isAfter(start) && transactionStart.isBefore(end) );
-			
-			while( start.isBefore( transactionEnd )) {
-				Log.debug("start=%s end=%s", start, end );
-				
-				if( start.isAfter( transactionStart )) {
-					valid.add( start.toEpochSecond()-tariffStart, true );
-				}
-				
-				if(  end.isAfter( transactionStart ) 
-				  && end.isBefore( transactionEnd ) ) {
-					valid.add( end.toEpochSecond()-tariffStart, false );
-					
-				}
-				
-				start = start.plusDays(1);			
-				end = end.plusDays(1);			
-			}
-			valid.dump( "time" );
-			res.and( valid );
-		}
-
-		if( restrictions.getStartDate() != null ) {
-			Instant start = LocalDate.parse( restrictions.getStartDate() ).atStartOfDay().atZone( ZoneId.systemDefault() ).toInstant();
-
-			TariffFlags valid = new TariffFlags();
-			if( startEvent.getTimestamp().isBefore( start ) ) {
-				// transaction.start < start
-				valid.add( 0L, false );
-				
-				if( lastEvent.getTimestamp().isBefore(start) ) {
-					// transaction.start < transaction.end < start: nothing to do
-					
-				} else {	
-					// transaction.start < start <= transaction.end
-					valid.add( start.toEpochMilli()-tariffStart, true );
-					
-				}
-				
-			} else {
-				// start <= transaction.start
-				valid.add( 0, true );
-				
-			}
-			
-			res.and( valid );
+		// calendar restrictions first, timeline scans at the end
+		if( element.startDate != null ) {
+			TariffFlags valid = calendarFlags.computeIfAbsent( element.startDateKey, k -> startDateFlags( element.startDate ) );
+			if( trace != null ) trace.restriction( "start date", valid );
+			open = and( res, open, valid, true );
+			if( isInert( res, element ) ) return NONE;
 		}
 		
-		if( restrictions.getEndDate() != null ) {
-			Instant end = LocalDate.parse( restrictions.getEndDate() ).atStartOfDay().atZone( ZoneId.systemDefault() ).toInstant();
-
-			TariffFlags valid = new TariffFlags();
-			if( startEvent.getTimestamp().isBefore( end ) ) {
-				// transaction.start < end
-				valid.add( 0L, true );
-				
-				if( lastEvent.getTimestamp().isBefore(end) ) {
-					// transaction.start < transaction.end < end: nothing to do
-
-				} else {
-					// transaction.start < end <= transaction.end
-					valid.add( end.toEpochMilli()-tariffStart, false );
-					
-				}
-				
-			} else {
-				// end <= transaction.start
-				valid.add( 0L, false );
-				
-			}
-			
-			res.and( valid );
+		if( element.endDate != null ) {
+			TariffFlags valid = calendarFlags.computeIfAbsent( element.endDateKey, k -> endDateFlags( element.endDate ) );
+			if( trace != null ) trace.restriction( "end date", valid );
+			open = and( res, open, valid, true );
+			if( isInert( res, element ) ) return NONE;
 		}
 		
-		if( restrictions.getMinKwh() != null ) {
-			TariffFlags valid = tariffPeriods.threshold( false /* min */,  restrictions.getMinKwh()*1000L, (tm)->(tm.totalEnergy) );
-			valid.dump( "kWh min" );
-			res.and( valid );
+		if( element.dayOfWeek != null ) {
+			TariffFlags valid = calendarFlags.computeIfAbsent( element.dayOfWeekKey, k -> element.dayOfWeekIndex( zone ).flags( tariffStart, tariffEnd, tariffStart ) );
+			if( trace != null ) trace.restriction( "day of week", valid );
+			open = and( res, open, valid, true );
+			if( isInert( res, element ) ) return NONE;
 		}
 
-		if( restrictions.getMaxKwh() != null ) {
-			TariffFlags valid = tariffPeriods.threshold( true,  restrictions.getMaxKwh()*1000L, (tm)->(tm.totalEnergy) );
-			valid.dump( "kWh max" );
-			res.and( valid );
+		if( element.startTime != null ) {
+			TariffFlags valid = calendarFlags.computeIfAbsent( element.timeKey, k -> element.timeIndex( zone ).flags( tariffStart, tariffEnd, tariffStart ) );
+			if( trace != null ) trace.restriction( "time", valid );
+			open = and( res, open, valid, true );
+			if( isInert( res, element ) ) return NONE;
 		}
 
-		if(  restrictions.getMinCurrent() != null ) {
-			TariffFlags valid = tariffPeriods.threshold( false /* min */,  restrictions.getMinCurrent()*1000L, TariffMeasure::getCurrent );
-			valid.dump( "current min" );
-			res.and( valid );
+		for( CompiledTariff.Threshold threshold : element.thresholds ) {
+			TariffFlags valid = thresholds.flags( threshold );
+			if( trace != null ) trace.restriction( threshold.label, valid );
+			open = and( res, open, valid, false );
+			if( isInert( res, element ) ) return NONE;
 		}
 
-		if(  restrictions.getMaxCurrent() != null ) {
-			TariffFlags valid = tariffPeriods.threshold( true /* max */,  restrictions.getMaxCurrent()*1000L, TariffMeasure::getCurrent );
-			valid.dump( "current max" );
-			res.and( valid );
-		}
+		return res;
+	}
 
-		if(  restrictions.getMinPower() != null ) {
-			TariffFlags valid = tariffPeriods.threshold( false /* min */,  restrictions.getMinPower()*1000L, TariffMeasure::getPower );
-			valid.dump( "current min" );
-			res.and( valid );
+	/*
+	 * res.and( valid ), lowering horizon to the first transition that and()
+	 * keeps or drops depending on transitions from stable on.
+	 * open: res has transitions from stable on, whatever the later events;
+	 * calendar: so has valid if it has now, they do not depend on the rows.
+	 * Returns whether the result has them.
+	 */
+	private boolean and( TariffFlags res, boolean open, TariffFlags valid, boolean calendar ) {
+		boolean validOpen = calendar && valid.size() > 0 && valid.t( valid.size()-1 ) >= stable;
+		if( stable != Long.MIN_VALUE ) {
+			// those of valid after the end of res
+			int i = res.before( stable );
+			if( !open && i >= 0 ) horizon = Math.min( horizon, valid.after( res.t( i ) ) );
+
+			// those of res after the end of valid, when it ends not valid
+			i = valid.before( stable );
+			if( !validOpen && i >= 0 && !valid.ok( i ) ) horizon = Math.min( horizon, res.after( valid.t( i ) ) );
 		}
+		res.and( valid );
+		return open && validOpen;
+	}
 
-		if(  restrictions.getMaxPower() != null ) {
-			TariffFlags valid = tariffPeriods.threshold( true /* max */,  restrictions.getMaxCurrent()*1000L, TariffMeasure::getPower );
-			valid.dump( "current max" );
-			res.and( valid );
-		}
+	/*
+	 * nothing is valid and assign() of the element would not change the
+	 * timeline: it would still insert a row at each transition after a row
+	 * without a component of one of its types
+	 */
+	private boolean isInert( TariffFlags flags, CompiledTariff.Element element ) {
+		return flags.isNone() && tariffPeriods.hasComponents( element.priceComponents, from );
+	}
 
-		if( restrictions.getMinDuration() != null ) {
-			TariffFlags valid = tariffPeriods.threshold( false, restrictions.getMinDuration()*1000L, (tm)->(double)(tm.t) );
-			valid.dump( "duration min" );
-			res.and( valid );
-		}
+	private TariffFlags startDateFlags( LocalDate startDate ) {
+		Instant start = startDate.atStartOfDay( zone ).toInstant();
 
-		if( restrictions.getMaxDuration() != null ) {
-			TariffFlags valid = tariffPeriods.threshold( true,  restrictions.getMaxDuration()*1000L, (tm)->(double)(tm.t) );
-			valid.dump( "duration max" );
-			res.and( valid );
+		TariffFlags valid = new TariffFlags();
+		if( startEvent.isBefore( start ) ) {
+			// transaction.start < start
+			valid.add( 0L, false );
+			
+			if( lastEvent.isBefore(start) ) {
+				// transaction.start < transaction.end < start: nothing to do
+				
+			} else {	
+				// transaction.start < start <= transaction.end
+				valid.add( start.toEpochMilli()-tariffStart, true );
+				
+			}
+			
+		} else {
+			// start <= transaction.start
+			valid.add( 0, true );
+			
 		}
+		return valid;
+	}
 
-		if(  restrictions.getDayOfWeek() != null ) {
-			ZonedDateTime transactionStart = startEvent.getTimestamp().
-					truncatedTo(ChronoUnit.SECONDS).
-					atZone(ZoneId.systemDefault());
-			ZonedDateTime transactionEnd = lastEvent.getTimestamp().
-					truncatedTo(ChronoUnit.SECONDS).
-					atZone(ZoneId.systemDefault());
-			Log.debug("Tariffication.checkRestrictions.dayOfWeek: transaction start=%s end=%s", transactionStart, transactionEnd );
-
-			ZonedDateTime start = transactionStart.with( LocalTime.parse( "00:00:00" ) );
-			ZonedDateTime end = transactionStart.with( LocalTime.parse( "23:59:59" ) );
-			if( start.isAfter( end ) ) end.plusDays(1);
-			Log.debug("Tariffication.checkRestrictions.dayOfWeek: start=%s end=%s", start, end );
-
-			TariffFlags valid = new TariffFlags();
-			valid.add( 0L, transactionStart.isAfter(start) 
-						&& transactionStart.isBefore(end)
-						&& restrictions.getDayOfWeek().contains(transactionStart.getDayOfWeek() ));
-
-			while( start.isBefore( transactionEnd )) {
-				Log.debug("Tariffication.checkRestrictions.dayOfWeek: start=%s end=%s", start, end );
-
-				if( start.isAfter( transactionStart )) {
-					valid.add( start.toEpochSecond()-tariffStart,
-							restrictions.getDayOfWeek().contains(start.getDayOfWeek() ));
-				}
-
-				if( end.isAfter( transactionStart ) 
-				 && end.isBefore( transactionEnd ) ) {
-					valid.add( end.toEpochSecond()-tariffStart, false );
+	private TariffFlags endDateFlags( LocalDate endDate ) {
+		Instant end = endDate.atStartOfDay( zone ).toInstant();
 
-				}
+		TariffFlags valid = new TariffFlags();
+		if( startEvent.isBefore( end ) ) {
+			// transaction.start < end
+			valid.add( 0L, true );
+			
+			if( lastEvent.isBefore(end) ) {
+				// transaction.start < transaction.end < end: nothing to do
 
-				start = start.plusDays(1);			
-				end = end.plusDays(1);			
+			} else {
+				// transaction.start < end <= transaction.end
+				valid.add( end.toEpochMilli()-tariffStart, false );
+				
 			}
-			valid.dump( "Tariffication.checkRestrictions.dayOfWeek" );
-			res.and( valid );
+			
+		} else {
+			// end <= transaction.start
+			valid.add( 0L, false );
+			
 		}
-		
-		return res;
+		return valid;
 	}
 
-	private void checkTariffs( List<OcpiTariff> tariffs ) {
-
-		for( OcpiTariff tariff: tariffs ) {
-			for( OcpiTariffElement element : tariff.getElements() ) {
-		
-				TariffFlags assigned = checkRestrictions( element.getRestrictions() );
-				if( assigned == null ) continue; // not applicable at all
-				assigned.dump( "Tariffication.checkRestrictions: assigned" );
-				
-				for( OcpiPriceComponent priceComponent : element.getPriceComponents() ) {
-					Tuple2<OcpiTariff,OcpiPriceComponent> tariffAndElement = new Tuple2<OcpiTariff,OcpiPriceComponent>( tariff, priceComponent );
-					tariffPeriods.assign( tariffAndElement, assigned );
-					tariffPeriods.dump( "periods" );
-
-				}
+	/*
+	 * only the candidates of the index, in catalog order: the date restrictions
+	 * are relative to the first event, that may be before the session start.
+	 * When horizon is tracked, the elements that may apply after the last
+	 * event are evaluated too, but not assigned: once applicable, they may
+	 * keep transitions before it.
+	 * trace: null if not tracing
+	 * returns the number of elements evaluated
+	 */
+	int checkTariffs( TariffIndex tariffs, TarificationTrace trace, TarificationMetrics metrics ) {
+		long first = Math.min( tariffStart, startEvent.toEpochMilli() );
+		long last = lastEvent.toEpochMilli();
+
+		boolean timed = metrics.isEnabled();
+		long restrictionsNanos = 0L;
+		long assignNanos = 0L;
+		int transitions = 0;
+
+		int[] candidates = tariffs.candidates( first, last, zone );
+		int[] evaluated = ( stable == Long.MIN_VALUE ? candidates : tariffs.candidates( first, zone ) );
+		long t0 = ( timed ? System.nanoTime() : 0L );
+		ThresholdPlan thresholds = new ThresholdPlan( tariffPeriods, tariffs, evaluated );
+		if( timed ) restrictionsNanos += System.nanoTime()-t0;
+
+		int k = 0; // next of candidates
+		for( int e : evaluated ) {
+			CompiledTariff.Element element = tariffs.element( e );
+			if( k < candidates.length && candidates[k] == e ) {
+				k++;
+			} else {
+				// not yet applicable, valid nowhere
+				if( timed ) t0 = System.nanoTime();
+				checkRestrictions( element, thresholds, null );
+				if( timed ) restrictionsNanos += System.nanoTime()-t0;
+				continue;
+			}
+			if( trace != null ) trace.element( tariffs.tariff( e ).tariff.getId(), tariffs.indexInTariff( e ) );
+	
+			t0 = ( timed ? System.nanoTime() : 0L );
+			TariffFlags assigned = checkRestrictions( element, thresholds, trace );
+			if( assigned != null && assigned != NONE ) assigned = assigned.clip( from );
+			if( timed ) restrictionsNanos += System.nanoTime()-t0;
+
+			if( assigned == null || assigned == NONE ) continue; // not applicable at all
+			if( trace != null ) trace.assigned( assigned );
+			if( isInert( assigned, element ) ) continue; // not applicable in this window
+			
+			if( timed ) t0 = System.nanoTime();
+			tariffPeriods.assign( element.priceComponents, assigned );
+			if( timed ) {
+				assignNanos += System.nanoTime()-t0;
+				transitions += assigned.size();
 			}
 		}
+
+		if( timed ) {
+			metrics.phase( TarificationMetrics.Phase.RESTRICTIONS, restrictionsNanos );
+			metrics.phase( TarificationMetrics.Phase.ASSIGN, assignNanos );
+			metrics.elements( evaluated.length, tariffs.size()-evaluated.length );
+			metrics.flagTransitions( transitions );
+		}
+		return evaluated.length;
 	}
 	
-	private void addCost( OcpiCdr cdr, OcpiPriceComponent priceComponent, OcpiChargingPeriod chargingPeriod, TariffMeasure tm, TariffMeasure prev, boolean applyTimeStep, List<OcpiPriceComponent> usedFlats ) {
+	/*
+	 * totals: null to account in the double fields of cdr
+	 */
+	private void addCost( OcpiCdr cdr, FixedPointTotals totals, Tuple2<OcpiTariff, OcpiPriceComponent> tariffAndPriceComponent, OcpiChargingPeriod chargingPeriod, int tm, int prev, boolean applyTimeStep, UsedFlats usedFlats, TarificationTrace trace ) {
+		OcpiPriceComponent priceComponent = tariffAndPriceComponent.f2;
 		double cost = 0.0;
+		double volume = 1.0;
+		long fixedVolume = 0L; // when totals != null, see FixedPointTotals.add()
 
 		switch( priceComponent.getType() ) {
 		case FLAT: {
-			cost = priceComponent.getPrice();
-			for( OcpiPriceComponent u : usedFlats ) {
-				if( u == priceComponent ) cost = 0.0;
-			}
-			usedFlats.add(priceComponent);
+			boolean used = !usedFlats.add( priceComponent );
 
-			cdr.setTotalFixedCost( cdr.getTotalFixedCost()+cost );
+			if( totals != null ) {
+				fixedVolume = ( used ? 0L : 1L );
+			} else {
+				cost = ( used ? 0.0 : priceComponent.getPrice() );
+				cdr.setTotalFixedCost( cdr.getTotalFixedCost()+cost );
+			}
 			break;
 		}
 
 		case ENERGY: {
-			double amount = tm.getEnergy()-prev.getEnergy();
+			double amount = tariffPeriods.getEnergy(tm)-tariffPeriods.getEnergy(prev);
 			if( amount == 0.0 ) return;
 			
-			if( priceComponent.getStepSize() != null ) {
-				amount = Math.ceil( amount/priceComponent.getStepSize())*priceComponent.getStepSize();
+			if( totals != null ) {
+				// mWh
+				long milliAmount = FixedPointTotals.milli( tariffPeriods.getEnergy(tm) )-FixedPointTotals.milli( tariffPeriods.getEnergy(prev) );
+				if( priceComponent.getStepSize() != null ) {
+					milliAmount = FixedPointTotals.ceilStep( milliAmount, priceComponent.getStepSize()*1000L );
+				}
+				fixedVolume = milliAmount;
+				amount = (double)milliAmount/FixedPointTotals.MICRO;
+			} else {
+				if( priceComponent.getStepSize() != null ) {
+					amount = Math.ceil( amount/priceComponent.getStepSize())*priceComponent.getStepSize();
+				}
+				amount /= 1000.0;
+				cost = priceComponent.getPrice()*amount;
+				cdr.setTotalEnergy( cdr.getTotalEnergy()+amount );
+				cdr.setTotalEnergyCost( cdr.getTotalEnergyCost()+cost );
 			}
-			amount /= 1000.0;
-			cost = priceComponent.getPrice()*amount;
-			cdr.setTotalEnergy( cdr.getTotalEnergy()+amount );
-			cdr.setTotalEnergyCost( cdr.getTotalEnergyCost()+cost );
+			volume = amount;
 			
 			OcpiDimension dimension = new OcpiDimension();
 			dimension.setType( CdrDimensionType.ENERGY );
 			dimension.setVolume( amount );
 			chargingPeriod.getDimensions().add( dimension );
 			
-			if( tm.getCurrent() != null ) {
+			if( tariffPeriods.has( Column.CURRENT, tm ) ) {
 				dimension = new OcpiDimension();
 				dimension.setType( CdrDimensionType.CURRENT );
-				dimension.setVolume( tm.getCurrent() );
+				dimension.setVolume( tariffPeriods.getValue( Column.CURRENT, tm ) );
 				chargingPeriod.getDimensions().add( dimension );
 			}
 			
-			if( tm.getPower() != null ) {
+			if( tariffPeriods.has( Column.POWER, tm ) ) {
 				dimension = new OcpiDimension();
 				dimension.setType( CdrDimensionType.POWER );
-				dimension.setVolume( tm.getPower() );
+				dimension.setVolume( tariffPeriods.getValue( Column.POWER, tm ) );
 				chargingPeriod.getDimensions().add( dimension );
 			}
 			
@@ -422,16 +436,27 @@ public class OcpiTarification {
 		}
 
 		case PARKING_TIME: {
-			double amount = (tm.totalParkingTime-prev.totalParkingTime)/1000.0;
-			if( amount == 0.0 ) return;
+			long ms = tariffPeriods.getTime( Column.PARKING_TIME, tm )-tariffPeriods.getTime( Column.PARKING_TIME, prev );
+			if( ms == 0L ) return;
 			
-			if( applyTimeStep ) {
-				amount = Math.ceil( amount/priceComponent.getStepSize())*priceComponent.getStepSize();
+			double amount;
+			if( totals != null ) {
+				if( applyTimeStep ) {
+					ms = FixedPointTotals.ceilStep( ms, priceComponent.getStepSize()*1000L );
+				}
+				fixedVolume = ms;
+				amount = (double)ms/FixedPointTotals.MS_PER_HOUR;
+			} else {
+				amount = ms/1000.0;
+				if( applyTimeStep ) {
+					amount = Math.ceil( amount/priceComponent.getStepSize())*priceComponent.getStepSize();
+				}
+				amount /= 3600.0;
+				cost = priceComponent.getPrice()*amount;
+				cdr.setTotalParkingTime( cdr.getTotalParkingTime()+amount );
+				cdr.setTotalParkingCost( cdr.getTotalParkingCost()+cost );
 			}
-			amount /= 3600.0;
-			cost = priceComponent.getPrice()*amount;
-			cdr.setTotalParkingTime( cdr.getTotalParkingTime()+amount );
-			cdr.setTotalParkingCost( cdr.getTotalParkingCost()+cost );
+			volume = amount;
 			
 			OcpiDimension dimension = new OcpiDimension();
 			dimension.setType( CdrDimensionType.PARKING_TIME );
@@ -441,20 +466,31 @@ public class OcpiTarification {
 		}
 
 		case TIME: {
-			double amount = (tm.totalChargingTime-prev.totalChargingTime)/1000.0;
-			if( amount == 0.0 ) {
+			long ms = tariffPeriods.getTime( Column.CHARGING_TIME, tm )-tariffPeriods.getTime( Column.CHARGING_TIME, prev );
+			if( ms == 0L ) {
 				// could be is a reservation time
-				amount = (tm.totalReservationTime-prev.totalReservationTime)/1000.0;
+				ms = tariffPeriods.getTime( Column.RESERVATION_TIME, tm )-tariffPeriods.getTime( Column.RESERVATION_TIME, prev );
 			}
-			if( amount == 0.0 ) return;
+			if( ms == 0L ) return;
 			
-			if( applyTimeStep ) {
-				amount = priceComponent.getStepSize()*Math.ceil( amount/priceComponent.getStepSize() );
+			double amount;
+			if( totals != null ) {
+				if( applyTimeStep ) {
+					ms = FixedPointTotals.ceilStep( ms, priceComponent.getStepSize()*1000L );
+				}
+				fixedVolume = ms;
+				amount = (double)ms/FixedPointTotals.MS_PER_HOUR;
+			} else {
+				amount = ms/1000.0;
+				if( applyTimeStep ) {
+					amount = priceComponent.getStepSize()*Math.ceil( amount/priceComponent.getStepSize() );
+				}
+				amount /= 3600.0;
+				cost = priceComponent.getPrice()*amount;
+				cdr.setTotalTime( cdr.getTotalTime()+amount );
+				cdr.setTotalTimeCost( cdr.getTotalTimeCost()+cost );
 			}
-			amount /= 3600.0;
-			cost = priceComponent.getPrice()*amount;
-			cdr.setTotalTime( cdr.getTotalTime()+amount );
-			cdr.setTotalTimeCost( cdr.getTotalTimeCost()+cost );
+			volume = amount;
 
 			OcpiDimension dimension = new OcpiDimension();
 			dimension.setType( CdrDimensionType.TIME );
@@ -464,17 +500,27 @@ public class OcpiTarification {
 		}}
 
 		double vat = 0.0;
-		if( priceComponent.getVat() != null ) {
-			vat = cost*priceComponent.getVat()/100.0;
+		if( totals != null ) {
+			if( fixedVolume != 0L ) totals.add( priceComponent, fixedVolume );
+			if( trace != null ) {
+				// of this period alone, the totals are rounded once per price component
+				long fixedCost = FixedPointTotals.cost( priceComponent, fixedVolume );
+				cost = (double)fixedCost/FixedPointTotals.MICRO;
+				vat = (double)FixedPointTotals.vat( fixedCost, priceComponent.getVat() )/FixedPointTotals.MICRO;
+			}
+		} else {
+			if( priceComponent.getVat() != null ) {
+				vat = cost*priceComponent.getVat()/100.0;
+			}
+			cdr.setTotalCost( cdr.getTotalCost()+cost+vat );
+		}
+		if( trace != null ) {
+			boolean stepApplied = ( priceComponent.getType() == Type.ENERGY ? priceComponent.getStepSize() != null : applyTimeStep );
+			trace.component( tariffAndPriceComponent.f1.getId(), priceComponent, volume, stepApplied, cost, vat );
 		}
-		Log.debug( "type=%s cost=%f vat=%f", priceComponent.getType(), cost, vat );
-
-		cdr.setTotalCost( cdr.getTotalCost()+cost+vat );
 	}
 	
-	private void fillCost( OcpiCdr cdr ) {
-		List<OcpiPriceComponent> usedFlats = new LinkedList<OcpiPriceComponent>();
-		
+	static void initCost( OcpiCdr cdr ) {
 		cdr.setTotalCost(0.0);
 		cdr.setTotalFixedCost(0.0);
 		cdr.setTotalEnergy(0.0);
@@ -484,89 +530,156 @@ public class OcpiTarification {
 		cdr.setTotalParkingTime(0.0);
 		cdr.setTotalParkingCost(0.0);
 		cdr.setChargingPeriods( new LinkedList<OcpiChargingPeriod>() );
-
-		Iterator<TariffMeasure> tmIt = tariffPeriods.iterator();
-		if( !tmIt.hasNext() ) return;
-		
-		TariffMeasure prev = tmIt.next();
+	}
+	
+	/*
+	 * accounts the charging periods starting at rows first..to-1,
+	 * totals: null to account in the double fields of cdr,
+	 * trace: null if not tracing
+	 */
+	void fillCost( OcpiCdr cdr, FixedPointTotals totals, UsedFlats usedFlats, int first, int to, TarificationTrace trace ) {
+		int size = tariffPeriods.size();
+		if( size == 0 ) return;
 		
-		boolean hasNext = tmIt.hasNext();
-
-		if( !hasNext ) {
+		if( size == 1 ) {
+			if( first > 0 || to == 0 ) return;
+			
 			// only one TariffMeasure, account FLAT if any
-			Tuple2<OcpiTariff, OcpiPriceComponent> t2 = prev.getComponent(OcpiPriceComponent.Type.FLAT);
+			Tuple2<OcpiTariff, OcpiPriceComponent> t2 = tariffPeriods.getComponent( 0, OcpiPriceComponent.Type.FLAT );
 			if( t2 != null ) {
 				usedFlats.add( t2.f2 );
-				double cost = t2.f2.getPrice();
-				double vat = ( t2.f2.getVat() == null ? 0.0 : cost*t2.f2.getVat()/100.0 );
-				cdr.setTotalFixedCost( cdr.getTotalFixedCost()+cost );
-				cdr.setTotalCost( cdr.getTotalCost()+cost+vat );
+				double cost;
+				double vat;
+				if( totals != null ) {
+					totals.add( t2.f2, 1L );
+					long fixedCost = FixedPointTotals.cost( t2.f2, 1L );
+					cost = (double)fixedCost/FixedPointTotals.MICRO;
+					vat = (double)FixedPointTotals.vat( fixedCost, t2.f2.getVat() )/FixedPointTotals.MICRO;
+				} else {
+					cost = t2.f2.getPrice();
+					vat = ( t2.f2.getVat() == null ? 0.0 : cost*t2.f2.getVat()/100.0 );
+					cdr.setTotalFixedCost( cdr.getTotalFixedCost()+cost );
+					cdr.setTotalCost( cdr.getTotalCost()+cost+vat );
+				}
+				if( trace != null ) trace.component( t2.f1.getId(), t2.f2, 1.0, false, cost, vat );
 			}
+			return;
 		}
 		
-		while( hasNext ) {
-			TariffMeasure tm = tmIt.next();
-			hasNext = tmIt.hasNext();
+		for( int prev = first; prev < to && prev+1 < size; prev++ ) {
+			int tm = prev+1;
+			boolean hasNext = ( tm+1 < size );
 
 			OcpiChargingPeriod chargingPeriod = new OcpiChargingPeriod();
-			chargingPeriod.setStartDateTime( Instant.ofEpochMilli( tariffStart+prev.t ) );
+			chargingPeriod.setStartDateTime( Instant.ofEpochMilli( tariffStart+tariffPeriods.t(prev) ) );
 			chargingPeriod.setDimensions( new LinkedList<OcpiDimension>() );
-			cdr.getChargingPeriods().add(chargingPeriod);
+			if( !compactChargingPeriods ) cdr.getChargingPeriods().add(chargingPeriod);
+			if( trace != null ) trace.period( chargingPeriod.getStartDateTime() );
 			
-			for( Entry<Type, Tuple2<OcpiTariff, OcpiPriceComponent>> e : prev.componentsSet() ) {
+			for( Entry<Type, Tuple2<OcpiTariff, OcpiPriceComponent>> e : tariffPeriods.componentsSet( prev ) ) {
 				chargingPeriod.setTariffId( e.getValue().f1.getId() ); // Possible error in OCPI specification, should be a list
 
 				OcpiPriceComponent priceComponent = e.getValue().f2;
 				boolean applyTimeStep = false;
 				if( priceComponent.getStepSize() != null ) {
 					if(  !hasNext 
-					  || (  tm.getComponent( Type.PARKING_TIME ) == null 
-						 && tm.getComponent( Type.TIME) == null )) {
+					  || (  tariffPeriods.getComponent( tm, Type.PARKING_TIME ) == null 
+						 && tariffPeriods.getComponent( tm, Type.TIME ) == null )) {
 						applyTimeStep = true;
 					}
 				}
 				
-				this.addCost( cdr, e.getValue().f2, chargingPeriod, tm, prev, applyTimeStep, usedFlats );
+				this.addCost( cdr, totals, e.getValue(), chargingPeriod, tm, prev, applyTimeStep, usedFlats, trace );
+			}
+
+			if( compactChargingPeriods ) {
+				if( !merge( cdr.getChargingPeriods(), chargingPeriod, prev ) ) cdr.getChargingPeriods().add(chargingPeriod);
+				lastComponents = tariffPeriods.components( prev );
 			}
-			
-			prev = tm;
 		}
-		Log.debug( "Tariffication.evalPeriodstype: totalCost=%f", cdr.getTotalCost() );
+	}
+
+	/*
+	 * merges chargingPeriod, of rows prev..prev+1, into the last of periods when
+	 * it ends at row prev with the same price components (lastComponents) and
+	 * has the same dimensions: volumes are summed, CURRENT and POWER averaged
+	 * by duration.
+	 * The last period is replaced, not modified: it may be shared with other CDRs.
+	 * Only the charging periods change, totals are accounted per row anyway.
+	 */
+	private boolean merge( List<OcpiChargingPeriod> periods, OcpiChargingPeriod chargingPeriod, int prev ) {
+		if( lastComponents == null || periods.isEmpty() ) return false;
+		if( !tariffPeriods.sameComponents( prev, lastComponents ) ) return false;
+
+		int n = periods.size()-1;
+		OcpiChargingPeriod last = periods.get( n );
+		if( !Objects.equals( last.getTariffId(), chargingPeriod.getTariffId() ) ) return false;
+		if( last.getDimensions().size() != chargingPeriod.getDimensions().size() ) return false;
+
+		long lastMs = tariffPeriods.t( prev )-( last.getStartDateTime().toEpochMilli()-tariffStart );
+		long ms = tariffPeriods.t( prev+1 )-tariffPeriods.t( prev );
+
+		List<OcpiDimension> dimensions = new LinkedList<OcpiDimension>();
+		Iterator<OcpiDimension> it = chargingPeriod.getDimensions().iterator();
+		for( OcpiDimension a : last.getDimensions() ) {
+			OcpiDimension b = it.next();
+			if( a.getType() != b.getType() ) return false;
+
+			double volume;
+			switch( a.getType() ) {
+			case ENERGY:
+			case TIME:
+			case PARKING_TIME:
+				volume = a.getVolume()+b.getVolume();
+				break;
+
+			case CURRENT:
+			case POWER:
+				volume = ( lastMs+ms == 0L ? b.getVolume() : ( a.getVolume()*lastMs+b.getVolume()*ms )/( lastMs+ms ) );
+				break;
+
+			default:
+				if( Double.compare( a.getVolume(), b.getVolume() ) != 0 ) return false;
+				volume = a.getVolume();
+			}
+
+			OcpiDimension dimension = new OcpiDimension();
+			dimension.setType( a.getType() );
+			dimension.setVolume( volume );
+			dimensions.add( dimension );
+		}
+
+		OcpiChargingPeriod res = new OcpiChargingPeriod();
+		res.setStartDateTime( last.getStartDateTime() );
+		res.setTariffId( last.getTariffId() );
+		res.setDimensions( dimensions );
+		periods.set( n, res );
+		return true;
 	}
 
 	static public OcpiCdr makeCDR( List<OcpiTariff> tariffs, List<OcppTransactionEventRequest> events, OcpiSession session ) {
-		OcpiTarification me = new OcpiTarification( events, session ); 
-		me.startEvent = events.get(0);
-		me.lastEvent = events.get( events.size()-1 );
-		
-		OcpiCdr cdr = new OcpiCdr();
-		
-		cdr.setCountryCode( session.getCountryCode() );
-		cdr.setPartyId( session.getPartyId() );
-		cdr.setStartDateTime( session.getStartDatetime() );
-		cdr.setEndDateTime( me.lastEvent.getTimestamp() );
-		cdr.setSessionId( session.getId() );
-		cdr.setCdrToken( session.getCdrToken() );
-		cdr.setAuthMethod( session.getAuthMethod() );
-		cdr.setAuthorizationReference( session.getAuthReference() );
-		cdr.setMeterId( session.getMeterId() );
-		cdr.setCurrency( session.getCurrency() );
-		cdr.setSignedData(null); // TODO
-		cdr.setLastUpdated( Instant.now() );
-
-		me.tariffPeriods = new TariffMeasures();
-		me.initChargingTimes();
-		me.tariffPeriods.joinMeasure( me.collectMeasures( MeasurandEnum.ENERGY_ACTIVE_IMPORT_REGISTER, true, TariffMeasure::setEnergy ) );
-		me.tariffPeriods.joinMeasure( me.collectMeasures( MeasurandEnum.CURRENT_IMPORT, false, TariffMeasure::setCurrent ) );
-		me.tariffPeriods.joinMeasure( me.collectMeasures( MeasurandEnum.POWER_ACTIVE_IMPORT, false, TariffMeasure::setPower ) );
-		me.tariffPeriods.dump( "initial periods" );
-		
-		me.checkTariffs( tariffs );
-		me.fillCost( cdr );
+		IncrementalTarification tarification = new IncrementalTarification( tariffs, session );
+		for( OcppTransactionEventRequest event : events ) {
+			tarification.add( event );
+		}
 		
-		session.setKwh( cdr.getTotalEnergy() );
-		session.setTotalCost( cdr.getTotalCost() );
+		return tarification.getCdr();
+	}
+
+	/*
+	 * the events are read from log instead of the heap
+	 */
+	static public OcpiCdr makeCDR( List<OcpiTariff> tariffs, SessionLog log, OcpiSession session ) throws IOException {
+		IncrementalTarification tarification = new IncrementalTarification( tariffs, session );
+		tarification.add( log );
+		return tarification.getCdr();
+	}
 
-		return cdr;
+	/*
+	 * timeline: written by IncrementalTarification.writeTimeline()
+	 */
+	static public OcpiCdr makeCDR( List<OcpiTariff> tariffs, ByteBuffer timeline, OcpiSession session ) {
+		TarificationOptions options = new TarificationOptions();
+		return IncrementalTarification.rerate( new TariffIndex( tariffs, options.cache ), timeline, session, options );
 	}
 }
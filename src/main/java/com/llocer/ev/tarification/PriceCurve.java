@@ -0,0 +1,337 @@
+package com.llocer.ev.tarification;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.llocer.common.Tuple2;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent.Type;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+/*
+ * Prices of a catalog of tariffs over a span of time (a week by default),
+ * as segments with the elements valid by their time, day of week and date
+ * restrictions. Quotes of hypothetical sessions are computed on it without
+ * building events nor measures: a binary search for the first segment and
+ * a walk along the following ones.
+ *
+ * Quotes are estimates of makeCDR with the same profile:
+ * - power and energy thresholds are honoured, current is taken as 0 like
+ *   a session without current measures
+ * - elements with a reservation restriction are ignored
+ * - step_size is applied to the total volume of each price component
+ * Immutable once built, it can be shared by any number of threads.
+ */
+public class PriceCurve {
+	public static final Duration DEFAULT_SPAN = Duration.ofDays( 7 );
+
+	/*
+	 * totals of a quote, in the units and meaning of the OcpiCdr ones
+	 */
+	public static class Quote {
+		public double totalEnergy; // kWh
+		public double totalTime; // charging hours
+		public double totalParkingTime; // hours
+		public double totalFixedCost;
+		public double totalEnergyCost;
+		public double totalTimeCost;
+		public double totalParkingCost;
+		public double totalCost; // VAT included
+
+		@Override
+		public String toString() {
+			return String.format( "energy=%f kWh time=%f h parking=%f h fixed=%f energyCost=%f timeCost=%f parkingCost=%f total=%f",
+					totalEnergy, totalTime, totalParkingTime, totalFixedCost, totalEnergyCost, totalTimeCost, totalParkingCost, totalCost );
+		}
+	}
+
+	private static final Type[] TYPES = Type.values();
+
+	private final long start; // epoch milliseconds
+	private final long end;
+
+	// element i of the curve
+	private final CompiledTariff.Threshold[][] thresholds;
+	private final int[][] elementComponents; // indexes in components
+
+	private final OcpiPriceComponent[] components;
+
+	// segment s: from t[s] until t[s+1] (end for the last one), valid elements in catalog order
+	private final long[] t;
+	private final int[][] valid;
+
+	public PriceCurve( TariffIndex tariffs, ZoneId zone, Instant start ) {
+		this( tariffs, zone, start, DEFAULT_SPAN );
+	}
+
+	public PriceCurve( TariffIndex tariffs, ZoneId zone, Instant start, Duration span ) {
+		this.start = start.toEpochMilli();
+		this.end = this.start+span.toMillis();
+		if( end <= this.start ) throw new IllegalArgumentException( "span must be positive" );
+
+		List<CompiledTariff.Element> elements = new ArrayList<CompiledTariff.Element>();
+		for( int e : tariffs.candidates( this.start, end, zone ) ) {
+			CompiledTariff.Element element = tariffs.element( e );
+			if( element.reservation == null ) elements.add( element );
+		}
+		int n = elements.size();
+
+		// restrictions by element and breakpoints of all of them
+		long[] startDates = new long[n];
+		long[] endDates = new long[n];
+		TariffFlags[] days = new TariffFlags[n];
+		TariffFlags[] times = new TariffFlags[n];
+		TreeSet<Long> breakpoints = new TreeSet<Long>();
+		breakpoints.add( this.start );
+
+		this.thresholds = new CompiledTariff.Threshold[n][];
+		this.elementComponents = new int[n][];
+		Map<OcpiPriceComponent,Integer> componentIndexes = new IdentityHashMap<OcpiPriceComponent,Integer>();
+		List<OcpiPriceComponent> componentList = new ArrayList<OcpiPriceComponent>();
+
+		for( int i = 0; i < n; i++ ) {
+			CompiledTariff.Element element = elements.get( i );
+
+			startDates[i] = ( element.startDate == null ? Long.MIN_VALUE : element.startDate.atStartOfDay( zone ).toInstant().toEpochMilli() );
+			endDates[i] = ( element.endDate == null ? Long.MAX_VALUE : element.endDate.atStartOfDay( zone ).toInstant().toEpochMilli() );
+			if( startDates[i] > this.start && startDates[i] < end ) breakpoints.add( startDates[i] );
+			if( endDates[i] > this.start && endDates[i] < end ) breakpoints.add( endDates[i] );
+
+			if( element.dayOfWeek != null ) {
+				days[i] = element.dayOfWeekIndex( zone ).flags( this.start, end, 0L );
+				for( int j = 1; j < days[i].size(); j++ ) breakpoints.add( days[i].t( j ) );
+			}
+			if( element.startTime != null ) {
+				times[i] = element.timeIndex( zone ).flags( this.start, end, 0L );
+				for( int j = 1; j < times[i].size(); j++ ) breakpoints.add( times[i].t( j ) );
+			}
+
+			thresholds[i] = element.thresholds;
+			elementComponents[i] = new int[ element.priceComponents.size() ];
+			int j = 0;
+			for( Tuple2<OcpiTariff,OcpiPriceComponent> pc : element.priceComponents ) {
+				Integer c = componentIndexes.get( pc.f2 );
+				if( c == null ) {
+					c = componentList.size();
+					componentIndexes.put( pc.f2, c );
+					componentList.add( pc.f2 );
+				}
+				elementComponents[i][j++] = c;
+			}
+		}
+		this.components = componentList.toArray( new OcpiPriceComponent[ componentList.size() ] );
+
+		// segments, consecutive ones with the same elements are joined
+		long[] segmentStarts = new long[ breakpoints.size() ];
+		int[][] segmentElements = new int[ breakpoints.size() ][];
+		int s = 0;
+		int[] buffer = new int[n];
+		for( long b : breakpoints ) {
+			int k = 0;
+			for( int i = 0; i < n; i++ ) {
+				if(  b >= startDates[i] && b < endDates[i]
+				  && ( days[i] == null || stateAt( days[i], b ) )
+				  && ( times[i] == null || stateAt( times[i], b ) ) ) {
+					buffer[k++] = i;
+				}
+			}
+			int[] elementsAt = Arrays.copyOf( buffer, k );
+			if( s > 0 && Arrays.equals( segmentElements[s-1], elementsAt ) ) continue;
+
+			segmentStarts[s] = b;
+			segmentElements[s] = elementsAt;
+			s++;
+		}
+		this.t = Arrays.copyOf( segmentStarts, s );
+		this.valid = Arrays.copyOf( segmentElements, s );
+	}
+
+	/*
+	 * ok of the last transition at or before t
+	 */
+	private static boolean stateAt( TariffFlags flags, long t ) {
+		int lo = 0;
+		int hi = flags.size()-1;
+		while( lo < hi ) {
+			int mid = (lo+hi+1) >>> 1;
+			if( flags.t( mid ) <= t ) lo = mid;
+			else hi = mid-1;
+		}
+		return flags.ok( lo );
+	}
+
+	private int segmentAt( long t ) {
+		int i = Arrays.binarySearch( this.t, t );
+		return ( i >= 0 ? i : -i-2 );
+	}
+
+	public Instant getStart() {
+		return Instant.ofEpochMilli( start );
+	}
+
+	public Instant getEnd() {
+		return Instant.ofEpochMilli( end );
+	}
+
+	public int segments() {
+		return t.length;
+	}
+
+	private static boolean passes( CompiledTariff.Threshold threshold, double energy, double duration, double power ) {
+		double v;
+		switch( threshold.column ) {
+		case ENERGY: v = energy; break;
+		case DURATION: v = duration; break;
+		case POWER: v = power; break;
+		default: v = 0.0; // current: not known
+		}
+		return( threshold.max ? v < threshold.value : v >= threshold.value );
+	}
+
+	/*
+	 * first time after a, and before b, where energy or duration cross a threshold
+	 * of the elements valid in segment s
+	 */
+	private long nextCrossing( int s, long a, long b, long sessionStart, double energy, double power ) {
+		long res = b;
+		for( int i : valid[s] ) {
+			for( CompiledTariff.Threshold threshold : thresholds[i] ) {
+				long tc;
+				if( threshold.column == Column.DURATION ) {
+					tc = sessionStart+(long)Math.ceil( threshold.value );
+				} else if( threshold.column == Column.ENERGY && power > 0.0 && threshold.value > energy ) {
+					tc = a+(long)Math.ceil( (threshold.value-energy)*3600_000.0/power );
+				} else {
+					continue;
+				}
+				if( tc > a && tc < res ) res = tc;
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * cost of a session starting at sessionStart with a profile of steps:
+	 * durations in milliseconds with a constant power in W, 0 W for parking.
+	 * The session must be within the span of the curve.
+	 */
+	public Quote quote( Instant sessionStart, long[] durations, double[] powers ) {
+		if( durations.length != powers.length ) throw new IllegalArgumentException( "one power per duration" );
+
+		long t0 = sessionStart.toEpochMilli();
+		long sessionEnd = t0;
+		for( long d : durations ) sessionEnd += d;
+		if( t0 < start || sessionEnd > end ) throw new IllegalArgumentException( "session out of the curve: "+getStart()+" - "+getEnd() );
+
+		double[] volumes = new double[ components.length ]; // Wh for energy, s for time
+		boolean[] used = new boolean[ components.length ];
+		int[] selected = new int[ TYPES.length ];
+
+		double energy = 0.0; // Wh
+		long a = t0;
+		int s = segmentAt( a );
+		for( int step = 0; step < durations.length; step++ ) {
+			double power = powers[step];
+			long stepEnd = a+durations[step];
+
+			while( a < stepEnd ) {
+				while( s+1 < t.length && t[s+1] <= a ) s++;
+				long b = ( s+1 < t.length ? Math.min( t[s+1], stepEnd ) : stepEnd );
+				b = nextCrossing( s, a, b, t0, energy, power );
+
+				// prices at the middle of a..b, last valid element prevails
+				long dt = b-a;
+				double de = power*dt/3600_000.0;
+				Arrays.fill( selected, -1 );
+				for( int i : valid[s] ) {
+					boolean ok = true;
+					for( CompiledTariff.Threshold threshold : thresholds[i] ) {
+						if( !passes( threshold, energy+de/2.0, (a-t0)+dt/2.0, power ) ) {
+							ok = false;
+							break;
+						}
+					}
+					if( !ok ) continue;
+					for( int c : elementComponents[i] ) {
+						selected[ components[c].getType().ordinal() ] = c;
+					}
+				}
+
+				for( int c : selected ) {
+					if( c < 0 ) continue;
+					used[c] = true;
+					switch( components[c].getType() ) {
+					case ENERGY: volumes[c] += de; break;
+					case TIME: if( power > 0.0 ) volumes[c] += dt/1000.0; break;
+					case PARKING_TIME: if( power <= 0.0 ) volumes[c] += dt/1000.0; break;
+					default: break;
+					}
+				}
+
+				energy += de;
+				a = b;
+			}
+		}
+
+		Quote res = new Quote();
+		for( int c = 0; c < components.length; c++ ) {
+			if( !used[c] ) continue;
+
+			OcpiPriceComponent priceComponent = components[c];
+			double amount = volumes[c];
+			if( priceComponent.getStepSize() != null && amount > 0.0 ) {
+				amount = Math.ceil( amount/priceComponent.getStepSize() )*priceComponent.getStepSize();
+			}
+
+			double cost;
+			switch( priceComponent.getType() ) {
+			case FLAT:
+				cost = priceComponent.getPrice();
+				res.totalFixedCost += cost;
+				break;
+			case ENERGY:
+				amount /= 1000.0;
+				cost = priceComponent.getPrice()*amount;
+				res.totalEnergy += amount;
+				res.totalEnergyCost += cost;
+				break;
+			case TIME:
+				amount /= 3600.0;
+				cost = priceComponent.getPrice()*amount;
+				res.totalTime += amount;
+				res.totalTimeCost += cost;
+				break;
+			case PARKING_TIME:
+				amount /= 3600.0;
+				cost = priceComponent.getPrice()*amount;
+				res.totalParkingTime += amount;
+				res.totalParkingCost += cost;
+				break;
+			default:
+				cost = 0.0;
+			}
+
+			double vat = ( priceComponent.getVat() == null ? 0.0 : cost*priceComponent.getVat()/100.0 );
+			res.totalCost += cost+vat;
+		}
+		return res;
+	}
+
+	/*
+	 * cost of charging kwh at a constant power from sessionStart,
+	 * followed by parking minutes
+	 */
+	public Quote quote( Instant sessionStart, double kwh, double kw, long parkingMinutes ) {
+		if( kw <= 0.0 ) throw new IllegalArgumentException( "power must be positive" );
+		long charging = (long)Math.ceil( kwh/kw*3600_000.0 );
+		return quote( sessionStart, new long[] { charging, parkingMinutes*60_000L }, new double[] { kw*1000.0, 0.0 } );
+	}
+}
@@ -0,0 +1,272 @@
+package com.llocer.ev.tarification;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.llocer.ev.ocpi.msgs22.OcpiCdr;
+import com.llocer.ev.ocpi.msgs22.OcpiSession;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+
+/*
+ * Rates again the sessions stored in the files of a directory with a new set
+ * of tariffs: the new CDRs go to a sink and a CSV report gets, per session,
+ * the previous and new totals and their difference.
+ *
+ * Stored sessions, by file extension:
+ * - .timeline: written by IncrementalTarification.writeTimeline(), the fast one
+ * - .log: a SessionLog
+ * Their OcpiSession comes from a SessionSource, its total_cost and kwh are
+ * taken as the previous totals.
+ *
+ * Files are processed in name order, in parallel, and reported in that order.
+ * The checkpoint file keeps the length of the report and the name of the last
+ * file reported, a job run again with the same checkpoint resumes with the
+ * files after that name, even if files were added or removed meanwhile; the
+ * CDRs of the files rated after the last checkpoint may be sent again.
+ */
+public class RebillingJob {
+
+	public interface SessionSource {
+		/*
+		 * session of a stored file, with the previous totals
+		 */
+		OcpiSession session( Path file ) throws IOException;
+	}
+
+	public interface CdrSink {
+		/*
+		 * called in file order from the thread of run(), once per session except
+		 * after a resume
+		 */
+		void accept( Path file, OcpiCdr cdr ) throws IOException;
+	}
+
+	public static class Summary {
+		public long sessions; // reported by this run
+		public long failed;
+		public double previousTotalCost;
+		public double totalCost;
+
+		@Override
+		public String toString() {
+			return String.format( Locale.ROOT, "sessions=%d failed=%d previous=%.4f new=%.4f delta=%.4f",
+					sessions, failed, previousTotalCost, totalCost, totalCost-previousTotalCost );
+		}
+	}
+
+	private static final String REPORT_HEADER = "file,session_id,previous_total_cost,total_cost,delta,previous_kwh,kwh,error\n";
+
+	private static class Result {
+		final Path file;
+		final OcpiSession session; // null if not read
+		final Double previousTotalCost;
+		final Double previousKwh;
+		final OcpiCdr cdr; // null on error
+		final Throwable error;
+
+		Result( Path file, OcpiSession session, Double previousTotalCost, Double previousKwh, OcpiCdr cdr, Throwable error ) {
+			this.file = file;
+			this.session = session;
+			this.previousTotalCost = previousTotalCost;
+			this.previousKwh = previousKwh;
+			this.cdr = cdr;
+			this.error = error;
+		}
+	}
+
+	private final Path directory;
+	private final List<OcpiTariff> tariffs;
+	private final SessionSource sessions;
+	private final CdrSink cdrs;
+	private final Path report;
+
+	// read by run(), the tariffs are compiled there with options.cache
+	public Path checkpoint; // default: report with extension .checkpoint
+	public int checkpointEvery = 1000; // files
+	public TarificationOptions options = new TarificationOptions();
+	public Executor executor = ForkJoinPool.commonPool();
+	public int maxInFlight = 4*ForkJoinPool.commonPool().getParallelism();
+
+	public RebillingJob( Path directory, List<OcpiTariff> tariffs, SessionSource sessions, CdrSink cdrs, Path report ) {
+		this.directory = directory;
+		this.tariffs = tariffs;
+		this.sessions = sessions;
+		this.cdrs = cdrs;
+		this.report = report;
+		this.checkpoint = report.resolveSibling( report.getFileName()+".checkpoint" );
+	}
+
+	private static boolean isStored( Path file ) {
+		String name = file.getFileName().toString();
+		return name.endsWith( ".timeline" ) || name.endsWith( ".log" );
+	}
+
+	private OcpiCdr rate( TariffIndex tariffs, Path file, OcpiSession session ) throws IOException {
+		if( file.getFileName().toString().endsWith( ".timeline" ) ) {
+			try( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+				MappedByteBuffer timeline = channel.map( FileChannel.MapMode.READ_ONLY, 0L, channel.size() );
+				return IncrementalTarification.rerate( tariffs, timeline, session, options );
+			}
+		}
+
+		try( SessionLog log = SessionLog.openReadOnly( file ) ) {
+			IncrementalTarification tarification = new IncrementalTarification( tariffs, session, options );
+			tarification.add( log );
+			return tarification.getCdr();
+		}
+	}
+
+	private Result process( TariffIndex tariffs, Path file ) {
+		OcpiSession session = null;
+		Double previousTotalCost = null;
+		Double previousKwh = null;
+		try {
+			session = sessions.session( file );
+			previousTotalCost = session.getTotalCost();
+			previousKwh = session.getKwh();
+			return new Result( file, session, previousTotalCost, previousKwh, rate( tariffs, file, session ), null );
+		} catch( Throwable e ) {
+			return new Result( file, session, previousTotalCost, previousKwh, null, e );
+		}
+	}
+
+	private static String csv( Object value ) {
+		if( value == null ) return "";
+		String s = value.toString();
+		if( s.indexOf( ',' ) < 0 && s.indexOf( '"' ) < 0 && s.indexOf( '\n' ) < 0 ) return s;
+		return "\""+s.replace( "\"", "\"\"" )+"\"";
+	}
+
+	private void report( Writer out, Result r, Summary summary ) throws IOException {
+		StringBuilder line = new StringBuilder();
+		line.append( csv( directory.relativize( r.file ) ) ).append( ',' );
+		line.append( csv( r.session == null ? null : r.session.getId() ) ).append( ',' );
+		line.append( csv( r.previousTotalCost ) ).append( ',' );
+
+		if( r.cdr != null ) {
+			double previous = ( r.previousTotalCost == null ? 0.0 : r.previousTotalCost );
+			line.append( r.cdr.getTotalCost() ).append( ',' );
+			line.append( r.cdr.getTotalCost()-previous ).append( ',' );
+			line.append( csv( r.previousKwh ) ).append( ',' );
+			line.append( r.cdr.getTotalEnergy() ).append( ',' );
+			summary.previousTotalCost += previous;
+			summary.totalCost += r.cdr.getTotalCost();
+		} else {
+			line.append( ",," ).append( csv( r.previousKwh ) ).append( ",," );
+			line.append( csv( r.error.toString() ) );
+			summary.failed++;
+		}
+		line.append( '\n' );
+
+		out.write( line.toString() );
+		summary.sessions++;
+	}
+
+	private static class Checkpoint {
+		final long reportLength;
+		final Path last; // last file reported, null if none
+
+		Checkpoint( long reportLength, Path last ) {
+			this.reportLength = reportLength;
+			this.last = last;
+		}
+	}
+
+	/*
+	 * file: report length, a line, then the name of the last file reported
+	 * relative to the directory, up to the final line feed
+	 */
+	private Checkpoint readCheckpoint() throws IOException {
+		if( !Files.exists( checkpoint ) ) return new Checkpoint( 0L, null );
+
+		String text = new String( Files.readAllBytes( checkpoint ), StandardCharsets.UTF_8 );
+		int nl = text.indexOf( '\n' );
+		if( nl < 0 || !text.endsWith( "\n" ) ) throw new IOException( checkpoint+": not a checkpoint" );
+		long reportLength = Long.parseLong( text.substring( 0, nl ) );
+		return new Checkpoint( reportLength, ( nl == text.length()-1 ? null : directory.resolve( text.substring( nl+1, text.length()-1 ) ) ) );
+	}
+
+	private void writeCheckpoint( long reportLength, Path last ) throws IOException {
+		Path tmp = checkpoint.resolveSibling( checkpoint.getFileName()+".tmp" );
+		Files.write( tmp, ( reportLength+"\n"+directory.relativize( last )+"\n" ).getBytes( StandardCharsets.UTF_8 ) );
+		Files.move( tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	/*
+	 * returns when all the files are reported
+	 */
+	public Summary run() throws IOException {
+		List<Path> files;
+		try( Stream<Path> list = Files.list( directory ) ) {
+			files = list.filter( RebillingJob::isStored ).sorted().collect( Collectors.toList() );
+		}
+
+		Checkpoint resume = readCheckpoint();
+		int next = 0;
+		if( resume.last != null ) {
+			// files are sorted, those up to the last one reported are skipped
+			while( next < files.size() && files.get( next ).compareTo( resume.last ) <= 0 ) next++;
+		}
+
+		TariffIndex index = new TariffIndex( tariffs, options.cache );
+		Summary summary = new Summary();
+		try( FileChannel channel = FileChannel.open( report, StandardOpenOption.CREATE, StandardOpenOption.WRITE ) ) {
+			// lines after the checkpoint are written again
+			channel.truncate( resume.reportLength );
+			channel.position( resume.reportLength );
+			Writer out = new BufferedWriter( Channels.newWriter( channel, StandardCharsets.UTF_8.newEncoder(), 1 << 16 ) );
+			if( resume.reportLength == 0L ) out.write( REPORT_HEADER );
+
+			ArrayDeque<CompletableFuture<Result>> inFlight = new ArrayDeque<CompletableFuture<Result>>();
+			while( true ) {
+				while( inFlight.size() < maxInFlight && next < files.size() ) {
+					Path file = files.get( next++ );
+					inFlight.add( CompletableFuture.supplyAsync( () -> process( index, file ), executor ) );
+				}
+				if( inFlight.isEmpty() ) break;
+
+				Result r = inFlight.poll().join();
+				if( r.cdr != null ) cdrs.accept( r.file, r.cdr );
+				report( out, r, summary );
+
+				if( summary.sessions%checkpointEvery == 0 || inFlight.isEmpty() ) {
+					out.flush();
+					channel.force( false );
+					writeCheckpoint( channel.position(), r.file );
+				}
+			}
+			out.flush();
+		}
+		return summary;
+	}
+
+	/*
+	 * bytes of a timeline file for a session, see IncrementalTarification.writeTimeline()
+	 */
+	public static void writeTimeline( IncrementalTarification tarification, Path file ) throws IOException {
+		ByteBuffer timeline = ByteBuffer.allocate( tarification.timelineSize() );
+		tarification.writeTimeline( timeline );
+		timeline.flip();
+		try( FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) ) {
+			while( timeline.hasRemaining() ) channel.write( timeline );
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package com.llocer.ev.tarification;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.llocer.ev.ocpp.msgs20.ChargingStateEnum;
+import com.llocer.ev.ocpp.msgs20.MeasurandEnum;
+import com.llocer.ev.ocpp.msgs20.OcppMeterValue;
+import com.llocer.ev.ocpp.msgs20.OcppSampledValue;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+
+/*
+ * Append only log of the events of a session in a memory mapped file, with
+ * just what the tarification uses: one fixed width record per event and per
+ * energy, current or power sample, instead of the event objects in the heap.
+ *
+ * File: a header record (magic, version, number of records) followed by the
+ * records, little endian:
+ * - long t: epoch milliseconds
+ * - byte kind: EVENT or SAMPLE
+ * - byte code: charging state of an EVENT (0: not changed), measurand of a SAMPLE
+ * - double value: of a SAMPLE, in Wh, A or W
+ * The number of records is updated once the whole event is written, so the
+ * log can be read by IncrementalTarification.add( SessionLog ) while it is
+ * being written. A single writer per file, readers may open it read only.
+ * The file grows a whole chunk at a time and is never truncated, its length
+ * is not the number of records: a reader may still map the end of the last
+ * chunk, and a mapped region must not be cut from the file.
+ */
+public class SessionLog implements Closeable {
+	static final int MAGIC = 0x4c54534c; // "LTSL"
+	static final int VERSION = 1;
+
+	static final int RECORD = 24;
+	static final int CHUNK_RECORDS = 1 << 15;
+
+	static final byte EVENT = 0;
+	static final byte SAMPLE = 1;
+
+	// codes in the file, never reordered
+	private static final ChargingStateEnum[] CHARGING_STATES = {
+		null,
+		ChargingStateEnum.CHARGING,
+		ChargingStateEnum.EV_CONNECTED,
+		ChargingStateEnum.SUSPENDED_EV,
+		ChargingStateEnum.SUSPENDED_EVSE,
+		ChargingStateEnum.IDLE
+	};
+	private static final MeasurandEnum[] MEASURANDS = {
+		null,
+		MeasurandEnum.ENERGY_ACTIVE_IMPORT_REGISTER,
+		MeasurandEnum.CURRENT_IMPORT,
+		MeasurandEnum.POWER_ACTIVE_IMPORT
+	};
+
+	private final FileChannel channel;
+	private final boolean readOnly;
+	private final MappedByteBuffer header;
+	private final List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+	private long size; // records, of this writer
+
+	private SessionLog( FileChannel channel, boolean readOnly ) throws IOException {
+		this.channel = channel;
+		this.readOnly = readOnly;
+		this.header = map( 0L, RECORD );
+	}
+
+	/*
+	 * new empty log, an existing file is truncated
+	 */
+	public static SessionLog create( Path file ) throws IOException {
+		FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE );
+		SessionLog res = new SessionLog( channel, false );
+		res.header.putInt( 0, MAGIC );
+		res.header.putInt( 4, VERSION );
+		res.header.putLong( 8, 0L );
+		return res;
+	}
+
+	/*
+	 * existing log, to read it and append more events
+	 */
+	public static SessionLog open( Path file ) throws IOException {
+		return open( file, false );
+	}
+
+	/*
+	 * existing log, only to read it: the file is neither modified nor
+	 * extended, it may be being written by another SessionLog
+	 */
+	public static SessionLog openReadOnly( Path file ) throws IOException {
+		return open( file, true );
+	}
+
+	private static SessionLog open( Path file, boolean readOnly ) throws IOException {
+		FileChannel channel = ( readOnly ? FileChannel.open( file, StandardOpenOption.READ )
+				: FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE ) );
+		if( channel.size() < RECORD ) {
+			channel.close();
+			throw new IOException( file+": not a session log" );
+		}
+
+		SessionLog res = new SessionLog( channel, readOnly );
+		if( res.header.getInt( 0 ) != MAGIC ) {
+			channel.close();
+			throw new IOException( file+": not a session log" );
+		}
+		if( res.header.getInt( 4 ) != VERSION ) {
+			channel.close();
+			throw new IOException( file+": unsupported session log version "+res.header.getInt( 4 ) );
+		}
+		res.size = res.header.getLong( 8 );
+		return res;
+	}
+
+	private MappedByteBuffer map( long position, long length ) throws IOException {
+		MappedByteBuffer res = channel.map( readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, position, length );
+		res.order( ByteOrder.LITTLE_ENDIAN );
+		return res;
+	}
+
+	private static long offset( long record ) {
+		return (long)RECORD*(1L+record); // after the header
+	}
+
+	/*
+	 * read only: a chunk is mapped up to the end of the file, and mapped
+	 * again if record is after it, the file may have grown since
+	 */
+	private MappedByteBuffer chunk( long record ) throws IOException {
+		int i = (int)( record/CHUNK_RECORDS );
+		while( chunks.size() <= i ) {
+			chunks.add( null );
+		}
+
+		MappedByteBuffer res = chunks.get( i );
+		if( res == null || res.capacity() < position( record )+RECORD ) {
+			long position = offset( (long)i*CHUNK_RECORDS );
+			long length = (long)RECORD*CHUNK_RECORDS;
+			if( readOnly ) length = Math.min( length, channel.size()-position );
+			res = map( position, length );
+			chunks.set( i, res );
+		}
+		return res;
+	}
+
+	private static int position( long record ) {
+		return (int)( record%CHUNK_RECORDS )*RECORD;
+	}
+
+	private static byte code( Object value, Object[] codes ) {
+		for( int i = 1; i < codes.length; i++ ) {
+			if( codes[i] == value ) return (byte)i;
+		}
+		return 0;
+	}
+
+	private void put( long record, long t, byte kind, byte code, double value ) throws IOException {
+		MappedByteBuffer chunk = chunk( record );
+		int p = position( record );
+		chunk.putLong( p, t );
+		chunk.put( p+8, kind );
+		chunk.put( p+9, code );
+		chunk.putDouble( p+16, value );
+	}
+
+	/*
+	 * records the timestamp and charging state of event, and its energy,
+	 * current and power samples; other measurands are dropped
+	 */
+	public void append( OcppTransactionEventRequest event ) throws IOException {
+		if( readOnly ) throw new IOException( "session log opened read only" );
+		long n = size;
+
+		ChargingStateEnum chargingState = ( event.getTransactionInfo() == null ? null : event.getTransactionInfo().getChargingState() );
+		put( n++, event.getTimestamp().toEpochMilli(), EVENT, code( chargingState, CHARGING_STATES ), 0.0 );
+
+		List<OcppMeterValue> meters = event.getMeterValue();
+		if( meters != null ) {
+			for( OcppMeterValue meter : meters ) {
+				List<OcppSampledValue> sampledValues = meter.getSampledValue();
+				if( sampledValues == null ) continue;
+
+				long t = meter.getTimestamp().toEpochMilli();
+				for( OcppSampledValue sampledValue : sampledValues ) {
+					if( !MeasureCollector.isCollected( sampledValue.getMeasurand() ) ) continue;
+					put( n++, t, SAMPLE, code( sampledValue.getMeasurand(), MEASURANDS ), MeasureCollector.getValue( sampledValue ) );
+				}
+			}
+		}
+
+		// the event is visible once complete
+		size = n;
+		header.putLong( 8, n );
+	}
+
+	/*
+	 * records of complete events, those written by other SessionLog on the
+	 * same file too
+	 */
+	public long size() {
+		return header.getLong( 8 );
+	}
+
+	/*
+	 * timestamp of a record
+	 */
+	long t( long record ) throws IOException {
+		return chunk( record ).getLong( position( record ) );
+	}
+
+	/*
+	 * timestamp of the last event in records from..to-1, from must be an event
+	 */
+	long lastEventT( long from, long to ) throws IOException {
+		for( long i = to-1; i > from; i-- ) {
+			if( chunk( i ).get( position( i )+8 ) == EVENT ) return t( i );
+		}
+		return t( from );
+	}
+
+	/*
+	 * written records to the storage device
+	 */
+	public void force() {
+		if( readOnly ) return;
+
+		header.force();
+		for( MappedByteBuffer chunk : chunks ) {
+			if( chunk != null ) chunk.force();
+		}
+	}
+
+	/*
+	 * records from..to-1 to collector, from must be the first record of an event
+	 * returns the number of events
+	 */
+	int replay( long from, long to, MeasureCollector collector ) throws IOException {
+		int events = 0;
+		for( long i = from; i < to; i++ ) {
+			MappedByteBuffer chunk = chunk( i );
+			int p = position( i );
+			long t = chunk.getLong( p );
+			byte code = chunk.get( p+9 );
+
+			if( chunk.get( p+8 ) == EVENT ) {
+				if( i > from ) collector.merge(); // end of the previous event
+				collector.addEvent( t, CHARGING_STATES[code] );
+				events++;
+			} else {
+				collector.addSample( t, MEASURANDS[code], chunk.getDouble( p+16 ) );
+			}
+		}
+		if( to > from ) collector.merge();
+		return events;
+	}
+
+	/*
+	 * the file keeps its whole chunks, the header has the number of records;
+	 * the mappings are released when garbage collected
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
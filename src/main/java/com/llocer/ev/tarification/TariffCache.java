@@ -0,0 +1,63 @@
+package com.llocer.ev.tarification;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+
+/*
+ * Compiled tariffs by country code, party id and tariff id. An entry is
+ * compiled again when last_updated changes; the oldest entries are evicted
+ * once there are more than maxSize.
+ */
+public class TariffCache {
+	public static final TariffCache DEFAULT = new TariffCache( 4096 );
+
+	private final int maxSize;
+	private final ConcurrentHashMap<String,CompiledTariff> data = new ConcurrentHashMap<String,CompiledTariff>();
+	private final Queue<String> insertionOrder = new ConcurrentLinkedQueue<String>();
+
+	public TariffCache( int maxSize ) {
+		if( maxSize <= 0 ) throw new IllegalArgumentException( "maxSize must be positive" );
+		this.maxSize = maxSize;
+	}
+
+	private static String key( OcpiTariff tariff ) {
+		if( tariff.getId() == null ) return null;
+		return tariff.getCountryCode()+"/"+tariff.getPartyId()+"/"+tariff.getId();
+	}
+
+	public CompiledTariff get( OcpiTariff tariff ) {
+		String key = key( tariff );
+		if( key == null || tariff.getLastUpdated() == null ) {
+			// no way to know if it has changed, not cached
+			return new CompiledTariff( tariff );
+		}
+
+		CompiledTariff res = data.get( key );
+		if( res != null && Objects.equals( res.lastUpdated, tariff.getLastUpdated() ) ) return res;
+
+		res = new CompiledTariff( tariff );
+		if( data.put( key, res ) == null ) {
+			insertionOrder.add( key );
+			while( data.size() > maxSize ) {
+				String eldest = insertionOrder.poll();
+				if( eldest == null ) break;
+				data.remove( eldest );
+			}
+		}
+
+		return res;
+	}
+
+	public int size() {
+		return data.size();
+	}
+
+	public void clear() {
+		data.clear();
+		insertionOrder.clear();
+	}
+}
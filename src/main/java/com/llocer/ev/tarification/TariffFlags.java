@@ -1,71 +1,189 @@
 package com.llocer.ev.tarification;
 
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
 import com.llocer.common.Log;
 
 class TariffFlag {
 	public final long t; // interval in milliseconds from start time
-	public final boolean ok; // true <-> valid forward 	
-	
+	public final boolean ok; // true <-> valid forward
+
 	public TariffFlag( long t, boolean ok ) {
 		this.t = t;
-		this.ok = ok; 
+		this.ok = ok;
 	}
-	
+
 	@Override
 	public String toString() {
 		StringBuilder res = new StringBuilder();
 		res.append( "{" );
-		
+
 		res.append( "t=" );
 		res.append( t/1000.0 );
 
 		res.append( ", ok=" );
 		res.append( this.ok );
-		
+
 		res.append( "}" );
 		return res.toString();
 	}
 }
 
+/*
+ * Validity along the time as a sorted array of transitions: each one is
+ * valid (or not) from its t until the next one. Before the first one nothing
+ * is valid.
+ *
+ * Transitions are packed in a long[] as t<<1 | ok, so that the packed values
+ * are sorted as their t. Operations merge linearly into a spare array that is
+ * swapped with the data, no object is allocated per transition.
+ */
 public class TariffFlags implements Iterable<TariffFlag> {
-	private LinkedList<TariffFlag> data;
-	
+	private static final int INITIAL_CAPACITY = 8;
+
+	private long[] data;
+	private int size = 0;
+	private long[] spare = null; // reused by the merges
+
 	public TariffFlags() {
-		this.data = new LinkedList<TariffFlag>();
+		this( INITIAL_CAPACITY );
+	}
+
+	public TariffFlags( int capacity ) {
+		this.data = new long[ Math.max( capacity, 1 ) ];
+	}
+
+	private static long pack( long t, boolean ok ) {
+		return ( t << 1 ) | ( ok ? 1L : 0L );
 	}
-	
+
 	void add( TariffFlag tm ) {
-		data.addLast( tm );
+		add( tm.t, tm.ok );
 	}
-	
+
 	public void add( long t, boolean ok ) {
-		TariffFlag tf = new TariffFlag(t, ok);
-		data.addLast( tf );
+		if( size == data.length ) data = Arrays.copyOf( data, 2*size );
+		data[size++] = pack( t, ok );
 	}
-	
+
+	public int size() {
+		return size;
+	}
+
+	public long t( int i ) {
+		return data[i] >> 1;
+	}
+
+	public boolean ok( int i ) {
+		return ( data[i] & 1L ) != 0L;
+	}
+
 	@Override
 	public Iterator<TariffFlag> iterator() {
-		return data.iterator();
+		return new Iterator<TariffFlag>() {
+			int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < size;
+			}
+
+			@Override
+			public TariffFlag next() {
+				if( i >= size ) throw new NoSuchElementException();
+				TariffFlag res = new TariffFlag( t(i), ok(i) );
+				i++;
+				return res;
+			}
+		};
+	}
+
+	/*
+	 * index of the first packed transition >= key, size if none
+	 */
+	private int lowerBound( long key ) {
+		int low = 0;
+		int high = size;
+		while( low < high ) {
+			int mid = (low+high) >>> 1;
+			if( data[mid] < key ) {
+				low = mid+1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/*
+	 * index of the last transition before t, -1 if none
+	 */
+	int before( long t ) {
+		return lowerBound( pack( t, false ) )-1;
 	}
-	
+
+	/*
+	 * t of the first transition after t, Long.MAX_VALUE if none
+	 */
+	long after( long t ) {
+		int i = lowerBound( pack( t, true )+1 );
+		return ( i < size ? t( i ) : Long.MAX_VALUE );
+	}
+
 	public boolean isNone() {
-		for( TariffFlag tm : data ) {
-			if( tm.ok ) return false;
+		for( int i = 0; i < size; i++ ) {
+			if( ( data[i] & 1L ) != 0L ) return false;
 		}
-		
+
 		return true;
 	}
-	
+
+	/*
+	 * milliseconds valid until end
+	 */
+	public long totalDuration( long end ) {
+		long res = 0L;
+		for( int i = 0; i < size; i++ ) {
+			if( !ok(i) ) continue;
+
+			long t0 = t(i);
+			if( t0 >= end ) break;
+			long t1 = ( i+1 < size ? Math.min( t(i+1), end ) : end );
+			res += t1-t0;
+		}
+		return res;
+	}
+
 	public void dump( String label ) {
-		for( TariffFlag tm : data ) {
-			Log.debug( "TariffIntervals.dump: %s => %s", label, tm );
+		for( int i = 0; i < size; i++ ) {
+			Log.debug( "TariffIntervals.dump: %s => t=%s, ok=%s", label, t(i)/1000.0, ok(i) );
 		}
 		Log.debug( "TariffIntervals.dump: %s -----", label );
 	}
-	
+
+	/*
+	 * flags from t on: the state at t followed by the flags after it
+	 */
+	TariffFlags clip( long t ) {
+		int first = 0;
+		boolean ok = false;
+		while( first < size && t( first ) < t ) {
+			ok = ok( first );
+			first++;
+		}
+
+		TariffFlags res = new TariffFlags( size-first+1 );
+		if( first == size || t( first ) != t ) {
+			res.add( t, ok );
+		}
+		System.arraycopy( data, first, res.data, res.size, size-first );
+		res.size += size-first;
+
+		return res;
+	}
+
 	static TariffFlags allInterval( long duration) {
 		TariffFlags res = new TariffFlags();
 
@@ -74,63 +192,115 @@ public class TariffFlags implements Iterable<TariffFlag> {
 
 		return res;
 	}
-	
-
-	public void and( TariffFlags tms2 ) {
-//		tms1.dump( "and::tms1");
-//		tms2.dump( "and::tms2");
-		
-		Iterator<TariffFlag> it1 = data.iterator();
-		Iterator<TariffFlag> it2 = tms2.data.iterator();
-		
-		TariffFlag last1 = new TariffFlag(0, false); 
-		TariffFlag last2 = new TariffFlag(0, false); // tm2 and last2 can not be both null
-		
-		TariffFlag tm1 = TariffMeasures.next( it1 ); 
-		TariffFlag tm2 = TariffMeasures.next( it2 ); 
-		if( tm1 == null || tm2 == null) return;
-		
-		TariffFlags res = new TariffFlags();
-		
-		while( tm1 != null ) {
-//			if( tm1 == null ) { 
-//				if( last1.ok ) {
-//					res.add( tm2 );
-//				}
-//
-//				last2 = tm2;
-//				tm2 = Sugar.next( it2 );
-				
-			if ( tm2 == null ) { 
-				if( last2.ok ) {
-					res.add( tm1 );
+
+	private long[] spare( int capacity ) {
+		if( spare == null || spare.length < capacity ) spare = new long[ capacity ];
+		return spare;
+	}
+
+	private void swap( long[] res, int n ) {
+		spare = data;
+		data = res;
+		size = n;
+	}
+
+	/*
+	 * in place intersection, keeps every transition of this until its end and
+	 * those of other before it. Nothing is done if any of them is empty
+	 */
+	public void and( TariffFlags other ) {
+		if( size == 0 || other.size == 0 ) return;
+
+		long[] d1 = this.data;
+		long[] d2 = other.data;
+		int n2 = other.size;
+		long[] res = spare( size+n2 );
+		int n = 0;
+
+		long last1 = 0L; // ok bit of the previous transition
+		long last2 = 0L;
+		int i1 = 0;
+		int i2 = 0;
+
+		while( i1 < size ) {
+			if ( i2 >= n2 ) {
+				if( last2 != 0L ) {
+					res[n++] = d1[i1];
+				}
+				i1++;
+
+			} else {
+				long t1 = d1[i1] >> 1;
+				long t2 = d2[i2] >> 1;
+
+				if( t1 < t2 ) {
+					res[n++] = d1[i1] & ( ~1L | last2 );
+					last1 = d1[i1] & 1L;
+					i1++;
+
+				} else if( t1 == t2 ) {
+					res[n++] = d1[i1] & ( ~1L | d2[i2] );
+					last1 = d1[i1] & 1L;
+					i1++;
+					last2 = d2[i2] & 1L;
+					i2++;
+
+				} else { // t1 > t2
+					res[n++] = d2[i2] & ( ~1L | last1 );
+					last2 = d2[i2] & 1L;
+					i2++;
+
 				}
-				
-//				last1 = tm1;
-				tm1 = TariffMeasures.next( it1 );
-				
-			} else if( tm1.t < tm2.t ) {
-				res.add( tm1.t, tm1.ok && last2.ok );
-				last1 = tm1;
-				tm1 = TariffMeasures.next( it1 );
-				
-			} else if( tm1.t == tm2.t ) {
-				res.add( tm1.t, tm1.ok && tm2.ok );
-				last1 = tm1;
-				tm1 = TariffMeasures.next( it1 );
-				last2 = tm2;
-				tm2 = TariffMeasures.next( it2 );
-				
-			} else { // tm1.t > tm2.t
-				res.add( tm2.t, last1.ok && tm2.ok );
-				last2 = tm2;
-				tm2 = TariffMeasures.next( it2 );
-				
 			}
 		}
-		
-//		res.dump( "and::res");
-		data = res.data;
+
+		swap( res, n );
 	}
 
+	/*
+	 * in place union, with the transitions of both
+	 */
+	public void or( TariffFlags other ) {
+		long[] d1 = this.data;
+		long[] d2 = other.data;
+		int n2 = other.size;
+		long[] res = spare( size+n2 );
+		int n = 0;
+
+		long last1 = 0L;
+		long last2 = 0L;
+		int i1 = 0;
+		int i2 = 0;
+
+		while( i1 < size || i2 < n2 ) {
+			long t1 = ( i1 < size ? d1[i1] >> 1 : Long.MAX_VALUE );
+			long t2 = ( i2 < n2 ? d2[i2] >> 1 : Long.MAX_VALUE );
+
+			if( t1 < t2 ) {
+				last1 = d1[i1++] & 1L;
+				res[n++] = ( t1 << 1 ) | last1 | last2;
+
+			} else if( t1 == t2 ) {
+				last1 = d1[i1++] & 1L;
+				last2 = d2[i2++] & 1L;
+				res[n++] = ( t1 << 1 ) | last1 | last2;
+
+			} else { // t1 > t2
+				last2 = d2[i2++] & 1L;
+				res[n++] = ( t2 << 1 ) | last1 | last2;
+
+			}
+		}
+
+		swap( res, n );
+	}
+
+	/*
+	 * in place complement from the first transition on
+	 */
+	public void not() {
+		for( int i = 0; i < size; i++ ) {
+			data[i] ^= 1L;
+		}
+	}
 }
@@ -0,0 +1,263 @@
+package com.llocer.ev.tarification;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+
+/*
+ * Elements of a catalog of tariffs that may apply to a session, so that a
+ * session is evaluated only against them and not the whole catalog:
+ * - an interval tree on the local date ranges of the elements that have one
+ * - bitsets of elements: without date range, by day of week, by local hour
+ * Candidates are returned in catalog order, later elements prevail.
+ * Immutable once built, it can be shared by any number of sessions.
+ */
+public class TariffIndex {
+	private static final int ALL_DAYS = (1 << 7)-1;
+	private static final int ALL_HOURS = (1 << 24)-1;
+
+	private final CompiledTariff[] tariffs; // by element ordinal
+	private final CompiledTariff.Element[] elements;
+	private final int[] indexes; // of each element in its tariff
+
+	// bitsets of element ordinals, 64 per word
+	private final int words;
+	private final long[] undated; // without start or end date
+	private final long[][] byDay; // by DayOfWeek.ordinal()
+	private final long[][] byHour; // by local hour
+
+	// interval tree: ordinals of the elements with a date range sorted by
+	// first date, the node of subtree lo..hi-1 is (lo+hi)/2
+	private final int[] byStart;
+	private final long[] starts; // epoch day, included
+	private final long[] ends; // epoch day, excluded
+	private final long[] maxEnds; // of the subtree
+
+	public TariffIndex( List<OcpiTariff> tariffs ) {
+		this( tariffs, TariffCache.DEFAULT );
+	}
+
+	public TariffIndex( List<OcpiTariff> tariffs, TariffCache cache ) {
+		List<CompiledTariff> compiled = new ArrayList<CompiledTariff>();
+		int n = 0;
+		for( OcpiTariff tariff : tariffs ) {
+			CompiledTariff c = cache.get( tariff );
+			compiled.add( c );
+			n += c.elements.length;
+		}
+
+		this.tariffs = new CompiledTariff[n];
+		this.elements = new CompiledTariff.Element[n];
+		this.indexes = new int[n];
+		this.words = (n+63) >>> 6;
+		this.undated = new long[words];
+		this.byDay = new long[7][words];
+		this.byHour = new long[24][words];
+		long[] elementStarts = new long[n];
+		long[] elementEnds = new long[n];
+		int[] datedOrdinals = new int[n];
+		int dated = 0;
+
+		int e = 0;
+		for( CompiledTariff tariff : compiled ) {
+			for( int i = 0; i < tariff.elements.length; i++, e++ ) {
+				CompiledTariff.Element element = tariff.elements[i];
+				this.tariffs[e] = tariff;
+				this.elements[e] = element;
+				this.indexes[e] = i;
+				setBits( byDay, daysMask( element ), e );
+				setBits( byHour, hoursMask( element ), e );
+				if( element.startDate == null && element.endDate == null ) {
+					undated[e >>> 6] |= 1L << e;
+				} else {
+					elementStarts[dated] = ( element.startDate == null ? Long.MIN_VALUE : element.startDate.toEpochDay() );
+					elementEnds[dated] = ( element.endDate == null ? Long.MAX_VALUE : element.endDate.toEpochDay() );
+					datedOrdinals[dated++] = e;
+				}
+			}
+		}
+
+		Integer[] order = new Integer[dated];
+		for( int i = 0; i < dated; i++ ) order[i] = i;
+		Arrays.sort( order, Comparator.comparingLong( i -> elementStarts[i] ) );
+
+		this.byStart = new int[dated];
+		this.starts = new long[dated];
+		this.ends = new long[dated];
+		this.maxEnds = new long[dated];
+		for( int i = 0; i < dated; i++ ) {
+			byStart[i] = datedOrdinals[ order[i] ];
+			starts[i] = elementStarts[ order[i] ];
+			ends[i] = elementEnds[ order[i] ];
+		}
+		buildMaxEnds( 0, dated );
+	}
+
+	/*
+	 * adds element e to the bitsets of the bits of mask
+	 */
+	private static void setBits( long[][] bitsets, int mask, int e ) {
+		for( int b = 0; b < bitsets.length; b++ ) {
+			if( ( mask & (1 << b) ) != 0 ) bitsets[b][e >>> 6] |= 1L << e;
+		}
+	}
+
+	private static int daysMask( CompiledTariff.Element element ) {
+		if( element.dayOfWeek == null ) return ALL_DAYS;
+
+		int res = 0;
+		for( DayOfWeek day : element.dayOfWeek ) {
+			res |= 1 << day.ordinal();
+		}
+		return res;
+	}
+
+	/*
+	 * hours touched by the time window, plus the previous and next ones
+	 * for the starts and ends moved by DST
+	 */
+	private static int hoursMask( CompiledTariff.Element element ) {
+		if( element.startTime == null ) return ALL_HOURS;
+		if( element.startTime.equals( element.endTime ) ) return 0; // empty window
+
+		int start = element.startTime.toSecondOfDay();
+		int length = Math.floorMod( element.endTime.toSecondOfDay()-start, 24*3600 ); // overnight too
+		int first = start/3600;
+		int n = (start+length-1)/3600-first+3; // first-1..last+1
+		if( n >= 24 ) return ALL_HOURS;
+
+		int res = 0;
+		for( int h = first-1; h < first-1+n; h++ ) {
+			res |= 1 << Math.floorMod( h, 24 );
+		}
+		return res;
+	}
+
+	private long buildMaxEnds( int lo, int hi ) {
+		if( lo >= hi ) return Long.MIN_VALUE;
+
+		int mid = (lo+hi) >>> 1;
+		long res = Math.max( ends[mid], Math.max( buildMaxEnds( lo, mid ), buildMaxEnds( mid+1, hi ) ) );
+		maxEnds[mid] = res;
+		return res;
+	}
+
+	/*
+	 * sets in res the elements whose dates overlap first..last
+	 */
+	private void overlapping( int lo, int hi, long first, long last, long[] res ) {
+		if( lo >= hi ) return;
+
+		int mid = (lo+hi) >>> 1;
+		if( maxEnds[mid] <= first ) return; // all of them end before
+
+		overlapping( lo, mid, first, last, res );
+		if( starts[mid] > last ) return; // this and the following ones start after
+
+		if( ends[mid] > first ) res[ byStart[mid] >>> 6 ] |= 1L << byStart[mid];
+		overlapping( mid+1, hi, first, last, res );
+	}
+
+	public int size() {
+		return elements.length;
+	}
+
+	/*
+	 * ordinals of the elements that may be valid between from and to
+	 * (epoch milliseconds, both included), in catalog order
+	 */
+	int[] candidates( long from, long to, ZoneId zone ) {
+		ZonedDateTime start = Instant.ofEpochMilli( from ).atZone( zone );
+		ZonedDateTime end = Instant.ofEpochMilli( Math.max( from, to ) ).atZone( zone );
+		LocalDate firstDay = start.toLocalDate();
+		LocalDate lastDay = end.toLocalDate();
+
+		int spanDays = 0;
+		if( ChronoUnit.DAYS.between( firstDay, lastDay ) >= 6 ) {
+			spanDays = ALL_DAYS;
+		} else {
+			for( LocalDate day = firstDay; !day.isAfter( lastDay ); day = day.plusDays( 1 ) ) {
+				spanDays |= 1 << day.getDayOfWeek().ordinal();
+			}
+		}
+
+		int spanHours = 0;
+		if( to-from >= 24*3600_000L ) {
+			spanHours = ALL_HOURS;
+		} else {
+			ZonedDateTime hour = start.truncatedTo( ChronoUnit.HOURS );
+			while( !hour.isAfter( end ) ) {
+				spanHours |= 1 << hour.getHour();
+				hour = hour.plusHours( 1 );
+			}
+		}
+
+		return select( firstDay.toEpochDay(), lastDay.toEpochDay(), spanDays, spanHours );
+	}
+
+	/*
+	 * ordinals of the elements that may be valid from from (epoch
+	 * milliseconds) on, whatever the end, in catalog order
+	 */
+	int[] candidates( long from, ZoneId zone ) {
+		LocalDate firstDay = Instant.ofEpochMilli( from ).atZone( zone ).toLocalDate();
+		return select( firstDay.toEpochDay(), Long.MAX_VALUE, ALL_DAYS, ALL_HOURS );
+	}
+
+	/*
+	 * elements whose dates overlap firstDay..lastDay (epoch days) and valid
+	 * on a day and an hour of the masks
+	 */
+	private int[] select( long firstDay, long lastDay, int spanDays, int spanHours ) {
+		long[] set = undated.clone();
+		overlapping( 0, byStart.length, firstDay, lastDay, set );
+
+		int n = 0;
+		for( int w = 0; w < words; w++ ) {
+			if( set[w] == 0L ) continue;
+			set[w] &= union( byDay, spanDays, w ) & union( byHour, spanHours, w ); // even when all, for the empty masks
+			n += Long.bitCount( set[w] );
+		}
+
+		int[] res = new int[n];
+		int k = 0;
+		for( int w = 0; w < words; w++ ) {
+			for( long bits = set[w]; bits != 0L; bits &= bits-1 ) {
+				res[k++] = (w << 6)+Long.numberOfTrailingZeros( bits );
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * word w of the union of the bitsets of the bits of mask
+	 */
+	private static long union( long[][] bitsets, int mask, int w ) {
+		long res = 0L;
+		for( int b = 0; b < bitsets.length; b++ ) {
+			if( ( mask & (1 << b) ) != 0 ) res |= bitsets[b][w];
+		}
+		return res;
+	}
+
+	CompiledTariff tariff( int e ) {
+		return tariffs[e];
+	}
+
+	CompiledTariff.Element element( int e ) {
+		return elements[e];
+	}
+
+	int indexInTariff( int e ) {
+		return indexes[e];
+	}
+}
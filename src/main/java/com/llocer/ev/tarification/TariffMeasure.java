@@ -11,6 +11,9 @@ import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
 import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent.Type;
 import com.llocer.ev.ocpi.msgs22.OcpiTariff;
 
+/*
+ * Single row of TariffMeasures, null fields are not present
+ */
 public class TariffMeasure {
 	public final long t; // interval in milliseconds from TariffIntervals.start
 	
@@ -78,18 +81,6 @@ public class TariffMeasure {
 		return components.entrySet();
 	}
 
-	TariffMeasure dup() {
-		TariffMeasure res = new TariffMeasure( this.t );
-		res.totalReservationTime = this.totalReservationTime;
-		res.totalParkingTime = this.totalParkingTime;
-		res.totalChargingTime = this.totalChargingTime;
-		res.totalEnergy = this.totalEnergy;
-		res.current = this.current;
-		res.power = this.power;
-		res.putAllComponents( this );
-		return res;
-	}
-	
 	public static TariffMeasure zero() {
 		TariffMeasure res = new TariffMeasure( 0 );
 		res.totalReservationTime = 0L;
@@ -101,47 +92,6 @@ public class TariffMeasure {
 		return res;
 	}
 	
-	void interpolation( TariffMeasure vi, TariffMeasure vf ) {
-		double percent = (vf.t == vi.t ? 0.0 : ((double)t-vi.t)/(vf.t-vi.t) );
-
-		// interpolation
-		if( totalReservationTime == null && vf.totalReservationTime != null ) {
-			totalReservationTime = (long) (vi.totalReservationTime+percent*(vf.totalReservationTime-vi.totalReservationTime));
-		}
-		
-		// interpolation
-		if( totalParkingTime == null && vf.totalParkingTime != null ) {
-			totalParkingTime = (long) (vi.totalParkingTime+percent*(vf.totalParkingTime-vi.totalParkingTime));
-		}
-
-		// interpolation
-		if( totalChargingTime == null && vf.totalChargingTime != null ) {
-			totalChargingTime = (long) (vi.totalChargingTime+percent*(vf.totalChargingTime-vi.totalChargingTime));
-		}
-		
-		// interpolation
-		if( totalEnergy == null && vf.totalEnergy != null ) {
-			totalEnergy = vi.totalEnergy+percent*(vf.totalEnergy-vi.totalEnergy);
-		}
-		
-		// copy previous
-		if( current == null && vi.current != null ) {
-			current = vi.current;
-		}
-		
-		// copy previous
-		if( power == null && vi.power != null ) {
-			power = vi.power;
-		}
-	}
-	
-	public static TariffMeasure interpolation( TariffMeasure vi, long t, TariffMeasure vf ) {
-		TariffMeasure res = new TariffMeasure(t);
-		res.interpolation( vi, vf );
-		res.putAllComponents( vi );
-		return res;
-	}
-	
 	@Override
 	public String toString() {
 		StringBuilder res = new StringBuilder();
@@ -1,283 +1,720 @@
 package com.llocer.ev.tarification;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.function.Function;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import com.llocer.common.Log;
 import com.llocer.common.Tuple2;
 import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent.Type;
 import com.llocer.ev.ocpi.msgs22.OcpiTariff;
 
+/*
+ * Timeline of measures stored by columns: one primitive array per magnitude,
+ * plus a bitmap of present values per row.
+ */
 public class TariffMeasures implements Iterable<TariffMeasure> {
-	
+
+	public enum Column {
+		DURATION( true, true ), // t itself, always present
+		RESERVATION_TIME( true, true ),
+		PARKING_TIME( true, true ),
+		CHARGING_TIME( true, true ),
+		ENERGY( false, true ),
+		CURRENT( false, false ),
+		POWER( false, false );
+
+		final boolean time; // stored in a long[] column
+		final boolean cumulative; // true: interpolated, false: copied from previous
+		final int mask = 1 << ordinal();
+
+		Column( boolean time, boolean cumulative ) {
+			this.time = time;
+			this.cumulative = cumulative;
+		}
+	}
+
+	static final Column[] COLUMNS = Column.values();
+	private static final int INITIAL_CAPACITY = 16;
+
 	public static <T> T next( Iterator<T> it ) {
 		return( it.hasNext() ? it.next() : null );
 	}
-	
-	private LinkedList<TariffMeasure> data;
-	
+
+	private int size = 0;
+
+	private long[] t; // interval in milliseconds from start
+	private long[] totalReservationTime;
+	private long[] totalParkingTime;
+	private long[] totalChargingTime;
+	private double[] totalEnergy;
+	private double[] current;
+	private double[] power;
+	private byte[] present; // Column.mask bits
+	private int[] components; // ids of sets
+	private ComponentSets sets;
+
 	public TariffMeasures() {
-		this.data = new LinkedList<TariffMeasure>();
+		this( INITIAL_CAPACITY );
+	}
+
+	public TariffMeasures( int capacity ) {
+		this( capacity, new ComponentSets() );
 	}
-	
+
+	/*
+	 * sets: shared with the TariffMeasures this one is derived from
+	 */
+	private TariffMeasures( int capacity, ComponentSets sets ) {
+		capacity = Math.max( capacity, 1 );
+		this.t = new long[capacity];
+		this.totalReservationTime = new long[capacity];
+		this.totalParkingTime = new long[capacity];
+		this.totalChargingTime = new long[capacity];
+		this.totalEnergy = new double[capacity];
+		this.current = new double[capacity];
+		this.power = new double[capacity];
+		this.present = new byte[capacity];
+		this.components = new int[capacity];
+		this.sets = sets;
+	}
+
+	private void ensureCapacity( int capacity ) {
+		if( capacity <= t.length ) return;
+
+		int n = Math.max( capacity, 2*t.length );
+		t = Arrays.copyOf( t, n );
+		totalReservationTime = Arrays.copyOf( totalReservationTime, n );
+		totalParkingTime = Arrays.copyOf( totalParkingTime, n );
+		totalChargingTime = Arrays.copyOf( totalChargingTime, n );
+		totalEnergy = Arrays.copyOf( totalEnergy, n );
+		current = Arrays.copyOf( current, n );
+		power = Arrays.copyOf( power, n );
+		present = Arrays.copyOf( present, n );
+		components = Arrays.copyOf( components, n );
+	}
+
+	private void takeFrom( TariffMeasures other ) {
+		this.size = other.size;
+		this.t = other.t;
+		this.totalReservationTime = other.totalReservationTime;
+		this.totalParkingTime = other.totalParkingTime;
+		this.totalChargingTime = other.totalChargingTime;
+		this.totalEnergy = other.totalEnergy;
+		this.current = other.current;
+		this.power = other.power;
+		this.present = other.present;
+		this.components = other.components;
+		this.sets = other.sets;
+	}
+
+	/*
+	 * rows
+	 */
+
+	public int size() {
+		return size;
+	}
+
+	public long t( int i ) {
+		return t[i];
+	}
+
+	/*
+	 * appends an empty row, returns its index
+	 */
+	public int add( long t ) {
+		ensureCapacity( size+1 );
+		this.t[size] = t;
+		this.present[size] = (byte)Column.DURATION.mask;
+		this.components[size] = ComponentSets.EMPTY;
+		return size++;
+	}
+
 	public void add( TariffMeasure tm ) {
-		data.addLast( tm );
+		int i = add( tm.t );
+		if( tm.totalReservationTime != null ) setTime( Column.RESERVATION_TIME, i, tm.totalReservationTime );
+		if( tm.totalParkingTime != null ) setTime( Column.PARKING_TIME, i, tm.totalParkingTime );
+		if( tm.totalChargingTime != null ) setTime( Column.CHARGING_TIME, i, tm.totalChargingTime );
+		if( tm.totalEnergy != null ) setValue( Column.ENERGY, i, tm.totalEnergy );
+		if( tm.current != null ) setValue( Column.CURRENT, i, tm.current );
+		if( tm.power != null ) setValue( Column.POWER, i, tm.power );
+		for( Entry<Type, Tuple2<OcpiTariff, OcpiPriceComponent>> e : tm.componentsSet() ) {
+			setComponent( i, e.getValue() );
+		}
+	}
+
+	private int copyRow( TariffMeasures from, int i ) {
+		int n = add( from.t[i] );
+		totalReservationTime[n] = from.totalReservationTime[i];
+		totalParkingTime[n] = from.totalParkingTime[i];
+		totalChargingTime[n] = from.totalChargingTime[i];
+		totalEnergy[n] = from.totalEnergy[i];
+		current[n] = from.current[i];
+		power[n] = from.power[i];
+		present[n] = from.present[i];
+		components[n] = sets.of( from.sets, from.components[i] );
+		return n;
+	}
+
+	/*
+	 * columns
+	 */
+
+	public boolean has( Column c, int i ) {
+		return ( present[i] & c.mask ) != 0;
+	}
+
+	private long[] timeColumn( Column c ) {
+		switch( c ) {
+		case DURATION: return t;
+		case RESERVATION_TIME: return totalReservationTime;
+		case PARKING_TIME: return totalParkingTime;
+		case CHARGING_TIME: return totalChargingTime;
+		default: throw new IllegalArgumentException( c.name() );
+		}
+	}
+
+	private double[] valueColumn( Column c ) {
+		switch( c ) {
+		case ENERGY: return totalEnergy;
+		case CURRENT: return current;
+		case POWER: return power;
+		default: throw new IllegalArgumentException( c.name() );
+		}
+	}
+
+	public long getTime( Column c, int i ) {
+		return timeColumn(c)[i]; // 0 if not present
+	}
+
+	public void setTime( Column c, int i, long v ) {
+		timeColumn(c)[i] = v;
+		present[i] |= c.mask;
+	}
+
+	/*
+	 * value of any column as double, 0 if not present
+	 */
+	public double getValue( Column c, int i ) {
+		return( c.time ? timeColumn(c)[i] : valueColumn(c)[i] );
 	}
-	
+
+	public void setValue( Column c, int i, double v ) {
+		valueColumn(c)[i] = v;
+		present[i] |= c.mask;
+	}
+
+	public double getEnergy( int i ) {
+		return totalEnergy[i];
+	}
+
+	/*
+	 * components
+	 */
+
+	public Tuple2<OcpiTariff, OcpiPriceComponent> getComponent( int i, OcpiPriceComponent.Type pct ) {
+		return sets.get( components[i], pct );
+	}
+
+	public void setComponent( int i, Tuple2<OcpiTariff, OcpiPriceComponent> tariffAndPriceComponent ) {
+		components[i] = sets.with( components[i], tariffAndPriceComponent );
+	}
+
+	/*
+	 * rows i and j have the same tariffs and price components
+	 */
+	public boolean sameComponents( int i, int j ) {
+		return components[i] == components[j];
+	}
+
+	/*
+	 * row i has the tariffs and price components of other, those of a row of
+	 * any TariffMeasures priced with the same compiled tariffs
+	 */
+	public boolean sameComponents( int i, Map<Type, Tuple2<OcpiTariff, OcpiPriceComponent>> other ) {
+		Map<Type, Tuple2<OcpiTariff, OcpiPriceComponent>> map = sets.map( components[i] );
+		if( map == other ) return true;
+		if( map.size() != other.size() ) return false;
+
+		for( Entry<Type, Tuple2<OcpiTariff, OcpiPriceComponent>> e : map.entrySet() ) {
+			Tuple2<OcpiTariff, OcpiPriceComponent> o = other.get( e.getKey() );
+			if( o == null || o.f1 != e.getValue().f1 || o.f2 != e.getValue().f2 ) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * unmodifiable, in Type order
+	 */
+	public Map<Type, Tuple2<OcpiTariff, OcpiPriceComponent>> components( int i ) {
+		return sets.map( components[i] );
+	}
+
+	public Set<Entry<Type, Tuple2<OcpiTariff, OcpiPriceComponent>>> componentsSet( int i ) {
+		return sets.map( components[i] ).entrySet();
+	}
+
+	/*
+	 * row view, allocates a new TariffMeasure
+	 */
+	public TariffMeasure get( int i ) {
+		TariffMeasure res = new TariffMeasure( t[i] );
+		if( has( Column.RESERVATION_TIME, i ) ) res.totalReservationTime = totalReservationTime[i];
+		if( has( Column.PARKING_TIME, i ) ) res.totalParkingTime = totalParkingTime[i];
+		if( has( Column.CHARGING_TIME, i ) ) res.totalChargingTime = totalChargingTime[i];
+		if( has( Column.ENERGY, i ) ) res.totalEnergy = totalEnergy[i];
+		if( has( Column.CURRENT, i ) ) res.current = current[i];
+		if( has( Column.POWER, i ) ) res.power = power[i];
+		for( Entry<Type, Tuple2<OcpiTariff, OcpiPriceComponent>> e : componentsSet(i) ) {
+			res.setComponent( e.getValue() );
+		}
+		return res;
+	}
+
 	@Override
 	public Iterator<TariffMeasure> iterator() {
-		return data.iterator();
+		return new Iterator<TariffMeasure>() {
+			private int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < size;
+			}
+
+			@Override
+			public TariffMeasure next() {
+				if( i >= size ) throw new NoSuchElementException();
+				return get( i++ );
+			}
+		};
 	}
-	
+
 	public void dump( String label ) {
-		for( TariffMeasure tm : data ) {
-			Log.debug( "TariffIntervals.dump: %s => %s", label, tm );
+		for( int i = 0; i < size; i++ ) {
+			Log.debug( "TariffIntervals.dump: %s => %s", label, get(i) );
 		}
 		Log.debug( "TariffIntervals.dump: %s -----", label );
 	}
-	
+
 	public TariffMeasures dup() {
-		TariffMeasures res = new TariffMeasures();
-		for( TariffMeasure tm : data ) {
-			res.add( tm.dup() );
+		return copy( 0 );
+	}
+
+	/*
+	 * fills row d of dst from rows vi (previous) and vf (following)
+	 */
+	private static void interpolation( TariffMeasures dst, int d, TariffMeasures vi, int i, TariffMeasures vf, int f ) {
+		if( vi == null ) return; // nothing before
+
+		double percent = (vf.t[f] == vi.t[i] ? 0.0 : ((double)dst.t[d]-vi.t[i])/(vf.t[f]-vi.t[i]) );
+
+		for( Column c : COLUMNS ) {
+			if( dst.has( c, d ) ) continue;
+
+			if( c.cumulative ) {
+				// interpolation
+				if( !vf.has( c, f ) || !vi.has( c, i ) ) continue;
+
+				if( c.time ) {
+					long v0 = vi.getTime( c, i );
+					dst.setTime( c, d, (long)( v0+percent*(vf.getTime( c, f )-v0) ) );
+				} else {
+					double v0 = vi.getValue( c, i );
+					dst.setValue( c, d, v0+percent*(vf.getValue( c, f )-v0) );
+				}
+
+			} else {
+				// copy previous
+				if( !vi.has( c, i ) ) continue;
+				dst.setValue( c, d, vi.getValue( c, i ) );
+
+			}
 		}
-		return res;
 	}
-	
+
 	public void joinMeasure( TariffMeasures measure ) {
-		
-		Iterator<TariffMeasure> it1 = data.iterator();
-		Iterator<TariffMeasure> it2 = measure.data.iterator();
-		
-		TariffMeasure tm1 = next( it1 );
-		TariffMeasure tm2 = next( it2 );
-		if( tm1 == null || tm2 == null) return;
-		
-		TariffMeasure last1 = null;
-		TariffMeasure last2 = null;
-		
-		TariffMeasures res = new TariffMeasures();
-		
-		while( tm1 != null ) {
-			if( tm2 == null ) {
-				tm1.interpolation( last2, last2 );
-				res.add( tm1 );
-
-//				last1 = tm1;
-				tm1 = next( it1 );
-				
-			} else if( tm1.t < tm2.t ) {
-				tm1.interpolation( last2, tm2 );
-				res.add( tm1 );
-
-				last1 = tm1;
-				tm1 = next( it1 );
-				
-			} else if( tm1.t == tm2.t ) {
-				tm1.interpolation( tm2, tm2 );
-				res.add( tm1 );
-
-				last1 = tm1;
-				tm1 = next( it1 );
-				last2 = tm2;
-				tm2 = next( it2 );
-				
-			} else { // tm1.t > tm2.t
-				tm2.interpolation( last1, tm1 );
-				res.add( tm2 );
-
-				last2 = tm2;
-				tm2 = next( it2 );
-				
+		if( this.size == 0 || measure.size == 0 ) return;
+
+		int i1 = 0;
+		int i2 = 0;
+
+		// previous rows, they could be at res or at measure
+		TariffMeasures last1 = null;
+		int l1 = -1;
+		TariffMeasures last2 = null;
+		int l2 = -1;
+
+		TariffMeasures res = new TariffMeasures( this.size+measure.size, sets );
+
+		while( i1 < this.size ) {
+			if( i2 >= measure.size ) {
+				int n = res.copyRow( this, i1 );
+				interpolation( res, n, last2, l2, last2, l2 );
+
+				i1++;
+
+			} else if( this.t[i1] < measure.t[i2] ) {
+				int n = res.copyRow( this, i1 );
+				interpolation( res, n, last2, l2, measure, i2 );
+
+				last1 = res; l1 = n;
+				i1++;
+
+			} else if( this.t[i1] == measure.t[i2] ) {
+				int n = res.copyRow( this, i1 );
+				interpolation( res, n, measure, i2, measure, i2 );
+
+				last1 = res; l1 = n;
+				i1++;
+				last2 = measure; l2 = i2;
+				i2++;
+
+			} else { // t1 > t2
+				int n = res.copyRow( measure, i2 );
+				interpolation( res, n, last1, l1, this, i1 );
+
+				last2 = res; l2 = n;
+				i2++;
+
 			}
 		}
-		
-//		res.dump( "and::res");
-		data = res.data;
+
+		takeFrom( res );
 	}
-	
+
+	/*
+	 * copies the present values of row i of from into row n
+	 */
+	void copyValues( TariffMeasures from, int i, int n ) {
+		for( Column c : COLUMNS ) {
+			if( c == Column.DURATION || !from.has( c, i ) ) continue;
+
+			if( c.time ) {
+				setTime( c, n, from.getTime( c, i ) );
+			} else {
+				setValue( c, n, from.getValue( c, i ) );
+			}
+		}
+	}
+
+	/*
+	 * row i has the values that the merge would give to a row between rows
+	 * i0 and i1, exactly: cumulative columns interpolated, the others equal.
+	 * Columns of the unchanged masks must be equal in the three rows.
+	 */
+	boolean isRedundant( int i, int i0, int i1, int unchanged ) {
+		if( present[i] != present[i0] || present[i] != present[i1] ) return false;
+
+		double percent = ((double)t[i]-t[i0])/(t[i1]-t[i0]);
+		for( Column c : COLUMNS ) {
+			if( c == Column.DURATION || !has( c, i ) ) continue;
+
+			if( !c.cumulative || ( unchanged & c.mask ) != 0 ) {
+				if( getValue( c, i0 ) != getValue( c, i ) || getValue( c, i ) != getValue( c, i1 ) ) return false;
+
+			} else if( c.time ) {
+				long v0 = getTime( c, i0 );
+				if( (long)( v0+percent*(getTime( c, i1 )-v0) ) != getTime( c, i ) ) return false;
+
+			} else {
+				double v0 = getValue( c, i0 );
+				if( v0+percent*(getValue( c, i1 )-v0) != getValue( c, i ) ) return false;
+
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * removes row i, following rows are moved back
+	 */
+	void remove( int i ) {
+		remove( i, i+1 );
+	}
+
+	/*
+	 * removes rows from..to-1, following rows are moved back
+	 */
+	void remove( int from, int to ) {
+		if( from >= to ) return;
+
+		int n = size-to;
+		System.arraycopy( t, to, t, from, n );
+		System.arraycopy( totalReservationTime, to, totalReservationTime, from, n );
+		System.arraycopy( totalParkingTime, to, totalParkingTime, from, n );
+		System.arraycopy( totalChargingTime, to, totalChargingTime, from, n );
+		System.arraycopy( totalEnergy, to, totalEnergy, from, n );
+		System.arraycopy( current, to, current, from, n );
+		System.arraycopy( power, to, power, from, n );
+		System.arraycopy( present, to, present, from, n );
+		System.arraycopy( components, to, components, from, n );
+		int removed = to-from;
+		Arrays.fill( components, size-removed, size, ComponentSets.EMPTY );
+		size -= removed;
+	}
+
+	/*
+	 * row i gets the value of c interpolated between row i0 of m0 and row i1 of m1
+	 */
+	void interpolate( Column c, int i, TariffMeasures m0, int i0, TariffMeasures m1, int i1 ) {
+		double percent = ((double)t[i]-m0.t[i0])/(m1.t[i1]-m0.t[i0]);
+		if( c.time ) {
+			long v0 = m0.getTime( c, i0 );
+			setTime( c, i, (long)( v0+percent*(m1.getTime( c, i1 )-v0) ) );
+		} else {
+			double v0 = m0.getValue( c, i0 );
+			setValue( c, i, v0+percent*(m1.getValue( c, i1 )-v0) );
+		}
+	}
+
+	/*
+	 * copies the value of c of row i0 of from into row i
+	 */
+	void copyValue( Column c, int i, TariffMeasures from, int i0 ) {
+		if( c.time ) {
+			setTime( c, i, from.getTime( c, i0 ) );
+		} else {
+			setValue( c, i, from.getValue( c, i0 ) );
+		}
+	}
+
+	/*
+	 * rows from..size-1 copied in a new TariffMeasures
+	 */
+	TariffMeasures copy( int from ) {
+		TariffMeasures res = new TariffMeasures( size-from, sets );
+		for( int i = from; i < size; i++ ) {
+			res.copyRow( this, i );
+		}
+		return res;
+	}
+
+	/*
+	 * columns of all the rows, components are not written
+	 */
+	void writeColumns( ByteBuffer out ) {
+		out.asLongBuffer().put( t, 0, size );
+		out.position( out.position()+8*size );
+		out.asLongBuffer().put( totalReservationTime, 0, size );
+		out.position( out.position()+8*size );
+		out.asLongBuffer().put( totalChargingTime, 0, size );
+		out.position( out.position()+8*size );
+		out.asLongBuffer().put( totalParkingTime, 0, size );
+		out.position( out.position()+8*size );
+		out.asDoubleBuffer().put( totalEnergy, 0, size );
+		out.position( out.position()+8*size );
+		out.asDoubleBuffer().put( current, 0, size );
+		out.position( out.position()+8*size );
+		out.asDoubleBuffer().put( power, 0, size );
+		out.position( out.position()+8*size );
+		out.put( present, 0, size );
+	}
+
+	static TariffMeasures readColumns( ByteBuffer in, int size ) {
+		TariffMeasures res = new TariffMeasures( size );
+		in.asLongBuffer().get( res.t, 0, size );
+		in.position( in.position()+8*size );
+		in.asLongBuffer().get( res.totalReservationTime, 0, size );
+		in.position( in.position()+8*size );
+		in.asLongBuffer().get( res.totalChargingTime, 0, size );
+		in.position( in.position()+8*size );
+		in.asLongBuffer().get( res.totalParkingTime, 0, size );
+		in.position( in.position()+8*size );
+		in.asDoubleBuffer().get( res.totalEnergy, 0, size );
+		in.position( in.position()+8*size );
+		in.asDoubleBuffer().get( res.current, 0, size );
+		in.position( in.position()+8*size );
+		in.asDoubleBuffer().get( res.power, 0, size );
+		in.position( in.position()+8*size );
+		in.get( res.present, 0, size );
+		res.size = size;
+		return res;
+	}
+
+	/*
+	 * first row with t >= v, size if none
+	 */
+	int indexOf( long v ) {
+		int low = 0;
+		int high = size;
+		while( low < high ) {
+			int mid = (low+high) >>> 1;
+			if( t[mid] < v ) {
+				low = mid+1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/*
+	 * every row from the last one at or before t has a component of each
+	 * type of priceComponents: an assign() of them valid nowhere from t on
+	 * would neither set a component nor insert a row
+	 */
+	boolean hasComponents( List<Tuple2<OcpiTariff, OcpiPriceComponent>> priceComponents, long t ) {
+		int last = -1; // consecutive rows usually have the same set
+		for( int i = Math.max( indexOf( t+1 )-1, 0 ); i < size; i++ ) {
+			if( components[i] == last ) continue;
+			last = components[i];
+			for( Tuple2<OcpiTariff, OcpiPriceComponent> priceComponent : priceComponents ) {
+				if( sets.get( last, priceComponent.f2.getType() ) == null ) return false;
+			}
+		}
+		return true;
+	}
+
 	public void assign( Tuple2<OcpiTariff, OcpiPriceComponent> tariffAndPriceComponent, TariffFlags assigned) {
-//		dump( "p");
-//		assigned.dump( "a" );
-		
-		Iterator<TariffMeasure> pIt = data.iterator();
-		Iterator<TariffFlag> aIt = assigned.iterator();
-		
-		TariffMeasures res = new TariffMeasures(); 
-				
-		TariffMeasure p = next( pIt );
-		TariffFlag a = next( aIt );
-		if( a==null || p==null ) return;
-		
-		TariffMeasure last_p = null;
-		TariffFlag last_a = new TariffFlag(0L, false );
-		
-		while( p != null  ) {
-			if( a == null ) { 
-				if( last_a.ok ) {
-					p.setComponent(tariffAndPriceComponent);
-				}
-				res.add( p );				
-				
-//				last_p = p;
-				p = next( pIt );
-				
-			} else if( p.t < a.t ) { 
-				TariffMeasure n = p.dup();
-				if( last_a.ok ) {
-					n.setComponent(tariffAndPriceComponent);
-				}
-				res.add( n );				
-				
-				last_p = p;
-				p = next( pIt );
-				
-			} else if( p.t == a.t ) {
-				TariffMeasure n = p.dup();
-				if( a.ok ) {
-					n.setComponent(tariffAndPriceComponent);
-				}
-				res.add( n );	
-				
-				last_p = p;
-				p = next( pIt );
-
-				last_a = a;
-				a = next( aIt );
-				
-			} else { // a.t < p.t 
-				if( last_p.getComponent(tariffAndPriceComponent.f2.getType()) == null ) {
-					// [a...] < p
-					TariffMeasure n = TariffMeasure.interpolation( last_p, a.t, p );
-					if( a.ok ) {
-						n.setComponent(tariffAndPriceComponent);
+		assign( Collections.singletonList( tariffAndPriceComponent ), assigned );
+	}
+
+	/*
+	 * assigns all the price components of an element, valid as assigned, in
+	 * one sweep: the same rows as assign() of each of them, in order
+	 */
+	public void assign( List<Tuple2<OcpiTariff, OcpiPriceComponent>> priceComponents, TariffFlags assigned ) {
+		int na = assigned.size();
+		if( na == 0 || size == 0 || priceComponents.isEmpty() ) return;
+
+		TariffMeasures res = new TariffMeasures( size+na, sets );
+		int lastIn = -1; // consecutive rows usually have the same set
+		int lastOut = -1;
+
+		int a = 0; // next flag
+		int last_p = -1;
+		boolean last_ok = false;
+
+		for( int p = 0; p < size; p++ ) {
+			// flags before the row
+			int a0 = a;
+			while( a < na && assigned.t( a ) < t[p] ) a++;
+			if( a > a0 ) {
+				if( last_p >= 0 ) inside( res, last_p, p, priceComponents, assigned, a0, a, last_ok );
+				last_ok = assigned.ok( a-1 );
+			}
+
+			if( a < na && assigned.t( a ) == t[p] ) {
+				last_ok = assigned.ok( a );
+				a++;
+			}
+
+			int n = res.copyRow( this, p );
+			if( last_ok ) {
+				if( components[p] != lastIn ) {
+					lastIn = components[p];
+					lastOut = lastIn;
+					for( Tuple2<OcpiTariff, OcpiPriceComponent> priceComponent : priceComponents ) {
+						lastOut = sets.with( lastOut, priceComponent );
 					}
-					res.add( n );
 				}
+				res.components[n] = lastOut;
+			}
+			last_p = p;
+		}
+
+		takeFrom( res );
+	}
+
+	/*
+	 * flags a0..a1-1 change the validity between rows i and f: rows are
+	 * inserted as assign() of each price component would, replayed on a
+	 * scratch copy of the period, and appended to res
+	 */
+	private void inside( TariffMeasures res, int i, int f, List<Tuple2<OcpiTariff, OcpiPriceComponent>> priceComponents, TariffFlags assigned, int a0, int a1, boolean ok0 ) {
+		TariffMeasures local = new TariffMeasures( a1-a0+2, sets );
+		local.copyRow( this, i );
+		local.copyRow( this, f );
+		int[] order = { 0, 1 }; // rows of local by t, the first is i and the last f
+
+		for( Tuple2<OcpiTariff, OcpiPriceComponent> priceComponent : priceComponents ) {
+			Type type = priceComponent.f2.getType();
+			int[] before = local.components.clone();
+			int[] next = new int[order.length+a1-a0];
+			int nn = 0;
+
+			if( ok0 ) local.setComponent( order[0], priceComponent ); // row i
+			next[nn++] = order[0];
+			int last_p = order[0];
+			boolean last_ok = ok0;
+			int p = 1;
+			int a = a0;
+			while( a < a1 ) {
+				int row = order[p];
+				if( local.t[row] < assigned.t( a ) ) {
+					if( last_ok ) local.setComponent( row, priceComponent );
+					next[nn++] = row;
+					last_p = row;
+					p++;
 
-				last_a = a;
-				a = next( aIt );
-				
+				} else if( local.t[row] == assigned.t( a ) ) {
+					if( assigned.ok( a ) ) local.setComponent( row, priceComponent );
+					next[nn++] = row;
+					last_p = row;
+					p++;
+					last_ok = assigned.ok( a );
+					a++;
+
+				} else {
+					int c = before[last_p];
+					if( sets.get( c, type ) == null ) {
+						int n = local.add( assigned.t( a ) );
+						interpolation( local, n, local, last_p, local, row );
+						local.components[n] = c;
+						if( assigned.ok( a ) ) local.setComponent( n, priceComponent );
+						next[nn++] = n;
+					}
+					last_ok = assigned.ok( a );
+					a++;
+
+				}
+			}
+			for( ; p < order.length-1; p++ ) {
+				if( last_ok ) local.setComponent( order[p], priceComponent );
+				next[nn++] = order[p];
 			}
+			next[nn++] = order[order.length-1]; // row f, assigned by the caller
+			order = Arrays.copyOf( next, nn );
+		}
+
+		for( int k = 1; k < order.length-1; k++ ) {
+			res.copyRow( local, order[k] );
 		}
-		
-		data = res.data;
-		res.data = null;
-//		dump( "p'");
 	}
-	
-	public TariffFlags threshold( boolean max, double threshold, Function<TariffMeasure,Double> f ) {
+
+	public TariffFlags threshold( boolean max, double threshold, Column column ) {
 		TariffFlags res = new TariffFlags();
-		
+
 		boolean last_ok = false;
-		TariffMeasure last = null;
-		
-		for( TariffMeasure tm : data ) {
-			double v = f.apply(tm);
+		double last_v = 0.0;
+
+		for( int i = 0; i < size; i++ ) {
+			double v = getValue( column, i );
 			boolean ok = ( max ? v < threshold : v >= threshold );
-		
-			if( last == null ) {
+
+			if( i == 0 ) {
 				// first
-				res.add( tm.t, ok );
-				
+				res.add( t[i], ok );
+
 			} else if( last_ok != ok ){
-				double percent = (threshold-f.apply(last))/(v-f.apply(last));
-				long t = (long)( last.t+percent*(tm.t-last.t) );
-				res.add( t, ok );
-				
+				double percent = (threshold-last_v)/(v-last_v);
+				long tc = (long)( t[i-1]+percent*(t[i]-t[i-1]) );
+				res.add( tc, ok );
+
 			}
-			
-			last = tm;
+
+			last_v = v;
 			last_ok = ok;
 		}
 
 		return res;
 	}
-
-//	public TariffIntervals timeType( Function<TariffMark,Long> f ) {
-//		TariffIntervals res = new TariffIntervals();
-//
-//		long last_duration = 0L;
-//		TariffMark last = null;
-//		
-//		for( TariffMark tm : data ) {
-//			long duration = f.apply(tm);
-//		
-//			if( last != null ) {
-//				last.ok = (last_duration != duration);
-//			}
-//			
-//			last = tm.dup();
-//			res.add( last );
-//				
-//			last_duration = duration;
-//		}
-//
-//		return res;
-//	}
-	
-//	private TariffIntervals duration() {
-//
-//		TariffIntervals res = new TariffIntervals( startInstant, startValue );
-//		
-//		double duration = 0;
-//		long last_timestamp = 0;
-//		for( TariffMark tm : this.data ) {
-//			if( tm.ok ) {
-//				duration += tm.t-last_timestamp;
-//			}
-//			res.addLast( tm.ok, tm.t, duration );
-//			last_timestamp = tm.t;;
-//		}
-//
-//		return res;
-//	}
-//	
-//	public TariffIntervals valueThreshold( boolean max, double threshold ) {
-//		TariffIntervals tmp = threshold( max, threshold );
-//		return and( tmp );
-//	}
-//	
-//	public TariffIntervals durationThreshold( boolean max, long threshold ) {
-//		TariffIntervals tmp = duration().threshold( max, threshold );
-//		return and( tmp );
-//	}
-//	
-//	public long sumTimes() {
-//		long res = 0;
-//		long lastTimestamp = 0;
-//		for( TariffMark tm : data ) {
-//			if( tm.ok ) {
-//				res += ( tm.t-lastTimestamp );
-//			}
-//			lastTimestamp = tm.t;
-//		}
-//		return res;
-//	}
-//	
-//	public double sumValues() {
-//		double res = 0.0;
-//		double lastValue = 0.0;
-//		for( TariffMark tm : data ) {
-//			if( tm.ok ) {
-//				res += ( tm.value-lastValue );
-//			}
-//			lastValue = tm.value;
-//		}
-//		return res;
-//	}
-//
-//	public Instant getStartTime() {
-//		TariffMark last = null;
-//		for( TariffMark tm : data ) {
-//			if( tm.ok ) {
-//				if( last == null ) return this.startInstant;
-//				return this.startInstant.plusMillis( tm.t );
-//			}
-//			last = tm;
-//		}
-//		return null;
-//	}
-
 }
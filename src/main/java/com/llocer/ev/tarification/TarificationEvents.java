@@ -0,0 +1,108 @@
+package com.llocer.ev.tarification;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * Java Flight Recorder events, enabled by the recording settings, e.g.
+ * -XX:StartFlightRecording:settings=profile. When disabled, begin() and
+ * commit() do nothing and the events are not even allocated once compiled.
+ */
+final class TarificationEvents {
+
+	@Name( "com.llocer.ev.tarification.Cdr" )
+	@Label( "CDR" )
+	@Category( "Tarification" )
+	@Description( "Evaluation of a CDR, the phases are nested events of the same thread" )
+	@StackTrace( false )
+	static final class Cdr extends Event {
+		@Label( "Session Id" )
+		String sessionId;
+
+		@Label( "Events" )
+		@Description( "OCPP events added, 0 when rerating a timeline" )
+		int events;
+
+		@Label( "Measures" )
+		@Description( "rows of the evaluated timeline" )
+		int measures;
+
+		@Label( "Tariff Elements" )
+		@Description( "elements whose restrictions were checked" )
+		int elements;
+	}
+
+	@Name( "com.llocer.ev.tarification.Phase" )
+	@Label( "Tarification Phase" )
+	@Category( "Tarification" )
+	@StackTrace( false )
+	static final class Phase extends Event {
+		@Label( "Phase" )
+		@Description( "JOIN, CHECK_TARIFFS (restrictions and assignment) or FILL_COST" )
+		String phase;
+
+		@Label( "Rows" )
+		int rows;
+	}
+
+	@Name( "com.llocer.ev.tarification.PathologicalSession" )
+	@Label( "Pathological Session" )
+	@Category( "Tarification" )
+	@Description( "CDR whose timeline or evaluation exceeds TarificationOptions.pathologicalRows or pathologicalNanos" )
+	@StackTrace( false )
+	static final class PathologicalSession extends Event {
+		@Label( "Session Id" )
+		String sessionId;
+
+		@Label( "Events" )
+		int events;
+
+		@Label( "Measures" )
+		int measures;
+
+		@Label( "Tariff Elements" )
+		int elements;
+
+		@Label( "Evaluation Time" )
+		@Timespan( Timespan.NANOSECONDS )
+		long evaluationTime;
+	}
+
+	private TarificationEvents() {
+	}
+
+	static Phase begin( String phase ) {
+		Phase res = new Phase();
+		res.phase = phase;
+		res.begin();
+		return res;
+	}
+
+	static void end( Phase phase, int rows ) {
+		phase.rows = rows;
+		phase.commit();
+	}
+
+	/*
+	 * t0: System.nanoTime() at the start of the evaluation, read only if pathological is enabled
+	 */
+	static void commit( Cdr cdr, PathologicalSession pathological, long t0, TarificationOptions options ) {
+		cdr.commit();
+		if( !pathological.isEnabled() ) return;
+
+		long nanos = System.nanoTime()-t0;
+		if( cdr.measures <= options.pathologicalRows && nanos <= options.pathologicalNanos ) return;
+
+		pathological.sessionId = cdr.sessionId;
+		pathological.events = cdr.events;
+		pathological.measures = cdr.measures;
+		pathological.elements = cdr.elements;
+		pathological.evaluationTime = nanos;
+		pathological.commit();
+	}
+}
@@ -0,0 +1,50 @@
+package com.llocer.ev.tarification;
+
+/*
+ * Receiver of the timings and counters of each evaluation of a session,
+ * set in TarificationOptions.metrics. Implementations must be thread safe.
+ * When isEnabled() is false nothing is measured, not even the clock is read.
+ */
+public interface TarificationMetrics {
+
+	enum Phase {
+		EXTRACT, // events to streams of measures and their merge
+		JOIN, // merged timeline of the rows not accounted yet
+		RESTRICTIONS, // checkRestrictions of the candidate elements
+		ASSIGN, // price components to the timeline
+		FILL_COST // charging periods and totals
+	}
+
+	TarificationMetrics NONE = new TarificationMetrics() {
+		@Override
+		public boolean isEnabled() {
+			return false;
+		}
+	};
+
+	boolean isEnabled();
+
+	default void phase( Phase phase, long nanos ) {
+	}
+
+	/*
+	 * rows of the evaluated timeline
+	 */
+	default void timeline( int rows ) {
+	}
+
+	/*
+	 * transitions of the validity of the elements assigned
+	 */
+	default void flagTransitions( int transitions ) {
+	}
+
+	/*
+	 * elements whose restrictions were checked, and those discarded by the index
+	 */
+	default void elements( int evaluated, int skipped ) {
+	}
+
+	default void chargingPeriods( int periods ) {
+	}
+}
@@ -0,0 +1,67 @@
+package com.llocer.ev.tarification;
+
+import java.time.ZoneId;
+
+/*
+ * Settings of a tarification, defaults are those of OcpiTarification.makeCDR
+ */
+public class TarificationOptions {
+
+	public enum Downsampling {
+		NONE,
+		/*
+		 * rows whose values are interpolated from their neighbours are dropped,
+		 * also where a restriction or a step size applies: lossy, the totals
+		 * may change, only for estimates such as polling a running session,
+		 * not for billing
+		 */
+		COLLINEAR,
+		/*
+		 * COLLINEAR, but for the rows where the tariffs may change or round
+		 * differently: with fixedPoint, the totals are those of NONE
+		 */
+		EQUAL
+	}
+
+	public TariffCache cache = TariffCache.DEFAULT;
+
+	// zone of the charging station, for the date, time and day of week restrictions
+	public ZoneId zone = ZoneId.systemDefault();
+
+	// records a TarificationTrace, nothing is recorded nor allocated when false
+	public boolean trace = false;
+
+	// energy and times summed per price component as scaled integers (mWh, ms),
+	// each cost rounded to micro units once and converted to the double totals
+	// of the CDR only at the end
+	public boolean fixedPoint = false;
+
+	// timings and counters of each evaluation, nothing is measured with NONE
+	public TarificationMetrics metrics = TarificationMetrics.NONE;
+
+	// consecutive charging periods with the same price components merged into
+	// one, with the same totals
+	public boolean compactChargingPeriods = false;
+
+	// redundant rows of the timeline dropped as the events are added, see Downsampler
+	public Downsampling downsampling = Downsampling.NONE;
+
+	// CDRs reported by the JFR event PathologicalSession: rows of the timeline
+	// and nanoseconds of the evaluation above which a session is reported
+	public int pathologicalRows = 50000;
+	public long pathologicalNanos = 1000000000L;
+
+	TarificationOptions withZone( ZoneId zone ) {
+		TarificationOptions res = new TarificationOptions();
+		res.cache = this.cache;
+		res.zone = zone;
+		res.trace = this.trace;
+		res.fixedPoint = this.fixedPoint;
+		res.metrics = this.metrics;
+		res.compactChargingPeriods = this.compactChargingPeriods;
+		res.downsampling = this.downsampling;
+		res.pathologicalRows = this.pathologicalRows;
+		res.pathologicalNanos = this.pathologicalNanos;
+		return res;
+	}
+}
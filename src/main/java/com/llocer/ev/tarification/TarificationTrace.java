@@ -0,0 +1,155 @@
+package com.llocer.ev.tarification;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+
+/*
+ * Explanation of how a CDR was priced: the validity of every tariff element
+ * with each one of its restrictions, and the price components accounted at
+ * every charging period. Only recorded when TarificationOptions.trace is set.
+ */
+public class TarificationTrace {
+
+	/*
+	 * transitions of validity, t in milliseconds from the session start
+	 */
+	public static class Flags {
+		public final String label;
+		public final long[] t;
+		public final boolean[] ok;
+
+		Flags( String label, TariffFlags flags ) {
+			this.label = label;
+			this.t = new long[ flags.size() ];
+			this.ok = new boolean[ flags.size() ];
+			for( int i = 0; i < t.length; i++ ) {
+				t[i] = flags.t( i );
+				ok[i] = flags.ok( i );
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder res = new StringBuilder();
+			res.append( label ).append( ":" );
+			for( int i = 0; i < t.length; i++ ) {
+				res.append( " " ).append( t[i]/1000.0 ).append( "s=" ).append( ok[i] );
+			}
+			return res.toString();
+		}
+	}
+
+	public static class Element {
+		public final String tariffId;
+		public final int index; // in the tariff
+		public final List<Flags> restrictions = new ArrayList<Flags>();
+		public Flags assigned = null; // null: not applicable at all
+
+		Element( String tariffId, int index ) {
+			this.tariffId = tariffId;
+			this.index = index;
+		}
+	}
+
+	public static class Component {
+		public final String tariffId;
+		public final OcpiPriceComponent.Type type;
+		public final double price;
+		public final double volume; // billed, in kWh or hours
+		public final boolean stepApplied;
+		public final double cost;
+		public final double vat;
+
+		Component( String tariffId, OcpiPriceComponent.Type type, double price, double volume, boolean stepApplied, double cost, double vat ) {
+			this.tariffId = tariffId;
+			this.type = type;
+			this.price = price;
+			this.volume = volume;
+			this.stepApplied = stepApplied;
+			this.cost = cost;
+			this.vat = vat;
+		}
+
+		@Override
+		public String toString() {
+			return String.format( "%s %s price=%f volume=%f%s cost=%f vat=%f",
+					tariffId, type, price, volume, ( stepApplied ? " (step)" : "" ), cost, vat );
+		}
+	}
+
+	public static class Period {
+		public final Instant start;
+		public final List<Component> components = new ArrayList<Component>();
+
+		Period( Instant start ) {
+			this.start = start;
+		}
+	}
+
+	private final List<Element> elements = new ArrayList<Element>();
+	private final List<Period> periods = new ArrayList<Period>();
+
+	public List<Element> getElements() {
+		return Collections.unmodifiableList( elements );
+	}
+
+	public List<Period> getPeriods() {
+		return Collections.unmodifiableList( periods );
+	}
+
+	void element( String tariffId, int index ) {
+		elements.add( new Element( tariffId, index ) );
+	}
+
+	void restriction( String label, TariffFlags flags ) {
+		elements.get( elements.size()-1 ).restrictions.add( new Flags( label, flags ) );
+	}
+
+	void assigned( TariffFlags flags ) {
+		elements.get( elements.size()-1 ).assigned = new Flags( "assigned", flags );
+	}
+
+	void period( Instant start ) {
+		periods.add( new Period( start ) );
+	}
+
+	void component( String tariffId, OcpiPriceComponent priceComponent, double volume, boolean stepApplied, double cost, double vat ) {
+		if( periods.isEmpty() ) period( null ); // single measure, no period
+		periods.get( periods.size()-1 ).components.add(
+				new Component( tariffId, priceComponent.getType(), priceComponent.getPrice(), volume, stepApplied, cost, vat ) );
+	}
+
+	/*
+	 * elements of this trace followed by the periods of committed and then those of this one
+	 */
+	TarificationTrace after( TarificationTrace committed ) {
+		TarificationTrace res = new TarificationTrace();
+		res.elements.addAll( elements );
+		res.periods.addAll( committed.periods );
+		res.periods.addAll( periods );
+		return res;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder();
+		for( Element element : elements ) {
+			res.append( "tariff " ).append( element.tariffId ).append( " element " ).append( element.index ).append( "\n" );
+			for( Flags flags : element.restrictions ) {
+				res.append( "  " ).append( flags ).append( "\n" );
+			}
+			res.append( "  " ).append( element.assigned == null ? "not applicable" : element.assigned ).append( "\n" );
+		}
+		for( Period period : periods ) {
+			res.append( "period " ).append( period.start ).append( "\n" );
+			for( Component component : period.components ) {
+				res.append( "  " ).append( component ).append( "\n" );
+			}
+		}
+		return res.toString();
+	}
+}
@@ -0,0 +1,154 @@
+package com.llocer.ev.tarification;
+
+import java.util.Arrays;
+
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+/*
+ * Flags of all the thresholds of the candidate elements of a window,
+ * computed together instead of a timeline scan per element and threshold:
+ * - monotonic columns (t, energy when it never decreases): each threshold
+ *   changes at most once, found by binary search
+ * - the others: one scan per column, the thresholds crossed between two
+ *   rows found by binary search in the sorted thresholds
+ * The flags are equal to those of TariffMeasures.threshold(), and shared
+ * read only by all the elements with the same threshold. A column is
+ * computed when first needed, and again if assign() has inserted rows
+ * since: an inserted row may move the crossings of CURRENT or POWER.
+ */
+final class ThresholdPlan {
+	private final TariffMeasures measures;
+	private final double[][] values; // by Column ordinal, sorted, distinct
+	private final int[] rows; // by Column ordinal, measures.size() when computed, -1 if not yet
+	private final TariffFlags[][] below; // v < value, the max thresholds
+	private final TariffFlags[][] atLeast; // v >= value, the min thresholds, built on demand
+
+	ThresholdPlan( TariffMeasures measures, TariffIndex tariffs, int[] candidates ) {
+		int nc = TariffMeasures.COLUMNS.length;
+		this.measures = measures;
+		this.values = new double[nc][];
+		this.rows = new int[nc];
+		this.below = new TariffFlags[nc][];
+		this.atLeast = new TariffFlags[nc][];
+
+		// thresholds by column
+		double[][] all = new double[nc][];
+		int[] counts = new int[nc];
+		for( int e : candidates ) {
+			for( CompiledTariff.Threshold threshold : tariffs.element( e ).thresholds ) {
+				int c = threshold.column.ordinal();
+				if( all[c] == null ) all[c] = new double[4];
+				if( counts[c] == all[c].length ) all[c] = Arrays.copyOf( all[c], 2*counts[c] );
+				all[c][counts[c]++] = threshold.value;
+			}
+		}
+
+		for( int k = 0; k < nc; k++ ) {
+			rows[k] = -1;
+			if( counts[k] == 0 ) continue;
+			values[k] = Arrays.stream( all[k], 0, counts[k] ).sorted().distinct().toArray();
+		}
+	}
+
+	private void compute( Column c ) {
+		int k = c.ordinal();
+		rows[k] = measures.size();
+		below[k] = new TariffFlags[values[k].length];
+		atLeast[k] = new TariffFlags[values[k].length];
+		for( int i = 0; i < below[k].length; i++ ) below[k][i] = new TariffFlags( 2 );
+
+		if( measures.size() == 0 ) return;
+		if( isMonotonic( measures, c ) ) {
+			search( measures, c, values[k], below[k] );
+		} else {
+			scan( measures, c, values[k], below[k] );
+		}
+	}
+
+	private static boolean isMonotonic( TariffMeasures measures, Column c ) {
+		if( c == Column.DURATION ) return true;
+
+		for( int i = 1; i < measures.size(); i++ ) {
+			if( measures.getValue( c, i ) < measures.getValue( c, i-1 ) ) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * t of the crossing of value between rows i-1 and i, as TariffMeasures.threshold()
+	 */
+	private static long crossing( TariffMeasures measures, Column c, int i, double value ) {
+		double lastV = measures.getValue( c, i-1 );
+		double percent = (value-lastV)/(measures.getValue( c, i )-lastV);
+		return (long)( measures.t( i-1 )+percent*(measures.t( i )-measures.t( i-1 )) );
+	}
+
+	/*
+	 * c never decreases: v < value until the first row with v >= value
+	 */
+	private static void search( TariffMeasures measures, Column c, double[] values, TariffFlags[] below ) {
+		int size = measures.size();
+		for( int k = 0; k < values.length; k++ ) {
+			double value = values[k];
+			boolean ok = measures.getValue( c, 0 ) < value;
+			below[k].add( measures.t( 0 ), ok );
+			if( !ok ) continue;
+
+			// first row with v >= value
+			int low = 1;
+			int high = size;
+			while( low < high ) {
+				int mid = (low+high) >>> 1;
+				if( measures.getValue( c, mid ) < value ) {
+					low = mid+1;
+				} else {
+					high = mid;
+				}
+			}
+			if( low < size ) below[k].add( crossing( measures, c, low, value ), false );
+		}
+	}
+
+	/*
+	 * one pass: between two rows, the values in (low, high] change
+	 */
+	private static void scan( TariffMeasures measures, Column c, double[] values, TariffFlags[] below ) {
+		double v0 = measures.getValue( c, 0 );
+		for( int k = 0; k < values.length; k++ ) {
+			below[k].add( measures.t( 0 ), v0 < values[k] );
+		}
+
+		for( int i = 1; i < measures.size(); i++ ) {
+			double v1 = measures.getValue( c, i );
+			if( v1 != v0 ) {
+				int k = Arrays.binarySearch( values, Math.min( v0, v1 ) );
+				k = ( k >= 0 ? k+1 : -k-1 ); // first > low
+				double high = Math.max( v0, v1 );
+				for( ; k < values.length && values[k] <= high; k++ ) {
+					below[k].add( crossing( measures, c, i, values[k] ), v1 < values[k] );
+				}
+			}
+			v0 = v1;
+		}
+	}
+
+	/*
+	 * flags of a threshold of a candidate element
+	 */
+	TariffFlags flags( CompiledTariff.Threshold threshold ) {
+		int c = threshold.column.ordinal();
+		if( rows[c] != measures.size() ) compute( threshold.column ); // rows are only inserted
+		int k = Arrays.binarySearch( values[c], threshold.value );
+		if( threshold.max ) return below[c][k];
+
+		if( atLeast[c][k] == null ) {
+			TariffFlags flags = below[c][k];
+			TariffFlags res = new TariffFlags( flags.size() );
+			for( int i = 0; i < flags.size(); i++ ) {
+				res.add( flags.t( i ), !flags.ok( i ) );
+			}
+			atLeast[c][k] = res;
+		}
+		return atLeast[c][k];
+	}
+}
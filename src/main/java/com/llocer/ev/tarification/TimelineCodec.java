@@ -0,0 +1,80 @@
+package com.llocer.ev.tarification;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Binary encoding of the merged timeline of a session before any tariff is
+ * assigned, so that it can be priced again without the events. Little endian:
+ * - int magic, short version, short reserved
+ * - long tariffStart, long startEvent, long lastEvent: epoch milliseconds
+ * - int rows
+ * - columns, rows values each: t, reservation, charging and parking times
+ *   (long ms), energy (double Wh), current (double A), power (double W),
+ *   present (byte, TariffMeasures.Column masks)
+ * Columns are copied in bulk from and to the buffer, at its position.
+ */
+final class TimelineCodec {
+	static final int MAGIC = 0x4c54544c; // "LTTL"
+	static final short VERSION = 1;
+	static final int HEADER = 36;
+	static final int ROW = 7*8+1;
+
+	static final class Timeline {
+		final long tariffStart;
+		final long startEvent;
+		final long lastEvent;
+		final TariffMeasures measures;
+
+		Timeline( long tariffStart, long startEvent, long lastEvent, TariffMeasures measures ) {
+			this.tariffStart = tariffStart;
+			this.startEvent = startEvent;
+			this.lastEvent = lastEvent;
+			this.measures = measures;
+		}
+	}
+
+	private TimelineCodec() {
+	}
+
+	static int size( TariffMeasures measures ) {
+		return HEADER+ROW*measures.size();
+	}
+
+	static void write( ByteBuffer out, Timeline timeline ) {
+		ByteBuffer b = out.slice().order( ByteOrder.LITTLE_ENDIAN );
+		b.putInt( MAGIC );
+		b.putShort( VERSION );
+		b.putShort( (short)0 );
+		b.putLong( timeline.tariffStart );
+		b.putLong( timeline.startEvent );
+		b.putLong( timeline.lastEvent );
+		b.putInt( timeline.measures.size() );
+		timeline.measures.writeColumns( b );
+		out.position( out.position()+b.position() );
+	}
+
+	/*
+	 * IllegalArgumentException if in does not hold a whole timeline
+	 */
+	static Timeline read( ByteBuffer in ) {
+		ByteBuffer b = in.slice().order( ByteOrder.LITTLE_ENDIAN );
+		if( b.remaining() < HEADER ) throw new IllegalArgumentException( "truncated timeline header: "+b.remaining()+" bytes" );
+		if( b.getInt() != MAGIC ) throw new IllegalArgumentException( "not a timeline" );
+		short version = b.getShort();
+		if( version != VERSION ) throw new IllegalArgumentException( "unsupported timeline version "+version );
+		b.getShort();
+
+		long tariffStart = b.getLong();
+		long startEvent = b.getLong();
+		long lastEvent = b.getLong();
+		int rows = b.getInt();
+		if( rows < 0 || (long)rows*ROW > b.remaining() ) {
+			throw new IllegalArgumentException( "truncated timeline: "+rows+" rows in "+b.remaining()+" bytes" );
+		}
+		TariffMeasures measures = TariffMeasures.readColumns( b, rows );
+		in.position( in.position()+b.position() );
+
+		return new Timeline( tariffStart, startEvent, lastEvent, measures );
+	}
+}
@@ -0,0 +1,156 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiSession;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpi.msgs22.OcpiTariffElement;
+import com.llocer.ev.ocpp.msgs20.ChargingStateEnum;
+import com.llocer.ev.ocpp.msgs20.MeasurandEnum;
+import com.llocer.ev.ocpp.msgs20.OcppMeterValue;
+import com.llocer.ev.ocpp.msgs20.OcppSampledValue;
+import com.llocer.ev.ocpp.msgs20.OcppTransaction;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+
+public class BatchTarificationTest {
+	private static final long MINUTE = 60_000L;
+	private static final Instant START = Instant.parse( "2021-03-01T10:00:00Z" );
+
+	private static class CountingCache extends TariffCache {
+		int gets = 0;
+
+		CountingCache() {
+			super( 16 );
+		}
+
+		@Override
+		public CompiledTariff get( OcpiTariff tariff ) {
+			gets++;
+			return super.get( tariff );
+		}
+	}
+
+	private static class Failure extends Error {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static List<OcpiTariff> tariffs() {
+		OcpiPriceComponent priceComponent = new OcpiPriceComponent();
+		priceComponent.setType( OcpiPriceComponent.Type.ENERGY );
+		priceComponent.setPrice( 0.30 );
+		OcpiTariffElement element = new OcpiTariffElement();
+		element.setPriceComponents( new ArrayList<OcpiPriceComponent>( Arrays.asList( priceComponent ) ) );
+
+		OcpiTariff res = new OcpiTariff();
+		res.setCountryCode( "ES" );
+		res.setPartyId( "LLO" );
+		res.setId( "B0" );
+		res.setCurrency( "EUR" );
+		res.setLastUpdated( START );
+		res.setElements( new ArrayList<OcpiTariffElement>( Arrays.asList( element ) ) );
+
+		List<OcpiTariff> tariffs = new ArrayList<OcpiTariff>();
+		tariffs.add( res );
+		return tariffs;
+	}
+
+	/*
+	 * kwh of energy charged in an hour
+	 */
+	private static List<OcppTransactionEventRequest> events( double kwh ) {
+		List<OcppTransactionEventRequest> res = new ArrayList<OcppTransactionEventRequest>();
+		for( int i = 0; i <= 1; i++ ) {
+			List<OcppSampledValue> samples = new ArrayList<OcppSampledValue>();
+			OcppSampledValue energy = new OcppSampledValue();
+			energy.setMeasurand( MeasurandEnum.ENERGY_ACTIVE_IMPORT_REGISTER );
+			energy.setValue( 1_000_000.0+1000.0*kwh*i );
+			samples.add( energy );
+			OcppMeterValue meter = new OcppMeterValue();
+			meter.setTimestamp( START.plusMillis( 60*MINUTE*i ) );
+			meter.setSampledValue( samples );
+
+			OcppTransaction transaction = new OcppTransaction();
+			transaction.setChargingState( i == 0 ? ChargingStateEnum.CHARGING : null );
+			OcppTransactionEventRequest event = new OcppTransactionEventRequest();
+			event.setTimestamp( START.plusMillis( 60*MINUTE*i ) );
+			event.setTransactionInfo( transaction );
+			event.setMeterValue( new ArrayList<OcppMeterValue>( Arrays.asList( meter ) ) );
+			res.add( event );
+		}
+		return res;
+	}
+
+	private static OcpiSession session( String id ) {
+		OcpiSession res = new OcpiSession();
+		res.setId( id );
+		res.setStartDatetime( START );
+		return res;
+	}
+
+	/*
+	 * the jobs of a list are rated with one index, a failed job is delivered
+	 */
+	@Test
+	public void jobsOfATariffListShareItsIndex() throws InterruptedException {
+		CountingCache cache = new CountingCache();
+		TarificationOptions options = new TarificationOptions();
+		options.cache = cache;
+		BatchTarification batch = new BatchTarification( Runnable::run, 2, options );
+
+		List<OcpiTariff> tariffs = tariffs();
+		List<BatchTarification.Job> jobs = new ArrayList<BatchTarification.Job>();
+		for( int i = 1; i <= 3; i++ ) {
+			jobs.add( new BatchTarification.Job( tariffs, events( i ), session( "S"+i ) ) );
+		}
+		jobs.add( new BatchTarification.Job( tariffs, null, session( "S4" ) ) );
+
+		List<BatchTarification.Result> results = new ArrayList<BatchTarification.Result>();
+		batch.run( jobs.iterator(), results::add );
+		assertEquals( 1, cache.gets );
+		assertEquals( 4, results.size() );
+		for( int i = 0; i < 3; i++ ) {
+			assertNull( results.get( i ).error );
+			assertEquals( i+1.0, results.get( i ).cdr.getTotalEnergy(), 1e-9 );
+		}
+		assertNull( results.get( 3 ).cdr );
+		assertTrue( results.get( 3 ).error instanceof NullPointerException );
+	}
+
+	@Test( expected = Failure.class )
+	public void errorStopsTheRun() throws InterruptedException {
+		BatchTarification batch = new BatchTarification( r -> {
+			Thread thread = new Thread( r );
+			thread.setUncaughtExceptionHandler( ( t, e ) -> {} );
+			thread.start();
+		}, 2 );
+
+		List<OcppTransactionEventRequest> failing = new ArrayList<OcppTransactionEventRequest>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Iterator<OcppTransactionEventRequest> iterator() {
+				throw new Failure();
+			}
+		};
+		List<OcpiTariff> tariffs = tariffs();
+		List<BatchTarification.Job> jobs = new ArrayList<BatchTarification.Job>();
+		jobs.add( new BatchTarification.Job( tariffs, events( 1 ), session( "S1" ) ) );
+		jobs.add( new BatchTarification.Job( tariffs, failing, session( "S2" ) ) );
+		jobs.add( new BatchTarification.Job( tariffs, events( 3 ), session( "S3" ) ) );
+
+		List<BatchTarification.Result> results = new ArrayList<BatchTarification.Result>();
+		batch.run( jobs.iterator(), results::add );
+	}
+}
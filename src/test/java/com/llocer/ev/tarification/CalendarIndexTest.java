@@ -0,0 +1,194 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class CalendarIndexTest {
+	private static final ZoneId MADRID = ZoneId.of( "Europe/Madrid" );
+
+	private static long t( String instant ) {
+		return Instant.parse( instant ).toEpochMilli();
+	}
+
+	private static void assertFlags( TariffFlags flags, long origin, long... tOk ) {
+		assertEquals( tOk.length/2, flags.size() );
+		for( int i = 0; i < flags.size(); i++ ) {
+			assertEquals( tOk[2*i]-origin, flags.t( i ) );
+			assertEquals( tOk[2*i+1] != 0, flags.ok( i ) );
+		}
+	}
+
+	/*
+	 * 2021-03-28 02:00 CET is 03:00 CEST: a window from 02:30 starts at 03:00
+	 */
+	@Test
+	public void windowStartingInTheSpringGapStartsWhenItEnds() {
+		long from = t( "2021-03-27T23:00:00Z" ); // local midnight
+		TariffFlags flags = CalendarIndex.timeOfDay( MADRID, LocalTime.of( 2, 30 ), LocalTime.of( 4, 0 ) ).flags( from, from+24*3600_000L, from );
+		assertFlags( flags, from,
+				from, 0,
+				t( "2021-03-28T01:00:00Z" ), 1,
+				t( "2021-03-28T02:00:00Z" ), 0 );
+	}
+
+	/*
+	 * 2021-10-31 03:00 CEST is 02:00 CET: a window within the repeated hour
+	 * is valid from its first start to its last end
+	 */
+	@Test
+	public void windowInTheAutumnOverlapCoversBothPasses() {
+		long from = t( "2021-10-30T22:00:00Z" ); // local midnight
+		TariffFlags flags = CalendarIndex.timeOfDay( MADRID, LocalTime.of( 2, 15 ), LocalTime.of( 2, 45 ) ).flags( from, from+25*3600_000L, from );
+		assertFlags( flags, from,
+				from, 0,
+				t( "2021-10-31T00:15:00Z" ), 1,
+				t( "2021-10-31T01:45:00Z" ), 0 );
+	}
+
+	@Test
+	public void overnightWindowEndsTheNextDay() {
+		ZoneId zone = ZoneId.of( "UTC" );
+		CalendarIndex index = CalendarIndex.timeOfDay( zone, LocalTime.of( 22, 0 ), LocalTime.of( 6, 0 ) );
+
+		long from = t( "2021-03-01T12:00:00Z" );
+		assertFlags( index.flags( from, t( "2021-03-03T12:00:00Z" ), from ), from,
+				from, 0,
+				t( "2021-03-01T22:00:00Z" ), 1,
+				t( "2021-03-02T06:00:00Z" ), 0,
+				t( "2021-03-02T22:00:00Z" ), 1,
+				t( "2021-03-03T06:00:00Z" ), 0 );
+
+		// from inside the window of the previous day, across the year
+		from = t( "2021-01-01T03:00:00Z" );
+		assertFlags( index.flags( from, t( "2021-01-01T23:00:00Z" ), 0L ), 0L,
+				from, 1,
+				t( "2021-01-01T06:00:00Z" ), 0,
+				t( "2021-01-01T22:00:00Z" ), 1 );
+	}
+
+	/*
+	 * mondays start on sunday at 18:30 UTC
+	 */
+	@Test
+	public void daysOfWeekAreThoseOfTheZone() {
+		ZoneId zone = ZoneId.of( "Asia/Kolkata" );
+		CalendarIndex index = CalendarIndex.daysOfWeek( zone, EnumSet.of( DayOfWeek.MONDAY ) );
+		long from = t( "2021-02-28T00:00:00Z" ); // sunday
+		assertFlags( index.flags( from, t( "2021-03-02T00:00:00Z" ), from ), from,
+				from, 0,
+				t( "2021-02-28T18:30:00Z" ), 1,
+				t( "2021-03-01T18:30:00Z" ), 0 );
+	}
+
+	/*
+	 * first instant whose local date and time are not before day and time:
+	 * the end of a DST gap, the earlier offset of an overlap
+	 */
+	private static ZonedDateTime start( LocalDate day, LocalTime time, ZoneId zone ) {
+		LocalDateTime local = LocalDateTime.of( day, time );
+		ZoneOffsetTransition transition = zone.getRules().getTransition( local );
+		if( transition != null && transition.isGap() ) return transition.getInstant().atZone( zone );
+		return ZonedDateTime.ofLocal( local, zone, null ).withEarlierOffsetAtOverlap();
+	}
+
+	/*
+	 * valid intervals of the local days around from..to, day by day
+	 * [start, end) epoch milliseconds, sorted and merged
+	 */
+	private static List<long[]> reference( ZoneId zone, LocalTime startTime, LocalTime endTime, Set<DayOfWeek> days, long from, long to ) {
+		List<long[]> res = new ArrayList<long[]>();
+		LocalDate last = Instant.ofEpochMilli( to ).atZone( zone ).toLocalDate().plusDays( 1 );
+		for( LocalDate day = Instant.ofEpochMilli( from ).atZone( zone ).toLocalDate().minusDays( 2 ); !day.isAfter( last ); day = day.plusDays( 1 ) ) {
+			long start;
+			long end;
+			if( days != null ) {
+				if( !days.contains( day.getDayOfWeek() ) ) continue;
+				start = start( day, LocalTime.MIDNIGHT, zone ).toInstant().toEpochMilli();
+				end = start( day.plusDays( 1 ), LocalTime.MIDNIGHT, zone ).toInstant().toEpochMilli();
+			} else {
+				if( startTime.equals( endTime ) ) continue;
+				start = start( day, startTime, zone ).toInstant().toEpochMilli();
+				ZonedDateTime e = start( endTime.isAfter( startTime ) ? day : day.plusDays( 1 ), endTime, zone );
+				end = e.withLaterOffsetAtOverlap().toInstant().toEpochMilli();
+			}
+
+			long[] previous = ( res.isEmpty() ? null : res.get( res.size()-1 ) );
+			if( previous != null && start <= previous[1] ) {
+				previous[1] = Math.max( previous[1], end );
+			} else {
+				res.add( new long[] { start, end } );
+			}
+		}
+		return res;
+	}
+
+	private static void assertReference( CalendarIndex index, ZoneId zone, LocalTime startTime, LocalTime endTime, Set<DayOfWeek> days, long from, long to ) {
+		List<Long> expected = new ArrayList<Long>();
+		boolean ok = false;
+		for( long[] interval : reference( zone, startTime, endTime, days, from, to ) ) {
+			if( interval[0] <= from && from < interval[1] ) ok = true;
+		}
+		expected.add( from );
+		expected.add( ok ? 1L : 0L );
+		for( long[] interval : reference( zone, startTime, endTime, days, from, to ) ) {
+			for( int k = 0; k < 2; k++ ) {
+				if( interval[k] > from && interval[k] < to ) {
+					expected.add( interval[k] );
+					expected.add( k == 0 ? 1L : 0L );
+				}
+			}
+		}
+
+		TariffFlags flags = index.flags( from, to, from );
+		List<Long> actual = new ArrayList<Long>();
+		for( int i = 0; i < flags.size(); i++ ) {
+			actual.add( from+flags.t( i ) );
+			actual.add( flags.ok( i ) ? 1L : 0L );
+		}
+		assertEquals( zone+" "+startTime+"-"+endTime+" "+days+" from "+Instant.ofEpochMilli( from ), expected.toString(), actual.toString() );
+	}
+
+	/*
+	 * windows on quarter hours, overnight and empty too, and sets of days,
+	 * across years and DST changes, also of half an hour (Lord Howe)
+	 */
+	@Test
+	public void transitionsAreThoseOfTheLocalDays() {
+		Random rnd = new Random( 1L );
+		long first = t( "2020-12-20T00:00:00Z" );
+		for( String id : Arrays.asList( "Europe/Madrid", "America/New_York", "Asia/Kolkata", "Australia/Lord_Howe" ) ) {
+			ZoneId zone = ZoneId.of( id );
+			for( int k = 0; k < 300; k++ ) {
+				long from = first+(long)rnd.nextInt( 400*24*60 )*60_000L+rnd.nextInt( 60_000 );
+				long to = from+(long)rnd.nextInt( 10*24*60 )*60_000L+rnd.nextInt( 60_000 );
+				if( k%2 == 0 ) {
+					LocalTime startTime = LocalTime.ofSecondOfDay( 900*rnd.nextInt( 96 ) );
+					LocalTime endTime = LocalTime.ofSecondOfDay( 900*rnd.nextInt( 96 ) );
+					assertReference( CalendarIndex.timeOfDay( zone, startTime, endTime ), zone, startTime, endTime, null, from, to );
+				} else {
+					Set<DayOfWeek> days = EnumSet.noneOf( DayOfWeek.class );
+					for( DayOfWeek day : DayOfWeek.values() ) {
+						if( rnd.nextBoolean() ) days.add( day );
+					}
+					assertReference( CalendarIndex.daysOfWeek( zone, days ), zone, null, null, days, from, to );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.llocer.common.Tuple2;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent.Type;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+
+public class ComponentSetsTest {
+	private static final OcpiTariff TARIFF = new OcpiTariff();
+
+	private static Tuple2<OcpiTariff,OcpiPriceComponent> component( Type type, double price ) {
+		OcpiPriceComponent priceComponent = new OcpiPriceComponent();
+		priceComponent.setType( type );
+		priceComponent.setPrice( price );
+		return new Tuple2<OcpiTariff,OcpiPriceComponent>( TARIFF, priceComponent );
+	}
+
+	@Test
+	public void emptySet() {
+		ComponentSets sets = new ComponentSets();
+		for( Type type : Type.values() ) {
+			assertNull( sets.get( ComponentSets.EMPTY, type ) );
+		}
+		assertTrue( sets.map( ComponentSets.EMPTY ).isEmpty() );
+		assertEquals( ComponentSets.EMPTY, sets.of( new ComponentSets(), ComponentSets.EMPTY ) );
+	}
+
+	@Test
+	public void sameSetSameId() {
+		Tuple2<OcpiTariff,OcpiPriceComponent> energy = component( Type.ENERGY, 0.2 );
+		Tuple2<OcpiTariff,OcpiPriceComponent> time = component( Type.TIME, 1.0 );
+
+		ComponentSets sets = new ComponentSets();
+		int a = sets.with( sets.with( ComponentSets.EMPTY, energy ), time );
+		int b = sets.with( sets.with( ComponentSets.EMPTY, time ), energy );
+		assertEquals( a, b );
+		assertEquals( a, sets.with( a, energy ) );
+
+		// another pair of the same tariff and price component
+		Tuple2<OcpiTariff,OcpiPriceComponent> copy = new Tuple2<OcpiTariff,OcpiPriceComponent>( energy.f1, energy.f2 );
+		assertEquals( a, sets.with( a, copy ) );
+		assertEquals( sets.with( ComponentSets.EMPTY, energy ), sets.with( ComponentSets.EMPTY, copy ) );
+
+		// an equal price component is another one
+		int c = sets.with( sets.with( ComponentSets.EMPTY, component( Type.ENERGY, 0.2 ) ), time );
+		assertNotEquals( a, c );
+	}
+
+	@Test
+	public void withReplacesTheComponentOfItsType() {
+		Tuple2<OcpiTariff,OcpiPriceComponent> energy = component( Type.ENERGY, 0.2 );
+		Tuple2<OcpiTariff,OcpiPriceComponent> otherEnergy = component( Type.ENERGY, 0.3 );
+		Tuple2<OcpiTariff,OcpiPriceComponent> parking = component( Type.PARKING_TIME, 2.0 );
+
+		ComponentSets sets = new ComponentSets();
+		int a = sets.with( sets.with( ComponentSets.EMPTY, energy ), parking );
+		int b = sets.with( a, otherEnergy );
+		assertNotEquals( a, b );
+		assertSame( energy, sets.get( a, Type.ENERGY ) ); // sets are immutable
+		assertSame( otherEnergy, sets.get( b, Type.ENERGY ) );
+		assertSame( parking, sets.get( b, Type.PARKING_TIME ) );
+		assertNull( sets.get( b, Type.TIME ) );
+		assertEquals( b, sets.with( sets.with( ComponentSets.EMPTY, parking ), otherEnergy ) );
+
+		Map<Type,Tuple2<OcpiTariff,OcpiPriceComponent>> map = sets.map( b );
+		assertEquals( 2, map.size() );
+		assertEquals( Type.ENERGY, new ArrayList<Type>( map.keySet() ).get( 0 ) );
+		assertSame( otherEnergy, map.get( Type.ENERGY ) );
+		assertSame( map, sets.map( b ) );
+	}
+
+	/*
+	 * sets of another table get the ids of the equal sets of this one, or
+	 * new ones
+	 */
+	@Test
+	public void setsOfAnotherTable() {
+		Tuple2<OcpiTariff,OcpiPriceComponent> energy = component( Type.ENERGY, 0.2 );
+		Tuple2<OcpiTariff,OcpiPriceComponent> time = component( Type.TIME, 1.0 );
+		Tuple2<OcpiTariff,OcpiPriceComponent> flat = component( Type.FLAT, 0.5 );
+
+		ComponentSets sets = new ComponentSets();
+		int a = sets.with( sets.with( ComponentSets.EMPTY, energy ), time );
+
+		ComponentSets other = new ComponentSets();
+		int flatOther = other.with( ComponentSets.EMPTY, flat ); // not in sets
+		int aOther = other.with( other.with( ComponentSets.EMPTY, time ), energy );
+
+		assertEquals( a, sets.of( other, aOther ) );
+		assertEquals( a, sets.of( sets, a ) );
+		int f = sets.of( other, flatOther );
+		assertNotEquals( a, f );
+		assertNotEquals( ComponentSets.EMPTY, f );
+		assertSame( flat, sets.get( f, Type.FLAT ) );
+		assertEquals( f, sets.with( ComponentSets.EMPTY, flat ) );
+		assertEquals( f, sets.of( other, flatOther ) );
+	}
+}
@@ -0,0 +1,239 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.llocer.ev.ocpi.msgs22.OcpiCdr;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiRestrictions;
+import com.llocer.ev.ocpi.msgs22.OcpiSession;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpi.msgs22.OcpiTariffElement;
+import com.llocer.ev.ocpp.msgs20.ChargingStateEnum;
+import com.llocer.ev.ocpp.msgs20.MeasurandEnum;
+import com.llocer.ev.ocpp.msgs20.OcppMeterValue;
+import com.llocer.ev.ocpp.msgs20.OcppSampledValue;
+import com.llocer.ev.ocpp.msgs20.OcppTransaction;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+
+public class FixedPointTotalsTest {
+	private static final long MINUTE = 60_000L;
+	private static final Instant START = Instant.parse( "2021-03-01T10:00:00Z" );
+
+	private static OcpiPriceComponent priceComponent( OcpiPriceComponent.Type type, double price, Integer stepSize, Double vat ) {
+		OcpiPriceComponent res = new OcpiPriceComponent();
+		res.setType( type );
+		res.setPrice( price );
+		res.setStepSize( stepSize );
+		res.setVat( vat );
+		return res;
+	}
+
+	private static OcpiTariffElement element( OcpiRestrictions restrictions, OcpiPriceComponent... priceComponents ) {
+		OcpiTariffElement res = new OcpiTariffElement();
+		res.setRestrictions( restrictions );
+		res.setPriceComponents( new ArrayList<OcpiPriceComponent>( Arrays.asList( priceComponents ) ) );
+		return res;
+	}
+
+	/*
+	 * id: distinct per test, TariffCache.DEFAULT is shared
+	 */
+	private static List<OcpiTariff> tariffs( String id, OcpiTariffElement... elements ) {
+		OcpiTariff res = new OcpiTariff();
+		res.setCountryCode( "ES" );
+		res.setPartyId( "LLO" );
+		res.setId( id );
+		res.setCurrency( "EUR" );
+		res.setLastUpdated( START );
+		res.setElements( new ArrayList<OcpiTariffElement>( Arrays.asList( elements ) ) );
+
+		List<OcpiTariff> tariffs = new ArrayList<OcpiTariff>();
+		tariffs.add( res );
+		return tariffs;
+	}
+
+	/*
+	 * an event at each t (ms after START) with the energy register in Wh,
+	 * charging until parkedFrom, -1 if never
+	 */
+	private static List<OcppTransactionEventRequest> events( long[] t, double[] energy, int parkedFrom ) {
+		List<OcppTransactionEventRequest> res = new ArrayList<OcppTransactionEventRequest>();
+		for( int i = 0; i < t.length; i++ ) {
+			List<OcppSampledValue> samples = new ArrayList<OcppSampledValue>();
+			OcppSampledValue sample = new OcppSampledValue();
+			sample.setMeasurand( MeasurandEnum.ENERGY_ACTIVE_IMPORT_REGISTER );
+			sample.setValue( energy[i] );
+			samples.add( sample );
+			OcppMeterValue meter = new OcppMeterValue();
+			meter.setTimestamp( START.plusMillis( t[i] ) );
+			meter.setSampledValue( samples );
+
+			OcppTransaction transaction = new OcppTransaction();
+			transaction.setChargingState( i == 0 ? ChargingStateEnum.CHARGING : i == parkedFrom ? ChargingStateEnum.EV_CONNECTED : null );
+			OcppTransactionEventRequest event = new OcppTransactionEventRequest();
+			event.setTimestamp( START.plusMillis( t[i] ) );
+			event.setTransactionInfo( transaction );
+			event.setMeterValue( new ArrayList<OcppMeterValue>( Arrays.asList( meter ) ) );
+			res.add( event );
+		}
+		return res;
+	}
+
+	private static OcpiSession session() {
+		OcpiSession res = new OcpiSession();
+		res.setId( "S0" );
+		res.setStartDatetime( START );
+		return res;
+	}
+
+	private static OcpiCdr cdr( List<OcpiTariff> tariffs, List<OcppTransactionEventRequest> events, boolean fixedPoint ) {
+		TarificationOptions options = new TarificationOptions();
+		options.fixedPoint = fixedPoint;
+		IncrementalTarification tarification = new IncrementalTarification( tariffs, session(), options );
+		for( OcppTransactionEventRequest event : events ) {
+			tarification.add( event );
+		}
+		return tarification.getCdr();
+	}
+
+	@Test
+	public void roundingIsHalfUp() {
+		assertEquals( 1L, FixedPointTotals.scale( 1L, 1L, 2L ) );
+		assertEquals( 0L, FixedPointTotals.scale( 1L, 1L, 3L ) );
+		assertEquals( 2L, FixedPointTotals.scale( 5L, 1L, 3L ) );
+
+		assertEquals( 0L, FixedPointTotals.ceilStep( 0L, 1000L ) );
+		assertEquals( 1000L, FixedPointTotals.ceilStep( 1L, 1000L ) );
+		assertEquals( 1000L, FixedPointTotals.ceilStep( 1000L, 1000L ) );
+		assertEquals( 2000L, FixedPointTotals.ceilStep( 1001L, 1000L ) );
+
+		// 10% of 5 micro units is half of one, of 4 less than half
+		assertEquals( 1L, FixedPointTotals.vat( 5L, 10.0 ) );
+		assertEquals( 0L, FixedPointTotals.vat( 4L, 10.0 ) );
+		assertEquals( 0L, FixedPointTotals.vat( 5L, null ) );
+		assertEquals( 210_000L, FixedPointTotals.vat( 1_000_000L, 21.0 ) );
+	}
+
+	/*
+	 * 100Wh and a minute per charging period for 10 hours: 60kWh at 0.1 and
+	 * 10h at 1.2, the double sums of 600 periods drift, the fixed point ones
+	 * do not
+	 */
+	@Test
+	public void longSessionTotalsAreExact() {
+		List<OcpiTariff> tariffs = tariffs( "F0", element( null,
+				priceComponent( OcpiPriceComponent.Type.ENERGY, 0.1, null, null ),
+				priceComponent( OcpiPriceComponent.Type.TIME, 1.2, null, null ) ) );
+		long[] t = new long[601];
+		double[] energy = new double[601];
+		for( int i = 0; i < t.length; i++ ) {
+			t[i] = i*MINUTE;
+			energy[i] = 1_000_000.0+100.0*i;
+		}
+		List<OcppTransactionEventRequest> events = events( t, energy, -1 );
+
+		OcpiCdr fixed = cdr( tariffs, events, true );
+		assertEquals( 60.0, fixed.getTotalEnergy(), 0.0 );
+		assertEquals( 10.0, fixed.getTotalTime(), 0.0 );
+		assertEquals( 6.0, fixed.getTotalEnergyCost(), 0.0 );
+		assertEquals( 12.0, fixed.getTotalTimeCost(), 0.0 );
+		assertEquals( 18.0, fixed.getTotalCost(), 0.0 );
+
+		OcpiCdr floating = cdr( tariffs, events, false );
+		assertTrue( floating.getChargingPeriods().size() >= 600 );
+		assertNotEquals( 18.0, floating.getTotalCost(), 0.0 );
+		assertEquals( 18.0, floating.getTotalCost(), 1e-9 );
+	}
+
+	/*
+	 * a step is rounded up only past its multiples; a VAT of half a micro
+	 * unit is rounded up
+	 */
+	@Test
+	public void stepsAndVatAtTheBoundary() {
+		List<OcpiTariff> tariffs = tariffs( "F1", element( null,
+				priceComponent( OcpiPriceComponent.Type.ENERGY, 0.000005, 100, 10.0 ),
+				priceComponent( OcpiPriceComponent.Type.TIME, 0.6, 300, null ) ) );
+
+		// exactly 1kWh and 10 minutes
+		OcpiCdr cdr = cdr( tariffs, events( new long[] { 0L, 10*MINUTE }, new double[] { 1_000_000.0, 1_001_000.0 }, -1 ), true );
+		assertEquals( 1.0, cdr.getTotalEnergy(), 0.0 );
+		assertEquals( 0.000005, cdr.getTotalEnergyCost(), 0.0 );
+		assertEquals( 10.0/60.0, cdr.getTotalTime(), 0.0 );
+		assertEquals( 0.1, cdr.getTotalTimeCost(), 0.0 );
+		assertEquals( 0.100006, cdr.getTotalCost(), 0.0 );
+
+		// a mWh and a millisecond more
+		cdr = cdr( tariffs, events( new long[] { 0L, 10*MINUTE+1 }, new double[] { 1_000_000.0, 1_001_000.001 }, -1 ), true );
+		assertEquals( 1.1, cdr.getTotalEnergy(), 0.0 );
+		assertEquals( 15.0/60.0, cdr.getTotalTime(), 0.0 );
+		assertEquals( 0.15, cdr.getTotalTimeCost(), 0.0 );
+		assertEquals( 0.000006, cdr.getTotalEnergyCost(), 0.0 ); // 5.5 micro units
+		assertEquals( 0.150007, cdr.getTotalCost(), 0.0 ); // and 0.6 of VAT
+	}
+
+	/*
+	 * random sessions: the fixed point totals are those of the double ones
+	 * but for the last digits, and the same polled or not
+	 */
+	@Test
+	public void syntheticSessionsMatchTheDoubleTotals() {
+		OcpiRestrictions fromKwh = new OcpiRestrictions();
+		fromKwh.setMinKwh( 20.0 );
+		OcpiRestrictions window = new OcpiRestrictions();
+		window.setStartTime( "12:00" );
+		window.setEndTime( "14:00" );
+		List<OcpiTariff> tariffs = tariffs( "F2",
+				element( fromKwh, priceComponent( OcpiPriceComponent.Type.ENERGY, 0.19, 500, 21.0 ) ),
+				element( window, priceComponent( OcpiPriceComponent.Type.TIME, 2.5, 60, 21.0 ) ),
+				element( null, priceComponent( OcpiPriceComponent.Type.FLAT, 0.5, null, 21.0 ),
+						priceComponent( OcpiPriceComponent.Type.ENERGY, 0.27, 100, 21.0 ),
+						priceComponent( OcpiPriceComponent.Type.TIME, 1.1, 300, 21.0 ),
+						priceComponent( OcpiPriceComponent.Type.PARKING_TIME, 3.0, 900, null ) ) );
+
+		Random rnd = new Random( 1L );
+		for( int k = 0; k < 100; k++ ) {
+			int n = 2+rnd.nextInt( 80 );
+			int parkedFrom = n/2+rnd.nextInt( n/2+1 );
+			long[] t = new long[n];
+			double[] energy = new double[n];
+			energy[0] = 1000.0*rnd.nextInt( 100_000 );
+			for( int i = 1; i < n; i++ ) {
+				t[i] = t[i-1]+1000L*( 10+rnd.nextInt( 600 ) );
+				double power = ( i <= parkedFrom ? 1000.0+rnd.nextInt( 21_000 ) : 0.0 );
+				energy[i] = energy[i-1]+Math.floor( power*( t[i]-t[i-1] )/3_600.0 )/1000.0; // whole mWh
+			}
+			List<OcppTransactionEventRequest> events = events( t, energy, parkedFrom );
+
+			OcpiCdr floating = cdr( tariffs, events, false );
+			OcpiCdr fixed = cdr( tariffs, events, true );
+			assertEquals( floating.getTotalEnergy(), fixed.getTotalEnergy(), 1e-9 );
+			assertEquals( floating.getTotalTime(), fixed.getTotalTime(), 1e-9 );
+			assertEquals( floating.getTotalParkingTime(), fixed.getTotalParkingTime(), 1e-9 );
+			assertEquals( floating.getTotalCost(), fixed.getTotalCost(), 1e-5 );
+
+			TarificationOptions options = new TarificationOptions();
+			options.fixedPoint = true;
+			IncrementalTarification polled = new IncrementalTarification( tariffs, session(), options );
+			for( OcppTransactionEventRequest event : events ) {
+				polled.add( event );
+				polled.getCdr();
+			}
+			OcpiCdr p = polled.getCdr();
+			assertEquals( fixed.getTotalCost(), p.getTotalCost(), 0.0 );
+			assertEquals( fixed.getTotalEnergyCost(), p.getTotalEnergyCost(), 0.0 );
+			assertEquals( fixed.getTotalTimeCost(), p.getTotalTimeCost(), 0.0 );
+			assertEquals( fixed.getTotalParkingCost(), p.getTotalParkingCost(), 0.0 );
+		}
+	}
+}
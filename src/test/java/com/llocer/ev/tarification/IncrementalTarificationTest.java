@@ -0,0 +1,347 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.llocer.ev.ocpi.msgs22.OcpiCdr;
+import com.llocer.ev.ocpi.msgs22.OcpiChargingPeriod;
+import com.llocer.ev.ocpi.msgs22.OcpiDimension;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiRestrictions;
+import com.llocer.ev.ocpi.msgs22.OcpiSession;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpi.msgs22.OcpiTariffElement;
+import com.llocer.ev.ocpp.msgs20.ChargingStateEnum;
+import com.llocer.ev.ocpp.msgs20.MeasurandEnum;
+import com.llocer.ev.ocpp.msgs20.OcppMeterValue;
+import com.llocer.ev.ocpp.msgs20.OcppSampledValue;
+import com.llocer.ev.ocpp.msgs20.OcppTransaction;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+
+public class IncrementalTarificationTest {
+	private static final long MINUTE = 60_000L;
+	private static final Instant START = Instant.parse( "2021-03-01T10:00:00Z" );
+
+	/*
+	 * energy cheaper from 5kWh, time while charging, parking after it
+	 */
+	private static List<OcpiTariff> tariffs() {
+		OcpiRestrictions fromKwh = new OcpiRestrictions();
+		fromKwh.setMinKwh( 5.0 );
+
+		OcpiTariff res = new OcpiTariff();
+		res.setCountryCode( "ES" );
+		res.setPartyId( "LLO" );
+		res.setId( "T0" );
+		res.setCurrency( "EUR" );
+		res.setLastUpdated( START );
+		res.setElements( new ArrayList<OcpiTariffElement>( Arrays.asList(
+				element( fromKwh, priceComponent( OcpiPriceComponent.Type.ENERGY, 0.20 ) ),
+				element( null,
+						priceComponent( OcpiPriceComponent.Type.ENERGY, 0.30 ),
+						priceComponent( OcpiPriceComponent.Type.TIME, 1.0 ),
+						priceComponent( OcpiPriceComponent.Type.PARKING_TIME, 2.0 ) ) ) ) );
+
+		List<OcpiTariff> tariffs = new ArrayList<OcpiTariff>();
+		tariffs.add( res );
+		return tariffs;
+	}
+
+	private static OcpiTariffElement element( OcpiRestrictions restrictions, OcpiPriceComponent... priceComponents ) {
+		OcpiTariffElement res = new OcpiTariffElement();
+		res.setRestrictions( restrictions );
+		res.setPriceComponents( new ArrayList<OcpiPriceComponent>( Arrays.asList( priceComponents ) ) );
+		return res;
+	}
+
+	private static OcpiPriceComponent priceComponent( OcpiPriceComponent.Type type, double price ) {
+		OcpiPriceComponent res = new OcpiPriceComponent();
+		res.setType( type );
+		res.setPrice( price );
+		return res;
+	}
+
+	private static OcpiPriceComponent priceComponent( OcpiPriceComponent.Type type, double price, int stepSize ) {
+		OcpiPriceComponent res = priceComponent( type, price );
+		res.setStepSize( stepSize );
+		return res;
+	}
+
+	/*
+	 * id: distinct per test, TariffCache.DEFAULT is shared
+	 */
+	private static OcpiTariff tariff( String id, OcpiTariffElement... elements ) {
+		OcpiTariff res = new OcpiTariff();
+		res.setCountryCode( "ES" );
+		res.setPartyId( "LLO" );
+		res.setId( id );
+		res.setCurrency( "EUR" );
+		res.setLastUpdated( START );
+		res.setElements( new ArrayList<OcpiTariffElement>( Arrays.asList( elements ) ) );
+		return res;
+	}
+
+	/*
+	 * 7.4kW for an hour, then parked for half an hour, a meter value every 5 minutes
+	 */
+	private static List<OcppTransactionEventRequest> events() {
+		List<OcppTransactionEventRequest> res = new ArrayList<OcppTransactionEventRequest>();
+		double energy = 1_000_000.0;
+		for( int i = 0; i <= 18; i++ ) {
+			boolean charging = ( i < 12 );
+			ChargingStateEnum state = ( i == 0 ? ChargingStateEnum.CHARGING : i == 12 ? ChargingStateEnum.EV_CONNECTED : null );
+			res.add( event( START.toEpochMilli()+5*i*MINUTE, state, energy, ( charging ? 7400.0 : 0.0 ) ) );
+			if( charging ) energy += 7400.0*5*MINUTE/3_600_000.0;
+		}
+		return res;
+	}
+
+	/*
+	 * a meter value every 5 minutes at each power, parked while 0
+	 */
+	private static List<OcppTransactionEventRequest> events( Instant start, double... powers ) {
+		List<OcppTransactionEventRequest> res = new ArrayList<OcppTransactionEventRequest>();
+		double energy = 1_000_000.0;
+		boolean charging = false;
+		for( int i = 0; i < powers.length; i++ ) {
+			ChargingStateEnum state = null;
+			if( i == 0 || ( powers[i] > 0.0 ) != charging ) {
+				charging = ( powers[i] > 0.0 );
+				state = ( charging ? ChargingStateEnum.CHARGING : ChargingStateEnum.EV_CONNECTED );
+			}
+			res.add( event( start.toEpochMilli()+5*i*MINUTE, state, energy, powers[i] ) );
+			energy += powers[i]*5*MINUTE/3_600_000.0;
+		}
+		return res;
+	}
+
+	private static OcppTransactionEventRequest event( long t, ChargingStateEnum state, double energy, double power ) {
+		List<OcppSampledValue> samples = new ArrayList<OcppSampledValue>();
+		samples.add( sample( MeasurandEnum.ENERGY_ACTIVE_IMPORT_REGISTER, energy ) );
+		samples.add( sample( MeasurandEnum.POWER_ACTIVE_IMPORT, power ) );
+
+		OcppMeterValue meter = new OcppMeterValue();
+		meter.setTimestamp( Instant.ofEpochMilli( t ) );
+		meter.setSampledValue( samples );
+		List<OcppMeterValue> meters = new ArrayList<OcppMeterValue>();
+		meters.add( meter );
+
+		OcppTransaction transaction = new OcppTransaction();
+		transaction.setChargingState( state );
+
+		OcppTransactionEventRequest res = new OcppTransactionEventRequest();
+		res.setTimestamp( Instant.ofEpochMilli( t ) );
+		res.setTransactionInfo( transaction );
+		res.setMeterValue( meters );
+		return res;
+	}
+
+	private static OcppSampledValue sample( MeasurandEnum measurand, double value ) {
+		OcppSampledValue res = new OcppSampledValue();
+		res.setMeasurand( measurand );
+		res.setValue( value );
+		return res;
+	}
+
+	private static OcpiSession session() {
+		return session( START );
+	}
+
+	private static OcpiSession session( Instant start ) {
+		OcpiSession res = new OcpiSession();
+		res.setId( "S0" );
+		res.setStartDatetime( start );
+		return res;
+	}
+
+	private static void assertSamePeriods( OcpiCdr expected, OcpiCdr actual ) {
+		assertEquals( expected.getTotalCost(), actual.getTotalCost(), 0.0 );
+		assertEquals( expected.getChargingPeriods().size(), actual.getChargingPeriods().size() );
+
+		Iterator<OcpiChargingPeriod> it = actual.getChargingPeriods().iterator();
+		for( OcpiChargingPeriod e : expected.getChargingPeriods() ) {
+			OcpiChargingPeriod a = it.next();
+			assertEquals( e.getStartDateTime(), a.getStartDateTime() );
+			assertEquals( e.getTariffId(), a.getTariffId() );
+			assertEquals( e.getDimensions().size(), a.getDimensions().size() );
+
+			Iterator<OcpiDimension> dimensions = a.getDimensions().iterator();
+			for( OcpiDimension d : e.getDimensions() ) {
+				OcpiDimension ad = dimensions.next();
+				assertEquals( d.getType(), ad.getType() );
+				assertEquals( d.getVolume(), ad.getVolume(), 0.0 );
+			}
+		}
+	}
+
+	@Test
+	public void polledCompactionIsOneShotCompaction() {
+		TarificationOptions options = new TarificationOptions();
+		options.compactChargingPeriods = true;
+		List<OcpiTariff> tariffs = tariffs();
+		List<OcppTransactionEventRequest> events = events();
+
+		IncrementalTarification oneShot = new IncrementalTarification( tariffs, session(), options );
+		for( OcppTransactionEventRequest event : events ) {
+			oneShot.add( event );
+		}
+		OcpiCdr expected = oneShot.getCdr();
+		assertTrue( expected.getChargingPeriods().size() <= 3 ); // before and after 5kWh, parking
+
+		IncrementalTarification polled = new IncrementalTarification( tariffs, session(), options );
+		for( OcppTransactionEventRequest event : events ) {
+			polled.add( event );
+			polled.getCdr();
+		}
+		assertSamePeriods( expected, polled.getCdr() );
+	}
+
+	/*
+	 * polls after every event, each CDR is the one of the events added until then
+	 */
+	private static void assertPolledIsOneShot( List<OcpiTariff> tariffs, List<OcppTransactionEventRequest> events, Instant start, TarificationOptions options ) {
+		IncrementalTarification polled = new IncrementalTarification( tariffs, session( start ), options );
+		for( int i = 0; i < events.size(); i++ ) {
+			polled.add( events.get( i ) );
+
+			IncrementalTarification oneShot = new IncrementalTarification( tariffs, session( start ), options );
+			for( OcppTransactionEventRequest event : events.subList( 0, i+1 ) ) {
+				oneShot.add( event );
+			}
+			assertSamePeriods( oneShot.getCdr(), polled.getCdr() );
+		}
+	}
+
+	@Test
+	public void polledFlatsStepsAndThresholdsAreOneShot() {
+		OcpiRestrictions lowPower = new OcpiRestrictions();
+		lowPower.setMinKwh( 2.0 );
+		lowPower.setMaxPower( 5.0 );
+		OcpiRestrictions fromKwh = new OcpiRestrictions();
+		fromKwh.setMinKwh( 6.0 ); // crossed in the last minutes of charge
+
+		OcpiPriceComponent flat = priceComponent( OcpiPriceComponent.Type.FLAT, 1.0 );
+		flat.setVat( 21.0 );
+		List<OcpiTariff> tariffs = new ArrayList<OcpiTariff>();
+		tariffs.add( tariff( "T1",
+				element( lowPower, priceComponent( OcpiPriceComponent.Type.ENERGY, 0.22, 100 ) ),
+				element( fromKwh, priceComponent( OcpiPriceComponent.Type.ENERGY, 0.20 ) ),
+				element( null, flat,
+						priceComponent( OcpiPriceComponent.Type.ENERGY, 0.30, 500 ),
+						priceComponent( OcpiPriceComponent.Type.TIME, 1.2, 300 ),
+						priceComponent( OcpiPriceComponent.Type.PARKING_TIME, 2.0, 60 ) ) ) );
+		List<OcppTransactionEventRequest> events = events( START,
+				7400.0, 7400.0, 3000.0, 7400.0, 4000.0, 7400.0, 7400.0, 2000.0,
+				7400.0, 7400.0, 7400.0, 6000.0, 0.0, 0.0, 0.0 );
+
+		assertPolledIsOneShot( tariffs, events, START, new TarificationOptions() );
+
+		TarificationOptions options = new TarificationOptions();
+		options.compactChargingPeriods = true;
+		options.fixedPoint = true;
+		assertPolledIsOneShot( tariffs, events, START, options );
+	}
+
+	/*
+	 * the first element applies from midnight, once it does its power
+	 * crossings split the periods before it too
+	 */
+	@Test
+	public void polledElementOfTheNextDayIsOneShot() {
+		Instant start = Instant.parse( "2021-03-01T22:30:00Z" );
+		OcpiRestrictions nextDay = new OcpiRestrictions();
+		nextDay.setStartDate( "2021-03-02" );
+		nextDay.setMaxPower( 5.0 );
+
+		List<OcpiTariff> tariffs = new ArrayList<OcpiTariff>();
+		tariffs.add( tariff( "T2",
+				element( nextDay, priceComponent( OcpiPriceComponent.Type.ENERGY, 0.25 ) ),
+				element( null, priceComponent( OcpiPriceComponent.Type.ENERGY, 0.30 ) ) ) );
+		double[] powers = new double[24];
+		for( int i = 0; i < powers.length; i++ ) {
+			powers[i] = ( i%2 == 0 ? 7400.0 : 3000.0 );
+		}
+
+		TarificationOptions options = new TarificationOptions();
+		options.zone = ZoneOffset.UTC;
+		assertPolledIsOneShot( tariffs, events( start, powers ), start, options );
+	}
+
+	@Test( expected = IllegalStateException.class )
+	public void downsampledTimelineIsNotWritten() {
+		TarificationOptions options = new TarificationOptions();
+		options.downsampling = TarificationOptions.Downsampling.EQUAL;
+		IncrementalTarification tarification = new IncrementalTarification( tariffs(), session(), options );
+		for( OcppTransactionEventRequest event : events() ) {
+			tarification.add( event );
+		}
+		tarification.writeTimeline( ByteBuffer.allocate( 1 << 16 ) );
+	}
+
+	/*
+	 * constant power with a meter value every minute: most rows are dropped,
+	 * but not where the kWh maximum, the time window or the state change,
+	 * nor while parked: the last parking period is rounded to 15 minutes
+	 */
+	@Test
+	public void equalDownsamplingHasTheFixedPointTotalsOfNone() {
+		OcpiRestrictions upToKwh = new OcpiRestrictions();
+		upToKwh.setMaxKwh( 5.3 );
+		OcpiRestrictions window = new OcpiRestrictions();
+		window.setStartTime( "10:37" );
+		window.setEndTime( "11:11" );
+
+		List<OcpiTariff> tariffs = new ArrayList<OcpiTariff>();
+		tariffs.add( tariff( "T3",
+				element( upToKwh, priceComponent( OcpiPriceComponent.Type.ENERGY, 0.20 ) ),
+				element( window, priceComponent( OcpiPriceComponent.Type.TIME, 1.5 ) ),
+				element( null, priceComponent( OcpiPriceComponent.Type.FLAT, 1.0 ),
+						priceComponent( OcpiPriceComponent.Type.ENERGY, 0.30 ),
+						priceComponent( OcpiPriceComponent.Type.TIME, 1.0 ),
+						priceComponent( OcpiPriceComponent.Type.PARKING_TIME, 2.0, 900 ) ) ) );
+		List<OcppTransactionEventRequest> events = new ArrayList<OcppTransactionEventRequest>();
+		double energy = 1_000_000.0;
+		for( int i = 0; i <= 150; i++ ) {
+			boolean charging = ( i < 120 );
+			ChargingStateEnum state = ( i == 0 ? ChargingStateEnum.CHARGING : i == 120 ? ChargingStateEnum.EV_CONNECTED : null );
+			events.add( event( START.toEpochMilli()+i*MINUTE, state, energy, ( charging ? 7400.0 : 0.0 ) ) );
+			if( charging ) energy += 7400.0*MINUTE/3_600_000.0;
+		}
+
+		TarificationOptions none = new TarificationOptions();
+		none.zone = ZoneOffset.UTC;
+		none.fixedPoint = true;
+		TarificationOptions equal = new TarificationOptions();
+		equal.zone = ZoneOffset.UTC;
+		equal.fixedPoint = true;
+		equal.downsampling = TarificationOptions.Downsampling.EQUAL;
+		IncrementalTarification expected = new IncrementalTarification( tariffs, session(), none );
+		IncrementalTarification actual = new IncrementalTarification( tariffs, session(), equal );
+		for( OcppTransactionEventRequest event : events ) {
+			expected.add( event );
+			actual.add( event );
+		}
+
+		OcpiCdr e = expected.getCdr();
+		OcpiCdr a = actual.getCdr();
+		assertTrue( a.getChargingPeriods().size() < e.getChargingPeriods().size()/2 );
+		assertEquals( e.getTotalCost(), a.getTotalCost(), 0.0 );
+		assertEquals( e.getTotalFixedCost(), a.getTotalFixedCost(), 0.0 );
+		assertEquals( e.getTotalEnergy(), a.getTotalEnergy(), 0.0 );
+		assertEquals( e.getTotalEnergyCost(), a.getTotalEnergyCost(), 0.0 );
+		assertEquals( e.getTotalTime(), a.getTotalTime(), 0.0 );
+		assertEquals( e.getTotalTimeCost(), a.getTotalTimeCost(), 0.0 );
+		assertEquals( e.getTotalParkingTime(), a.getTotalParkingTime(), 0.0 );
+		assertEquals( e.getTotalParkingCost(), a.getTotalParkingCost(), 0.0 );
+	}
+}
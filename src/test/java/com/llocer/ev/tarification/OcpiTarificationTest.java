@@ -0,0 +1,105 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiRestrictions;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpi.msgs22.OcpiTariffElement;
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+public class OcpiTarificationTest {
+	private static final long MINUTE = 60_000L;
+	private static final Instant START = Instant.parse( "2021-03-01T10:00:00Z" ); // a monday
+
+	private static OcpiRestrictions window( String startTime, String endTime ) {
+		OcpiRestrictions res = new OcpiRestrictions();
+		res.setStartTime( startTime );
+		res.setEndTime( endTime );
+		res.setDayOfWeek( new ArrayList<DayOfWeek>( Arrays.asList( DayOfWeek.MONDAY ) ) );
+		return res;
+	}
+
+	private static OcpiTariff tariff( String id, OcpiRestrictions restrictions, double price ) {
+		OcpiPriceComponent priceComponent = new OcpiPriceComponent();
+		priceComponent.setType( OcpiPriceComponent.Type.TIME );
+		priceComponent.setPrice( price );
+		OcpiTariffElement element = new OcpiTariffElement();
+		element.setRestrictions( restrictions );
+		element.setPriceComponents( new ArrayList<OcpiPriceComponent>( Arrays.asList( priceComponent ) ) );
+
+		OcpiTariff res = new OcpiTariff();
+		res.setCountryCode( "ES" );
+		res.setPartyId( "LLO" );
+		res.setId( id );
+		res.setCurrency( "EUR" );
+		res.setLastUpdated( START );
+		res.setElements( new ArrayList<OcpiTariffElement>( Arrays.asList( element ) ) );
+		return res;
+	}
+
+	/*
+	 * an hour charging at 7.4kW, a row every 10 minutes
+	 */
+	private static TariffMeasures measures() {
+		TariffMeasures res = new TariffMeasures();
+		for( int i = 0; i <= 6; i++ ) {
+			int n = res.add( 10*MINUTE*i );
+			res.setValue( Column.ENERGY, n, 7400.0*i/6.0 );
+			res.setValue( Column.POWER, n, 7400.0 );
+			res.setTime( Column.CHARGING_TIME, n, 10*MINUTE*i );
+		}
+		return res;
+	}
+
+	private static long[] copy( TariffFlags flags ) {
+		long[] res = new long[ 2*flags.size() ];
+		for( int i = 0; i < flags.size(); i++ ) {
+			res[2*i] = flags.t( i );
+			res[2*i+1] = ( flags.ok( i ) ? 1L : 0L );
+		}
+		return res;
+	}
+
+	/*
+	 * equal restrictions of two tariffs are evaluated once, and assigning
+	 * the elements does not modify their shared flags
+	 */
+	@Test
+	public void equalRestrictionsShareTheirFlags() {
+		List<OcpiTariff> tariffs = new ArrayList<OcpiTariff>();
+		tariffs.add( tariff( "M0", window( "10:20", "10:40" ), 1.0 ) );
+		tariffs.add( tariff( "M1", window( "10:20", "10:40" ), 2.0 ) );
+		tariffs.add( tariff( "M2", window( "10:20", "10:50" ), 3.0 ) );
+		TariffIndex index = new TariffIndex( tariffs, new TariffCache( 16 ) );
+		TariffMeasures measures = measures();
+		OcpiTarification tarification = new OcpiTarification( START.toEpochMilli(), ZoneOffset.UTC, START, START.plusMillis( 60*MINUTE ), measures, 0L );
+		ThresholdPlan thresholds = new ThresholdPlan( measures, index, new int[] { 0, 1, 2 } );
+
+		TariffFlags flags = tarification.checkRestrictions( index.element( 0 ), thresholds, null );
+		long[] expected = copy( flags );
+		assertEquals( 20*MINUTE, flags.t( flags.size()-2 ) );
+		assertEquals( 40*MINUTE, flags.t( flags.size()-1 ) );
+		assertSame( flags, tarification.checkRestrictions( index.element( 1 ), thresholds, null ) );
+		assertNotSame( flags, tarification.checkRestrictions( index.element( 2 ), thresholds, null ) );
+
+		tarification.checkTariffs( index, null, TarificationMetrics.NONE );
+		assertSame( flags, tarification.checkRestrictions( index.element( 1 ), thresholds, null ) );
+		assertEquals( Arrays.toString( expected ), Arrays.toString( copy( flags ) ) );
+		assertNull( measures.getComponent( 1, OcpiPriceComponent.Type.TIME ) );
+		assertNotNull( measures.getComponent( 2, OcpiPriceComponent.Type.TIME ) );
+	}
+}
@@ -0,0 +1,186 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiSession;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpi.msgs22.OcpiTariffElement;
+import com.llocer.ev.ocpp.msgs20.ChargingStateEnum;
+import com.llocer.ev.ocpp.msgs20.MeasurandEnum;
+import com.llocer.ev.ocpp.msgs20.OcppMeterValue;
+import com.llocer.ev.ocpp.msgs20.OcppSampledValue;
+import com.llocer.ev.ocpp.msgs20.OcppTransaction;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+
+public class RebillingJobTest {
+	private static final long MINUTE = 60_000L;
+	private static final Instant START = Instant.parse( "2021-03-01T10:00:00Z" );
+	private static final int FILES = 7;
+
+	private static List<OcpiTariff> tariffs() {
+		OcpiTariffElement element = new OcpiTariffElement();
+		element.setPriceComponents( new ArrayList<OcpiPriceComponent>( Arrays.asList(
+				priceComponent( OcpiPriceComponent.Type.ENERGY, 0.30 ),
+				priceComponent( OcpiPriceComponent.Type.PARKING_TIME, 2.0 ) ) ) );
+
+		OcpiTariff res = new OcpiTariff();
+		res.setCountryCode( "ES" );
+		res.setPartyId( "LLO" );
+		res.setId( "R0" );
+		res.setCurrency( "EUR" );
+		res.setLastUpdated( START );
+		res.setElements( new ArrayList<OcpiTariffElement>( Arrays.asList( element ) ) );
+
+		List<OcpiTariff> tariffs = new ArrayList<OcpiTariff>();
+		tariffs.add( res );
+		return tariffs;
+	}
+
+	private static OcpiPriceComponent priceComponent( OcpiPriceComponent.Type type, double price ) {
+		OcpiPriceComponent res = new OcpiPriceComponent();
+		res.setType( type );
+		res.setPrice( price );
+		return res;
+	}
+
+	/*
+	 * session i charges for 10+5i minutes, then is parked for 10 minutes
+	 */
+	private static void writeLog( Path file, int i ) throws IOException {
+		try( SessionLog log = SessionLog.create( file ) ) {
+			double energy = 1_000_000.0;
+			for( int m = 0; m <= 20+5*i; m += 5 ) {
+				boolean charging = ( m < 10+5*i );
+				double power = ( charging ? 3000.0+500.0*i : 0.0 );
+				log.append( event( START.plusMillis( m*MINUTE ), ( m == 0 ? ChargingStateEnum.CHARGING : charging ? null : ChargingStateEnum.EV_CONNECTED ), energy, power ) );
+				energy += power*5*MINUTE/3_600_000.0;
+			}
+		}
+	}
+
+	private static OcppTransactionEventRequest event( Instant t, ChargingStateEnum state, double energy, double power ) {
+		List<OcppSampledValue> samples = new ArrayList<OcppSampledValue>();
+		samples.add( sample( MeasurandEnum.ENERGY_ACTIVE_IMPORT_REGISTER, energy ) );
+		samples.add( sample( MeasurandEnum.POWER_ACTIVE_IMPORT, power ) );
+		OcppMeterValue meter = new OcppMeterValue();
+		meter.setTimestamp( t );
+		meter.setSampledValue( samples );
+
+		OcppTransaction transaction = new OcppTransaction();
+		transaction.setChargingState( state );
+		OcppTransactionEventRequest res = new OcppTransactionEventRequest();
+		res.setTimestamp( t );
+		res.setTransactionInfo( transaction );
+		res.setMeterValue( new ArrayList<OcppMeterValue>( Arrays.asList( meter ) ) );
+		return res;
+	}
+
+	private static OcppSampledValue sample( MeasurandEnum measurand, double value ) {
+		OcppSampledValue res = new OcppSampledValue();
+		res.setMeasurand( measurand );
+		res.setValue( value );
+		return res;
+	}
+
+	private static OcpiSession session( Path file ) {
+		OcpiSession res = new OcpiSession();
+		res.setId( file.getFileName().toString() );
+		res.setStartDatetime( START );
+		res.setTotalCost( 1.0 );
+		res.setKwh( 1.0 );
+		return res;
+	}
+
+	private static Path sessions() throws IOException {
+		Path res = Files.createTempDirectory( "sessions" );
+		for( int i = 0; i < FILES; i++ ) {
+			writeLog( res.resolve( "s"+i+".log" ), i );
+		}
+		return res;
+	}
+
+	private static void delete( Path directory ) throws IOException {
+		try( Stream<Path> files = Files.walk( directory ) ) {
+			for( Path file : (Iterable<Path>)files.sorted( Comparator.reverseOrder() )::iterator ) {
+				Files.delete( file );
+			}
+		}
+	}
+
+	private static String text( Path file ) throws IOException {
+		return new String( Files.readAllBytes( file ), StandardCharsets.UTF_8 );
+	}
+
+	/*
+	 * the sink fails at the fifth CDR: the checkpoint is a prefix of the
+	 * report, and the job resumed after it writes the report of a run
+	 * without failure
+	 */
+	@Test
+	public void resumedReportIsTheReportWithoutCrash() throws IOException {
+		Path directory = sessions();
+		Path out = Files.createTempDirectory( "reports" );
+		try {
+			TariffCache cache = new TariffCache( 16 );
+			RebillingJob job = new RebillingJob( directory, tariffs(), RebillingJobTest::session, ( file, cdr ) -> {}, out.resolve( "expected.csv" ) );
+			job.options = new TarificationOptions();
+			job.options.cache = cache; // after the constructor
+			RebillingJob.Summary summary = job.run();
+			assertEquals( FILES, summary.sessions );
+			assertEquals( 0, summary.failed );
+			assertEquals( 1, cache.size() );
+			String expected = text( out.resolve( "expected.csv" ) );
+
+			List<Path> sent = new ArrayList<Path>();
+			Path report = out.resolve( "report.csv" );
+			job = new RebillingJob( directory, tariffs(), RebillingJobTest::session, ( file, cdr ) -> {
+				if( sent.size() == 4 ) throw new IOException( "sink down" );
+				sent.add( file );
+			}, report );
+			job.checkpointEvery = 2;
+			job.maxInFlight = 3;
+			try {
+				job.run();
+				fail();
+			} catch( IOException e ) {
+				assertEquals( "sink down", e.getMessage() );
+			}
+
+			String checkpoint = text( job.checkpoint );
+			int nl = checkpoint.indexOf( '\n' );
+			long reportLength = Long.parseLong( checkpoint.substring( 0, nl ) );
+			assertEquals( "s3.log\n", checkpoint.substring( nl+1 ) );
+			assertTrue( Files.size( report ) >= reportLength );
+			String reported = text( report ).substring( 0, (int)reportLength );
+			assertTrue( expected.startsWith( reported ) );
+			assertTrue( reported.endsWith( "\n" ) );
+			assertTrue( reported.substring( reported.lastIndexOf( '\n', reported.length()-2 )+1 ).startsWith( "s3.log," ) );
+
+			sent.clear();
+			job = new RebillingJob( directory, tariffs(), RebillingJobTest::session, ( file, cdr ) -> sent.add( file ), report );
+			summary = job.run();
+			assertEquals( FILES-4, summary.sessions );
+			assertEquals( Arrays.asList( directory.resolve( "s4.log" ), directory.resolve( "s5.log" ), directory.resolve( "s6.log" ) ), sent );
+			assertEquals( expected, text( report ) );
+		} finally {
+			delete( directory );
+			delete( out );
+		}
+	}
+}
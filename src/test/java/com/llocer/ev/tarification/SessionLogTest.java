@@ -0,0 +1,155 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.llocer.ev.ocpi.msgs22.OcpiCdr;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiSession;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpi.msgs22.OcpiTariffElement;
+import com.llocer.ev.ocpp.msgs20.ChargingStateEnum;
+import com.llocer.ev.ocpp.msgs20.MeasurandEnum;
+import com.llocer.ev.ocpp.msgs20.OcppMeterValue;
+import com.llocer.ev.ocpp.msgs20.OcppSampledValue;
+import com.llocer.ev.ocpp.msgs20.OcppTransaction;
+import com.llocer.ev.ocpp.msgs20.OcppTransactionEventRequest;
+
+public class SessionLogTest {
+	private static final long MINUTE = 60_000L;
+	private static final Instant START = Instant.parse( "2021-03-01T10:00:00Z" );
+
+	private static List<OcpiTariff> tariffs() {
+		OcpiTariffElement element = new OcpiTariffElement();
+		element.setPriceComponents( new ArrayList<OcpiPriceComponent>( Arrays.asList(
+				priceComponent( OcpiPriceComponent.Type.ENERGY, 0.30 ),
+				priceComponent( OcpiPriceComponent.Type.TIME, 1.0 ),
+				priceComponent( OcpiPriceComponent.Type.PARKING_TIME, 2.0 ) ) ) );
+
+		OcpiTariff res = new OcpiTariff();
+		res.setCountryCode( "ES" );
+		res.setPartyId( "LLO" );
+		res.setId( "L0" );
+		res.setCurrency( "EUR" );
+		res.setLastUpdated( START );
+		res.setElements( new ArrayList<OcpiTariffElement>( Arrays.asList( element ) ) );
+
+		List<OcpiTariff> tariffs = new ArrayList<OcpiTariff>();
+		tariffs.add( res );
+		return tariffs;
+	}
+
+	private static OcpiPriceComponent priceComponent( OcpiPriceComponent.Type type, double price ) {
+		OcpiPriceComponent res = new OcpiPriceComponent();
+		res.setType( type );
+		res.setPrice( price );
+		return res;
+	}
+
+	/*
+	 * charging at a varying power for 100 minutes, then parked, a meter value
+	 * every minute with energy, power and a voltage that is not logged
+	 */
+	private static List<OcppTransactionEventRequest> events() {
+		List<OcppTransactionEventRequest> res = new ArrayList<OcppTransactionEventRequest>();
+		double energy = 1_000_000.0;
+		for( int i = 0; i <= 130; i++ ) {
+			double power = ( i < 100 ? 3000.0+50.0*( i%40 ) : 0.0 );
+			ChargingStateEnum state = ( i == 0 ? ChargingStateEnum.CHARGING : i == 100 ? ChargingStateEnum.EV_CONNECTED : null );
+
+			List<OcppSampledValue> samples = new ArrayList<OcppSampledValue>();
+			samples.add( sample( MeasurandEnum.ENERGY_ACTIVE_IMPORT_REGISTER, energy ) );
+			samples.add( sample( MeasurandEnum.POWER_ACTIVE_IMPORT, power ) );
+			samples.add( sample( MeasurandEnum.VOLTAGE, 230.0 ) );
+			OcppMeterValue meter = new OcppMeterValue();
+			meter.setTimestamp( START.plusMillis( i*MINUTE ) );
+			meter.setSampledValue( samples );
+
+			OcppTransaction transaction = new OcppTransaction();
+			transaction.setChargingState( state );
+			OcppTransactionEventRequest event = new OcppTransactionEventRequest();
+			event.setTimestamp( START.plusMillis( i*MINUTE ) );
+			event.setTransactionInfo( transaction );
+			event.setMeterValue( new ArrayList<OcppMeterValue>( Arrays.asList( meter ) ) );
+			res.add( event );
+
+			energy += power*MINUTE/3_600_000.0;
+		}
+		return res;
+	}
+
+	private static OcppSampledValue sample( MeasurandEnum measurand, double value ) {
+		OcppSampledValue res = new OcppSampledValue();
+		res.setMeasurand( measurand );
+		res.setValue( value );
+		return res;
+	}
+
+	private static OcpiSession session() {
+		OcpiSession res = new OcpiSession();
+		res.setId( "S0" );
+		res.setStartDatetime( START );
+		return res;
+	}
+
+	private static void assertSameTotals( OcpiCdr expected, OcpiCdr actual ) {
+		assertEquals( expected.getChargingPeriods().size(), actual.getChargingPeriods().size() );
+		assertEquals( expected.getTotalCost(), actual.getTotalCost(), 0.0 );
+		assertEquals( expected.getTotalEnergy(), actual.getTotalEnergy(), 0.0 );
+		assertEquals( expected.getTotalTime(), actual.getTotalTime(), 0.0 );
+		assertEquals( expected.getTotalParkingTime(), actual.getTotalParkingTime(), 0.0 );
+	}
+
+	/*
+	 * written in two runs, while a reader keeps the file mapped
+	 */
+	@Test
+	public void appendedIsReadAfterReopen() throws IOException {
+		List<OcpiTariff> tariffs = tariffs();
+		List<OcppTransactionEventRequest> events = events();
+		Path file = Files.createTempFile( "session", ".log" );
+		try {
+			SessionLog log = SessionLog.create( file );
+			for( OcppTransactionEventRequest event : events.subList( 0, 60 ) ) {
+				log.append( event );
+			}
+			long size = log.size();
+			assertEquals( 60*3, size ); // the voltage is not logged
+
+			try( SessionLog reader = SessionLog.openReadOnly( file ) ) {
+				assertSameTotals( OcpiTarification.makeCDR( tariffs, events.subList( 0, 60 ), session() ),
+						OcpiTarification.makeCDR( tariffs, reader, session() ) );
+
+				log.close();
+				assertEquals( size, reader.size() );
+				assertEquals( START.plusMillis( 59*MINUTE ).toEpochMilli(), reader.t( size-2 ) );
+
+				log = SessionLog.open( file );
+				assertEquals( size, log.size() );
+				for( OcppTransactionEventRequest event : events.subList( 60, events.size() ) ) {
+					log.append( event );
+				}
+				log.close();
+				assertEquals( events.size()*3, reader.size() );
+			}
+			assertEquals( SessionLog.RECORD*( 1L+SessionLog.CHUNK_RECORDS ), Files.size( file ) );
+
+			try( SessionLog reader = SessionLog.openReadOnly( file ) ) {
+				assertEquals( events.size()*3, reader.size() );
+				assertSameTotals( OcpiTarification.makeCDR( tariffs, events, session() ),
+						OcpiTarification.makeCDR( tariffs, reader, session() ) );
+			}
+		} finally {
+			Files.delete( file );
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TariffFlagsTest {
+
+	private static TariffFlags flags( long... tOk ) {
+		TariffFlags res = new TariffFlags( 1 ); // grown by add()
+		for( int i = 0; i < tOk.length; i += 2 ) {
+			res.add( tOk[i], tOk[i+1] != 0 );
+		}
+		return res;
+	}
+
+	private static void assertFlags( TariffFlags flags, long... tOk ) {
+		assertEquals( tOk.length/2, flags.size() );
+		for( int i = 0; i < flags.size(); i++ ) {
+			assertEquals( tOk[2*i], flags.t( i ) );
+			assertEquals( tOk[2*i+1] != 0, flags.ok( i ) );
+		}
+	}
+
+	/*
+	 * validity at t: that of the last transition at or before it
+	 */
+	private static boolean isValid( TariffFlags flags, long t ) {
+		boolean res = false;
+		for( int i = 0; i < flags.size() && flags.t( i ) <= t; i++ ) {
+			res = flags.ok( i );
+		}
+		return res;
+	}
+
+	/*
+	 * up to n transitions in -50..49, increasing, some of them at the same
+	 * t in different flags
+	 */
+	private static TariffFlags random( Random rnd, int n ) {
+		TariffFlags res = new TariffFlags();
+		long t = -50+rnd.nextInt( 10 );
+		for( int i = 0; i < n && t < 50; i++ ) {
+			res.add( t, rnd.nextBoolean() );
+			t += 1+rnd.nextInt( 8 );
+		}
+		return res;
+	}
+
+	private static TariffFlags copy( TariffFlags flags ) {
+		TariffFlags res = new TariffFlags();
+		for( int i = 0; i < flags.size(); i++ ) {
+			res.add( flags.t( i ), flags.ok( i ) );
+		}
+		return res;
+	}
+
+	@Test
+	public void packedTransitionsKeepNegativeAndLargeTimes() {
+		TariffFlags flags = flags( -(1L << 61), 1, -1L, 0, 0L, 1, 1L << 61, 0 );
+		assertFlags( flags, -(1L << 61), 1, -1L, 0, 0L, 1, 1L << 61, 0 );
+
+		assertEquals( -1, flags.before( -(1L << 61) ) );
+		assertEquals( 0, flags.before( -1L ) );
+		assertEquals( 1, flags.before( 0L ) );
+		assertEquals( -1L, flags.after( -2L ) );
+		assertEquals( 0L, flags.after( -1L ) );
+		assertEquals( Long.MAX_VALUE, flags.after( 1L << 61 ) );
+	}
+
+	@Test
+	public void orOfEmptyIsTheOther() {
+		TariffFlags empty = new TariffFlags();
+		TariffFlags flags = flags( -10L, 1, 5L, 0 );
+		flags.or( empty );
+		assertFlags( flags, -10L, 1, 5L, 0 );
+
+		empty.or( flags );
+		assertFlags( empty, -10L, 1, 5L, 0 );
+
+		TariffFlags none = new TariffFlags();
+		none.or( new TariffFlags() );
+		assertEquals( 0, none.size() );
+	}
+
+	@Test
+	public void orAtEqualTimes() {
+		TariffFlags flags = flags( 0L, 1, 10L, 0, 20L, 1 );
+		flags.or( flags( 0L, 0, 10L, 1, 20L, 0, 30L, 0 ) );
+		assertFlags( flags, 0L, 1, 10L, 1, 20L, 1, 30L, 1 );
+	}
+
+	@Test
+	public void orIsValidWhereEitherIs() {
+		Random rnd = new Random( 1L );
+		for( int k = 0; k < 2000; k++ ) {
+			TariffFlags a = random( rnd, rnd.nextInt( 6 ) );
+			TariffFlags b = random( rnd, rnd.nextInt( 6 ) );
+			TariffFlags res = copy( a );
+			res.or( b );
+			assertEquals( a.size()+b.size() > 0, res.size() > 0 );
+			for( int i = 1; i < res.size(); i++ ) {
+				assertTrue( res.t( i-1 ) <= res.t( i ) );
+			}
+			for( long t = -60L; t < 60L; t++ ) {
+				assertEquals( isValid( a, t ) || isValid( b, t ), isValid( res, t ) );
+			}
+		}
+	}
+
+	@Test
+	public void notFromTheFirstTransition() {
+		TariffFlags empty = new TariffFlags();
+		empty.not();
+		assertEquals( 0, empty.size() );
+		assertTrue( empty.isNone() );
+
+		TariffFlags flags = flags( -5L, 1, 5L, 0, 5L, 1 );
+		flags.not();
+		assertFlags( flags, -5L, 0, 5L, 1, 5L, 0 );
+
+		Random rnd = new Random( 2L );
+		for( int k = 0; k < 1000; k++ ) {
+			TariffFlags a = random( rnd, rnd.nextInt( 6 ) );
+			TariffFlags res = copy( a );
+			res.not();
+			for( long t = -60L; t < 60L; t++ ) {
+				boolean started = ( a.size() > 0 && a.t( 0 ) <= t );
+				assertEquals( started && !isValid( a, t ), isValid( res, t ) );
+			}
+		}
+	}
+
+	@Test
+	public void totalDurationUntilEnd() {
+		assertEquals( 0L, new TariffFlags().totalDuration( 100L ) );
+
+		TariffFlags flags = flags( -20L, 1, -10L, 0, 0L, 1, 0L, 1, 30L, 0, 40L, 1 );
+		assertEquals( 0L, flags.totalDuration( -20L ) );
+		assertEquals( 5L, flags.totalDuration( -15L ) );
+		assertEquals( 10L, flags.totalDuration( 0L ) );
+		assertEquals( 40L, flags.totalDuration( 30L ) );
+		assertEquals( 50L, flags.totalDuration( 50L ) );
+
+		Random rnd = new Random( 3L );
+		for( int k = 0; k < 1000; k++ ) {
+			TariffFlags a = random( rnd, rnd.nextInt( 6 ) );
+			long end = -60L+rnd.nextInt( 120 );
+			long expected = 0L;
+			for( long t = -60L; t < end; t++ ) {
+				if( isValid( a, t ) ) expected++;
+			}
+			assertEquals( expected, a.totalDuration( end ) );
+		}
+	}
+
+	@Test
+	public void clipKeepsTheStateAtT() {
+		assertFlags( new TariffFlags().clip( -5L ), -5L, 0 );
+
+		TariffFlags flags = flags( -20L, 1, 0L, 0, 10L, 1 );
+		assertFlags( flags.clip( -30L ), -30L, 0, -20L, 1, 0L, 0, 10L, 1 );
+		assertFlags( flags.clip( -20L ), -20L, 1, 0L, 0, 10L, 1 );
+		assertFlags( flags.clip( -5L ), -5L, 1, 0L, 0, 10L, 1 );
+		assertFlags( flags.clip( 20L ), 20L, 1 );
+		assertFlags( flags, -20L, 1, 0L, 0, 10L, 1 ); // not modified
+
+		Random rnd = new Random( 4L );
+		for( int k = 0; k < 1000; k++ ) {
+			TariffFlags a = random( rnd, rnd.nextInt( 6 ) );
+			long from = -60L+rnd.nextInt( 120 );
+			TariffFlags res = a.clip( from );
+			assertEquals( from, res.t( 0 ) );
+			for( long t = from; t < 60L; t++ ) {
+				assertEquals( isValid( a, t ), isValid( res, t ) );
+			}
+			assertFalse( isValid( res, from-1 ) );
+		}
+	}
+}
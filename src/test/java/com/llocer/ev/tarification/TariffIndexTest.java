@@ -0,0 +1,148 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertTrue;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiRestrictions;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpi.msgs22.OcpiTariffElement;
+
+public class TariffIndexTest {
+	private static final long MINUTE = 60_000L;
+	private static final Instant START = Instant.parse( "2021-03-01T00:00:00Z" );
+
+	/*
+	 * elements with random dates, days of week and time windows on quarter
+	 * hours, overnight and empty ones too; more than 64 of them
+	 */
+	private static List<OcpiTariff> tariffs( Random rnd ) {
+		List<OcpiTariff> res = new ArrayList<OcpiTariff>();
+		for( int k = 0; k < 3; k++ ) {
+			List<OcpiTariffElement> elements = new ArrayList<OcpiTariffElement>();
+			for( int i = 0; i < 30; i++ ) {
+				OcpiPriceComponent priceComponent = new OcpiPriceComponent();
+				priceComponent.setType( OcpiPriceComponent.Type.ENERGY );
+				priceComponent.setPrice( 0.1+i/100.0 );
+				OcpiTariffElement element = new OcpiTariffElement();
+				element.setPriceComponents( new ArrayList<OcpiPriceComponent>( Arrays.asList( priceComponent ) ) );
+				if( rnd.nextInt( 5 ) != 0 ) element.setRestrictions( restrictions( rnd ) );
+				elements.add( element );
+			}
+
+			OcpiTariff tariff = new OcpiTariff();
+			tariff.setCountryCode( "ES" );
+			tariff.setPartyId( "LLO" );
+			tariff.setId( "I"+k );
+			tariff.setCurrency( "EUR" );
+			tariff.setLastUpdated( START );
+			tariff.setElements( elements );
+			res.add( tariff );
+		}
+		return res;
+	}
+
+	private static OcpiRestrictions restrictions( Random rnd ) {
+		OcpiRestrictions res = new OcpiRestrictions();
+		LocalDate first = LocalDate.of( 2021, 2, 20 );
+		if( rnd.nextInt( 3 ) == 0 ) res.setStartDate( first.plusDays( rnd.nextInt( 50 ) ).toString() );
+		if( rnd.nextInt( 3 ) == 0 ) res.setEndDate( first.plusDays( rnd.nextInt( 50 ) ).toString() );
+		if( rnd.nextInt( 3 ) == 0 ) {
+			List<DayOfWeek> days = new ArrayList<DayOfWeek>();
+			for( DayOfWeek day : DayOfWeek.values() ) {
+				if( rnd.nextInt( 3 ) == 0 ) days.add( day );
+			}
+			res.setDayOfWeek( days );
+		}
+		if( rnd.nextInt( 2 ) == 0 ) {
+			res.setStartTime( LocalTime.ofSecondOfDay( 900*rnd.nextInt( 96 ) ).toString() );
+			res.setEndTime( LocalTime.ofSecondOfDay( 900*rnd.nextInt( 96 ) ).toString() );
+		}
+		if( rnd.nextInt( 4 ) == 0 ) res.setMinKwh( 1.0+rnd.nextInt( 20 ) );
+		return res;
+	}
+
+	/*
+	 * the calendar restrictions of element are valid at t, epoch milliseconds:
+	 * dates and day of week of the local date, start time included and end
+	 * time excluded, after midnight when end < start, empty when equal
+	 */
+	private static boolean isValid( CompiledTariff.Element element, long t, ZoneId zone ) {
+		ZonedDateTime local = Instant.ofEpochMilli( t ).atZone( zone );
+		LocalDate date = local.toLocalDate();
+		if( element.startDate != null && date.isBefore( element.startDate ) ) return false;
+		if( element.endDate != null && !date.isBefore( element.endDate ) ) return false;
+		if( element.dayOfWeek != null && !element.dayOfWeek.contains( local.getDayOfWeek() ) ) return false;
+		if( element.startTime != null ) {
+			if( element.startTime.equals( element.endTime ) ) return false;
+			LocalTime time = local.toLocalTime();
+			boolean afterStart = !time.isBefore( element.startTime );
+			boolean beforeEnd = time.isBefore( element.endTime );
+			if( element.startTime.isBefore( element.endTime ) ? !( afterStart && beforeEnd ) : !( afterStart || beforeEnd ) ) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * every element valid at some minute of from..to, and at from and to
+	 */
+	private static void assertCandidates( TariffIndex index, int[] candidates, long from, long to, ZoneId zone ) {
+		for( int i = 1; i < candidates.length; i++ ) {
+			assertTrue( candidates[i-1] < candidates[i] ); // catalog order
+		}
+
+		EnumSet<DayOfWeek> none = EnumSet.noneOf( DayOfWeek.class );
+		for( int e = 0; e < index.size(); e++ ) {
+			if( Arrays.binarySearch( candidates, e ) >= 0 ) continue;
+
+			CompiledTariff.Element element = index.element( e );
+			if( none.equals( element.dayOfWeek ) ) continue;
+			for( long t = from; t <= to; t = ( t == to ? t+1 : Math.min( ( t/MINUTE+1 )*MINUTE, to ) ) ) {
+				assertTrue( "element "+e+" at "+Instant.ofEpochMilli( t )+" in "+zone, !isValid( element, t, zone ) );
+			}
+		}
+	}
+
+	/*
+	 * sessions of some minutes to 8 days across the DST change of Madrid, and
+	 * in a zone with a half hour offset
+	 */
+	@Test
+	public void candidatesContainTheValidElements() {
+		Random rnd = new Random( 1L );
+		TariffIndex index = new TariffIndex( tariffs( rnd ), new TariffCache( 16 ) );
+		assertTrue( index.size() > 64 );
+
+		for( ZoneId zone : Arrays.asList( ZoneId.of( "Europe/Madrid" ), ZoneId.of( "Asia/Kolkata" ) ) ) {
+			for( int k = 0; k < 60; k++ ) {
+				long from = START.toEpochMilli()+(long)rnd.nextInt( 40*24*60 )*MINUTE+rnd.nextInt( 60_000 );
+				long length = ( k%10 == 0 ? 8*24*60*MINUTE : (long)rnd.nextInt( ( k%3 == 0 ? 3*24*60 : 180 ) )*MINUTE+rnd.nextInt( 60_000 ) );
+				assertCandidates( index, index.candidates( from, from+length, zone ), from, from+length, zone );
+			}
+		}
+	}
+
+	@Test
+	public void openCandidatesContainTheValidElements() {
+		Random rnd = new Random( 2L );
+		TariffIndex index = new TariffIndex( tariffs( rnd ), new TariffCache( 16 ) );
+		ZoneId zone = ZoneId.of( "Europe/Madrid" );
+		for( int k = 0; k < 10; k++ ) {
+			long from = START.toEpochMilli()+(long)rnd.nextInt( 40*24*60 )*MINUTE;
+			assertCandidates( index, index.candidates( from, zone ), from, from+10*24*60*MINUTE, zone );
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.llocer.common.Tuple2;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+public class TariffMeasuresTest {
+
+	/*
+	 * 10A then 30A from the second minute, 1kWh per 2 minutes
+	 */
+	private static TariffMeasures timeline() {
+		TariffMeasures res = new TariffMeasures();
+		double[] current = { 10.0, 30.0, 30.0 };
+		for( int i = 0; i < current.length; i++ ) {
+			int n = res.add( 60000L*i );
+			res.setValue( Column.ENERGY, n, 0.5*i );
+			res.setValue( Column.CURRENT, n, current[i] );
+		}
+		return res;
+	}
+
+	private static void assertFlags( TariffFlags flags, long... tOk ) {
+		assertEquals( tOk.length/2, flags.size() );
+		for( int i = 0; i < flags.size(); i++ ) {
+			assertEquals( tOk[2*i], flags.t( i ) );
+			assertEquals( tOk[2*i+1] != 0, flags.ok( i ) );
+		}
+	}
+
+	private static Tuple2<OcpiTariff,OcpiPriceComponent> time() {
+		OcpiPriceComponent priceComponent = new OcpiPriceComponent();
+		priceComponent.setType( OcpiPriceComponent.Type.TIME );
+		priceComponent.setPrice( 1.0 );
+		return new Tuple2<OcpiTariff,OcpiPriceComponent>( new OcpiTariff(), priceComponent );
+	}
+
+	@Test
+	public void currentCrossingIsInterpolated() {
+		assertFlags( timeline().threshold( true, 20.0, Column.CURRENT ), 0L, 1, 30000L, 0 );
+	}
+
+	@Test
+	public void energyCrossingIsInterpolated() {
+		assertFlags( timeline().threshold( false, 0.25, Column.ENERGY ), 0L, 0, 30000L, 1 );
+	}
+
+	@Test
+	public void insertedRowMovesTheCurrentCrossing() {
+		TariffFlags assigned = new TariffFlags();
+		assigned.add( 0L, false );
+		assigned.add( 40000L, true );
+
+		TariffMeasures measures = timeline();
+		measures.assign( Collections.singletonList( time() ), assigned );
+		assertEquals( 4, measures.size() );
+		assertEquals( 40000L, measures.t( 1 ) );
+		assertEquals( 10.0, measures.getValue( Column.CURRENT, 1 ), 0.0 ); // copied from row 0
+		assertNotNull( measures.getComponent( 1, OcpiPriceComponent.Type.TIME ) );
+
+		assertFlags( measures.threshold( true, 20.0, Column.CURRENT ), 0L, 1, 50000L, 0 );
+		assertFlags( measures.threshold( false, 0.25, Column.ENERGY ), 0L, 0, 30000L, 1 );
+	}
+
+	private static TariffFlags nowhere( long t ) {
+		TariffFlags res = new TariffFlags();
+		res.add( 0L, false );
+		res.add( t, false );
+		return res;
+	}
+
+	@Test
+	public void assignValidNowhereOnlySplitsRowsWithoutTheType() {
+		TariffMeasures measures = timeline();
+		assertFalse( measures.hasComponents( Collections.singletonList( time() ), 0L ) );
+		measures.assign( Collections.singletonList( time() ), nowhere( 40000L ) );
+		assertEquals( 4, measures.size() ); // row at 40000 without component
+		assertNull( measures.getComponent( 1, OcpiPriceComponent.Type.TIME ) );
+
+		TariffFlags everywhere = new TariffFlags();
+		everywhere.add( 0L, true );
+		measures.assign( Collections.singletonList( time() ), everywhere );
+		assertTrue( measures.hasComponents( Collections.singletonList( time() ), 0L ) );
+		measures.assign( Collections.singletonList( time() ), nowhere( 20000L ) );
+		assertEquals( 4, measures.size() );
+	}
+
+	private static Tuple2<OcpiTariff,OcpiPriceComponent> component( OcpiPriceComponent.Type type, double price ) {
+		OcpiPriceComponent priceComponent = new OcpiPriceComponent();
+		priceComponent.setType( type );
+		priceComponent.setPrice( price );
+		return new Tuple2<OcpiTariff,OcpiPriceComponent>( new OcpiTariff(), priceComponent );
+	}
+
+	/*
+	 * rows on whole seconds with all the columns, the energy stalled at times
+	 */
+	private static TariffMeasures timeline( Random rnd ) {
+		TariffMeasures res = new TariffMeasures();
+		long t = 1000L*rnd.nextInt( 10 );
+		double energy = 0.0;
+		int n = 1+rnd.nextInt( 12 );
+		for( int i = 0; i < n; i++ ) {
+			int row = res.add( t );
+			res.setTime( Column.CHARGING_TIME, row, t/2 );
+			res.setValue( Column.ENERGY, row, energy );
+			res.setValue( Column.CURRENT, row, rnd.nextInt( 32 ) );
+			res.setValue( Column.POWER, row, 1000.0*rnd.nextInt( 22 ) );
+			t += 1000L*( 1+rnd.nextInt( 20 ) );
+			energy += 10.0*rnd.nextInt( 3 );
+		}
+		return res;
+	}
+
+	/*
+	 * transitions before, at, between and after the rows, several between
+	 * two rows at times
+	 */
+	private static TariffFlags flags( Random rnd, TariffMeasures measures ) {
+		TariffFlags res = new TariffFlags();
+		long end = measures.t( measures.size()-1 )+5000L;
+		long t = 0L;
+		while( t < end ) {
+			res.add( t, rnd.nextBoolean() );
+			if( rnd.nextBoolean() ) {
+				t = measures.t( rnd.nextInt( measures.size() ) );
+				if( t <= res.t( res.size()-1 ) ) t = res.t( res.size()-1 )+1+rnd.nextInt( 3000 );
+			} else {
+				t += 1+rnd.nextInt( 4000 );
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * a row of the reference: values by Column ordinal, NaN if not present
+	 */
+	private static class Row {
+		final long t;
+		final double[] values = new double[ TariffMeasures.COLUMNS.length ];
+		final Map<OcpiPriceComponent.Type,Tuple2<OcpiTariff,OcpiPriceComponent>> components;
+
+		Row( long t, Map<OcpiPriceComponent.Type,Tuple2<OcpiTariff,OcpiPriceComponent>> components ) {
+			this.t = t;
+			this.components = new EnumMap<OcpiPriceComponent.Type,Tuple2<OcpiTariff,OcpiPriceComponent>>( OcpiPriceComponent.Type.class );
+			this.components.putAll( components );
+		}
+
+		Row( Row other ) {
+			this( other.t, other.components );
+			System.arraycopy( other.values, 0, values, 0, values.length );
+		}
+	}
+
+	private static List<Row> rows( TariffMeasures measures ) {
+		List<Row> res = new ArrayList<Row>();
+		for( int i = 0; i < measures.size(); i++ ) {
+			Row row = new Row( measures.t( i ), Collections.emptyMap() );
+			for( Column c : TariffMeasures.COLUMNS ) {
+				row.values[ c.ordinal() ] = ( measures.has( c, i ) ? measures.getValue( c, i ) : Double.NaN );
+			}
+			res.add( row );
+		}
+		return res;
+	}
+
+	/*
+	 * row at t between the rows i and f: cumulative columns interpolated,
+	 * the others copied from i, the components of i
+	 */
+	private static Row interpolation( Row i, long t, Row f ) {
+		Row res = new Row( t, i.components );
+		double percent = ( f.t == i.t ? 0.0 : ((double)t-i.t)/(f.t-i.t) );
+		for( Column c : TariffMeasures.COLUMNS ) {
+			double v0 = i.values[ c.ordinal() ];
+			double v1 = f.values[ c.ordinal() ];
+			double v;
+			if( c == Column.DURATION ) {
+				v = t;
+			} else if( !c.cumulative ) {
+				v = v0;
+			} else if( Double.isNaN( v0 ) || Double.isNaN( v1 ) ) {
+				v = Double.NaN;
+			} else if( c.time ) {
+				v = (long)( (long)v0+percent*((long)v1-(long)v0) );
+			} else {
+				v = v0+percent*(v1-v0);
+			}
+			res.values[ c.ordinal() ] = v;
+		}
+		return res;
+	}
+
+	/*
+	 * assign() of a single price component, row by row: a row is inserted at
+	 * a transition between two rows when the previous row has no component
+	 * of the type; transitions before the first row only set the validity
+	 */
+	private static List<Row> assign( List<Row> rows, Tuple2<OcpiTariff,OcpiPriceComponent> priceComponent, TariffFlags assigned ) {
+		OcpiPriceComponent.Type type = priceComponent.f2.getType();
+		List<Row> res = new ArrayList<Row>();
+		Row last = null;
+		boolean ok = false;
+		int a = 0;
+		for( Row p : rows ) {
+			for( ; a < assigned.size() && assigned.t( a ) < p.t; a++ ) {
+				if( last != null && last.components.get( type ) == null ) {
+					Row n = interpolation( last, assigned.t( a ), p );
+					if( assigned.ok( a ) ) n.components.put( type, priceComponent );
+					res.add( n );
+				}
+				ok = assigned.ok( a );
+			}
+			if( a < assigned.size() && assigned.t( a ) == p.t ) {
+				ok = assigned.ok( a );
+				a++;
+			}
+
+			Row n = new Row( p );
+			if( ok ) n.components.put( type, priceComponent );
+			res.add( n );
+			last = p;
+		}
+		return res;
+	}
+
+	private static void assertSameTimeline( List<Row> expected, TariffMeasures actual ) {
+		assertEquals( expected.size(), actual.size() );
+		for( int i = 0; i < expected.size(); i++ ) {
+			Row row = expected.get( i );
+			assertEquals( row.t, actual.t( i ) );
+			for( Column c : TariffMeasures.COLUMNS ) {
+				double v = row.values[ c.ordinal() ];
+				assertEquals( !Double.isNaN( v ), actual.has( c, i ) );
+				if( !Double.isNaN( v ) ) assertEquals( v, actual.getValue( c, i ), 0.0 );
+			}
+			for( OcpiPriceComponent.Type type : OcpiPriceComponent.Type.values() ) {
+				assertSame( row.components.get( type ), actual.getComponent( i, type ) );
+			}
+		}
+	}
+
+	/*
+	 * elements of up to three components, some of the types of the previous
+	 * ones: the sweep of each element gives the rows and components of
+	 * assigning its components in turn
+	 */
+	@Test
+	public void assignOfAnElementIsAssignOfEachComponent() {
+		OcpiPriceComponent.Type[] types = {
+				OcpiPriceComponent.Type.ENERGY, OcpiPriceComponent.Type.TIME,
+				OcpiPriceComponent.Type.PARKING_TIME, OcpiPriceComponent.Type.FLAT };
+
+		Random rnd = new Random( 1L );
+		for( int k = 0; k < 2000; k++ ) {
+			TariffMeasures sweep = timeline( rnd );
+			TariffMeasures each = sweep.dup();
+			List<Row> reference = rows( sweep );
+
+			int elements = 1+rnd.nextInt( 4 );
+			for( int e = 0; e < elements; e++ ) {
+				List<Tuple2<OcpiTariff,OcpiPriceComponent>> priceComponents = new ArrayList<Tuple2<OcpiTariff,OcpiPriceComponent>>();
+				int n = 1+rnd.nextInt( 3 );
+				for( int i = 0; i < n; i++ ) {
+					priceComponents.add( component( types[ rnd.nextInt( types.length ) ], e+i/10.0 ) );
+				}
+				TariffFlags assigned = flags( rnd, sweep );
+
+				sweep.assign( priceComponents, assigned );
+				for( Tuple2<OcpiTariff,OcpiPriceComponent> priceComponent : priceComponents ) {
+					each.assign( priceComponent, assigned );
+					reference = assign( reference, priceComponent, assigned );
+				}
+				assertSameTimeline( reference, each );
+				assertSameTimeline( reference, sweep );
+			}
+		}
+	}
+}
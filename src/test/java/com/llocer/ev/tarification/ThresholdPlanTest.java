@@ -0,0 +1,179 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.llocer.common.Tuple2;
+import com.llocer.ev.ocpi.msgs22.OcpiPriceComponent;
+import com.llocer.ev.ocpi.msgs22.OcpiRestrictions;
+import com.llocer.ev.ocpi.msgs22.OcpiTariff;
+import com.llocer.ev.ocpi.msgs22.OcpiTariffElement;
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+public class ThresholdPlanTest {
+	private static final long MINUTE = 60_000L;
+
+	/*
+	 * elements with random min and max thresholds of every column, on a grid
+	 * so that some are shared and some equal the values of the rows
+	 */
+	private static TariffIndex tariffs( Random rnd ) {
+		List<OcpiTariffElement> elements = new ArrayList<OcpiTariffElement>();
+		for( int i = 0; i < 20; i++ ) {
+			OcpiRestrictions restrictions = new OcpiRestrictions();
+			if( rnd.nextBoolean() ) restrictions.setMinKwh( rnd.nextInt( 20 )/2.0 );
+			if( rnd.nextBoolean() ) restrictions.setMaxKwh( rnd.nextInt( 20 )/2.0 );
+			if( rnd.nextBoolean() ) restrictions.setMinCurrent( 5.0*rnd.nextInt( 8 ) );
+			if( rnd.nextBoolean() ) restrictions.setMaxCurrent( 5.0*rnd.nextInt( 8 ) );
+			if( rnd.nextBoolean() ) restrictions.setMinPower( (double)rnd.nextInt( 22 ) );
+			if( rnd.nextBoolean() ) restrictions.setMaxPower( (double)rnd.nextInt( 22 ) );
+			if( rnd.nextBoolean() ) restrictions.setMinDuration( 60*rnd.nextInt( 60 ) );
+			if( rnd.nextBoolean() ) restrictions.setMaxDuration( 60*rnd.nextInt( 60 ) );
+
+			OcpiPriceComponent priceComponent = new OcpiPriceComponent();
+			priceComponent.setType( OcpiPriceComponent.Type.ENERGY );
+			priceComponent.setPrice( 0.1+i/100.0 );
+			OcpiTariffElement element = new OcpiTariffElement();
+			element.setRestrictions( restrictions );
+			element.setPriceComponents( new ArrayList<OcpiPriceComponent>( Arrays.asList( priceComponent ) ) );
+			elements.add( element );
+		}
+
+		OcpiTariff tariff = new OcpiTariff();
+		tariff.setCountryCode( "ES" );
+		tariff.setPartyId( "LLO" );
+		tariff.setId( "T0" );
+		tariff.setCurrency( "EUR" );
+		tariff.setLastUpdated( Instant.parse( "2021-03-01T00:00:00Z" ) );
+		tariff.setElements( elements );
+		return new TariffIndex( Collections.singletonList( tariff ), new TariffCache( 16 ) );
+	}
+
+	/*
+	 * rows on whole minutes: energy never decreasing, current and power going
+	 * up and down on the grid of the thresholds, repeated at times
+	 */
+	private static TariffMeasures measures( Random rnd ) {
+		TariffMeasures res = new TariffMeasures();
+		long t = 0L;
+		double energy = 0.0;
+		double current = 0.0;
+		double power = 0.0;
+		int n = 2+rnd.nextInt( 40 );
+		for( int i = 0; i < n; i++ ) {
+			int row = res.add( t );
+			res.setValue( Column.ENERGY, row, energy );
+			res.setValue( Column.CURRENT, row, current );
+			res.setValue( Column.POWER, row, power );
+
+			t += MINUTE*( 1+rnd.nextInt( 5 ) );
+			energy += 250.0*rnd.nextInt( 4 );
+			if( rnd.nextInt( 3 ) != 0 ) current = 5.0*rnd.nextInt( 8 );
+			if( rnd.nextInt( 3 ) != 0 ) power = 1000.0*rnd.nextInt( 22 );
+		}
+		return res;
+	}
+
+	private static int[] all( TariffIndex tariffs ) {
+		int[] res = new int[ tariffs.size() ];
+		for( int e = 0; e < res.length; e++ ) res[e] = e;
+		return res;
+	}
+
+	private static void assertEqualFlags( String label, TariffFlags expected, TariffFlags actual ) {
+		assertEquals( label, expected.size(), actual.size() );
+		for( int i = 0; i < expected.size(); i++ ) {
+			assertEquals( label, expected.t( i ), actual.t( i ) );
+			assertEquals( label, expected.ok( i ), actual.ok( i ) );
+		}
+	}
+
+	private static void assertAsThreshold( TariffIndex tariffs, TariffMeasures measures, ThresholdPlan plan ) {
+		for( int e = 0; e < tariffs.size(); e++ ) {
+			for( CompiledTariff.Threshold threshold : tariffs.element( e ).thresholds ) {
+				assertEqualFlags( e+" "+threshold.label+" "+threshold.value,
+						measures.threshold( threshold.max, threshold.value, threshold.column ),
+						plan.flags( threshold ) );
+			}
+		}
+	}
+
+	@Test
+	public void crossingsAreThoseOfThreshold() {
+		Random rnd = new Random( 1L );
+		for( int k = 0; k < 200; k++ ) {
+			TariffIndex tariffs = tariffs( rnd );
+			TariffMeasures measures = measures( rnd );
+			assertAsThreshold( tariffs, measures, new ThresholdPlan( measures, tariffs, all( tariffs ) ) );
+		}
+	}
+
+	/*
+	 * a row inserted by assign() copies the current and power of the previous
+	 * one, the crossings after it move
+	 */
+	@Test
+	public void insertedRowsMoveTheCrossings() {
+		OcpiPriceComponent time = new OcpiPriceComponent();
+		time.setType( OcpiPriceComponent.Type.TIME );
+		time.setPrice( 1.0 );
+		Tuple2<OcpiTariff,OcpiPriceComponent> component = new Tuple2<OcpiTariff,OcpiPriceComponent>( new OcpiTariff(), time );
+
+		Random rnd = new Random( 2L );
+		for( int k = 0; k < 200; k++ ) {
+			TariffIndex tariffs = tariffs( rnd );
+			TariffMeasures measures = measures( rnd );
+			ThresholdPlan plan = new ThresholdPlan( measures, tariffs, all( tariffs ) );
+			assertAsThreshold( tariffs, measures, plan );
+
+			// valid from the middle of random rows on
+			TariffFlags assigned = new TariffFlags();
+			assigned.add( 0L, false );
+			for( int i = 1; i < measures.size(); i++ ) {
+				if( rnd.nextInt( 3 ) == 0 ) assigned.add( ( measures.t( i-1 )+measures.t( i ) )/2, rnd.nextBoolean() );
+			}
+			measures.assign( Collections.singletonList( component ), assigned );
+			assertAsThreshold( tariffs, measures, plan );
+		}
+	}
+
+	@Test
+	public void equalThresholdsShareTheirFlags() {
+		OcpiRestrictions restrictions = new OcpiRestrictions();
+		restrictions.setMaxCurrent( 20.0 );
+		restrictions.setMinCurrent( 20.0 );
+		OcpiPriceComponent priceComponent = new OcpiPriceComponent();
+		priceComponent.setType( OcpiPriceComponent.Type.ENERGY );
+		priceComponent.setPrice( 0.2 );
+		OcpiTariffElement element = new OcpiTariffElement();
+		element.setRestrictions( restrictions );
+		element.setPriceComponents( new ArrayList<OcpiPriceComponent>( Arrays.asList( priceComponent ) ) );
+
+		OcpiTariff tariff = new OcpiTariff();
+		tariff.setCountryCode( "ES" );
+		tariff.setPartyId( "LLO" );
+		tariff.setId( "T1" );
+		tariff.setCurrency( "EUR" );
+		tariff.setLastUpdated( Instant.parse( "2021-03-01T00:00:00Z" ) );
+		tariff.setElements( new ArrayList<OcpiTariffElement>( Arrays.asList( element, element ) ) );
+		TariffIndex tariffs = new TariffIndex( Collections.singletonList( tariff ), new TariffCache( 16 ) );
+
+		TariffMeasures measures = measures( new Random( 3L ) );
+		ThresholdPlan plan = new ThresholdPlan( measures, tariffs, all( tariffs ) );
+		CompiledTariff.Threshold[] first = tariffs.element( 0 ).thresholds;
+		CompiledTariff.Threshold[] second = tariffs.element( 1 ).thresholds;
+		for( int i = 0; i < first.length; i++ ) {
+			assertSame( plan.flags( first[i] ), plan.flags( second[i] ) );
+		}
+		assertAsThreshold( tariffs, measures, plan );
+	}
+}
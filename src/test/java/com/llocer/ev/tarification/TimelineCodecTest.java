@@ -0,0 +1,86 @@
+package com.llocer.ev.tarification;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import com.llocer.ev.tarification.TariffMeasures.Column;
+
+public class TimelineCodecTest {
+
+	/*
+	 * charging, then parked from the third minute, without current
+	 */
+	private static TimelineCodec.Timeline timeline() {
+		TariffMeasures measures = new TariffMeasures();
+		for( int i = 0; i < 5; i++ ) {
+			int n = measures.add( 60000L*i );
+			measures.setValue( Column.ENERGY, n, 1000.0+123.25*Math.min( i, 2 ) );
+			measures.setValue( Column.POWER, n, ( i < 2 ? 7400.0 : 0.0 ) );
+			measures.setTime( Column.CHARGING_TIME, n, 60000L*Math.min( i, 2 ) );
+			measures.setTime( Column.PARKING_TIME, n, 60000L*Math.max( i-2, 0 ) );
+		}
+		return new TimelineCodec.Timeline( 1614592800000L, 1614592805000L, 1614593040000L, measures );
+	}
+
+	private static ByteBuffer write( TimelineCodec.Timeline timeline ) {
+		ByteBuffer res = ByteBuffer.allocate( TimelineCodec.size( timeline.measures ) );
+		TimelineCodec.write( res, timeline );
+		assertEquals( 0, res.remaining() );
+		res.flip();
+		return res;
+	}
+
+	private static byte[] bytes( ByteBuffer b ) {
+		byte[] res = new byte[ b.remaining() ];
+		b.duplicate().get( res );
+		return res;
+	}
+
+	@Test
+	public void readIsWritten() {
+		TimelineCodec.Timeline expected = timeline();
+		ByteBuffer written = write( expected );
+		byte[] bytes = bytes( written );
+
+		TimelineCodec.Timeline actual = TimelineCodec.read( written );
+		assertEquals( 0, written.remaining() );
+		assertEquals( expected.tariffStart, actual.tariffStart );
+		assertEquals( expected.startEvent, actual.startEvent );
+		assertEquals( expected.lastEvent, actual.lastEvent );
+		assertEquals( expected.measures.size(), actual.measures.size() );
+		for( int i = 0; i < expected.measures.size(); i++ ) {
+			assertEquals( expected.measures.t( i ), actual.measures.t( i ) );
+			for( Column c : TariffMeasures.COLUMNS ) {
+				assertEquals( expected.measures.has( c, i ), actual.measures.has( c, i ) );
+				assertEquals( expected.measures.getValue( c, i ), actual.measures.getValue( c, i ), 0.0 );
+			}
+		}
+		assertArrayEquals( bytes, bytes( write( actual ) ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void truncatedRowsAreRejected() {
+		ByteBuffer written = write( timeline() );
+		written.limit( written.limit()-1 );
+		TimelineCodec.read( written );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void negativeRowsAreRejected() {
+		ByteBuffer written = write( timeline() );
+		written.order( ByteOrder.LITTLE_ENDIAN ).putInt( TimelineCodec.HEADER-4, -1 );
+		TimelineCodec.read( written );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void truncatedHeaderIsRejected() {
+		ByteBuffer written = write( timeline() );
+		written.limit( TimelineCodec.HEADER-1 );
+		TimelineCodec.read( written );
+	}
+}